@@ -0,0 +1,74 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The challenge every REQ pays for: generateRandomString in both servers when
+ * they run without a pool, so the challenge is made on the request thread,
+ * and taking one from a running ChallengePool. Run with -t to see how each
+ * scales with the number of request threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChallengeGenerationBenchmark {
+
+    private static final MethodHandle TCP_RANDOM = Internals.method("TCPServer", "generateRandomString");
+    private static final MethodHandle UDP_RANDOM = Internals.method("UDPServer", "generateRandomString", byte[].class, int.class);
+    private static final MethodHandle POOL_START = Internals.method("ChallengePool", "start", String.class);
+    private static final MethodHandle POOL_NEXT = Internals.method("ChallengePool", "next", byte[].class, int.class);
+
+    private Object udpServer;
+    private final byte[] challenge = new byte[64];
+
+    /**
+     * One pool for every benchmark thread, as in a server.
+     */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        Object pool;
+
+        @Setup
+        public void setUp() throws Throwable {
+            pool = (Object) POOL_START.invokeExact((Object) "bench-challenges");
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        udpServer = Internals.newInstance("UDPServer", new Class<?>[] {DatagramChannel.class}, (Object) null);
+    }
+
+    @Benchmark
+    public Object tcpGenerateRandomString() throws Throwable {
+        return (Object) TCP_RANDOM.invokeExact();
+    }
+
+    @Benchmark
+    public Object udpGenerateRandomString() throws Throwable {
+        UDP_RANDOM.invokeExact(udpServer, (Object) challenge, 0);
+        return challenge;
+    }
+
+    @Benchmark
+    public Object poolNext(Pool pool) throws Throwable {
+        POOL_NEXT.invokeExact(pool.pool, (Object) challenge, 0);
+        return challenge;
+    }
+}
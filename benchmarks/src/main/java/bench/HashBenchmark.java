@@ -0,0 +1,66 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The MD5 of username + password + challenge: the client's raw digest as sent
+ * in binary URH messages and in hex as sent in text ones, and the server's check of
+ * a raw hash with HashVerifier.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    private static final MethodHandle HEX = Internals.method("LoadGenerator", "hex", byte[].class);
+    private static final MethodHandle DIGEST = Internals.method("TCPClient", "digest", String.class);
+    private static final MethodHandle VERIFIER = Internals.method("HashVerifier", "get");
+    private static final MethodHandle VERIFY = Internals.method("HashVerifier", "verify", byte[].class, int.class, byte[].class, byte[].class, int.class);
+
+    private Object client;
+    private String input;
+    private byte[] credentials;
+    private byte[] challenge;
+    private byte[] userhash;
+
+    @Setup
+    public void setUp() {
+        client = Internals.newInstance("TCPClient", new Class<?>[0]);
+        input = Messages.USERNAME + Messages.PASSWORD + Messages.CHALLENGE;
+        credentials = (Messages.USERNAME + Messages.PASSWORD).getBytes();
+        challenge = Messages.CHALLENGE.getBytes();
+        userhash = Messages.md5(input);
+    }
+
+    @Benchmark
+    public Object clientHash() throws Throwable {
+        Object digest = (Object) DIGEST.invokeExact(client, (Object) input);
+        return (Object) HEX.invokeExact(digest);
+    }
+
+    @Benchmark
+    public Object clientDigest() throws Throwable {
+        return (Object) DIGEST.invokeExact(client, (Object) input);
+    }
+
+    @Benchmark
+    public boolean serverVerify() throws Throwable {
+        Object verifier = (Object) VERIFIER.invokeExact();
+        return (boolean) VERIFY.invokeExact(verifier, (Object) credentials, credentials.length, (Object) challenge, (Object) userhash, 0);
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the classes under test. They live in the default package and
+ * keep their helpers private, which a named package cannot reach directly,
+ * so benchmarks go through method handles. Held in static final fields these
+ * are constants to the JIT and cost no more than a direct call.
+ */
+final class Internals {
+
+    private Internals() {
+    }
+
+    /**
+     * Looks up a method, private or not. The handle's type is erased, so
+     * callers use invokeExact with every reference argument and the result
+     * cast to Object, and the receiver first for instance methods.
+     * @param className class in the default package
+     * @param name method name
+     * @param parameters parameter types
+     * @return the erased handle
+     */
+    static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method m = Class.forName(className).getDeclaredMethod(name, parameters);
+            m.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(m);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + className + "." + name, e);
+        }
+    }
+
+    /**
+     * Creates an instance through a constructor that may be private.
+     * @param className class in the default package
+     * @param parameters constructor parameter types
+     * @param args constructor arguments
+     * @return the new instance
+     */
+    static Object newInstance(String className, Class<?>[] parameters, Object... args) {
+        try {
+            Constructor<?> c = Class.forName(className).getDeclaredConstructor(parameters);
+            c.setAccessible(true);
+            return c.newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /**
+     * @param target the instance, or null for a static field
+     * @param className class in the default package
+     * @param name field name
+     * @return the field's value
+     */
+    static Object get(Object target, String className, String name) {
+        try {
+            return field(className, name).get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read " + className + "." + name, e);
+        }
+    }
+
+    /**
+     * Sets a field that may be private.
+     * @param target the instance, or null for a static field
+     * @param className class in the default package
+     * @param name field name
+     * @param value the new value
+     */
+    static void set(Object target, String className, String name, Object value) {
+        try {
+            field(className, name).set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot write " + className + "." + name, e);
+        }
+    }
+
+    private static Field field(String className, String name) throws ReflectiveOperationException {
+        Field f = Class.forName(className).getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+
+    /**
+     * Sends System.out nowhere. Some failure branches print unconditionally,
+     * this keeps the formatting cost in the numbers without flooding the log.
+     */
+    static void silenceStdout() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
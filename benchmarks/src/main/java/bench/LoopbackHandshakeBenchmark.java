@@ -0,0 +1,217 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Complete REQ/CHA/URH/AUT handshakes against a TCPServer and a UDPServer
+ * started in the benchmark JVM with their default options, over loopback.
+ *
+ * tcpNewConnection connects for every handshake the way TCPClient does, the
+ * persistent variants keep one connection per thread. The client side is
+ * written out here rather than calling the clients, which exit the JVM when
+ * they are done, and is measured along with the server, allocations included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackHandshakeBenchmark {
+
+    private static final MethodHandle TCP_MAIN = Internals.method("TCPServer", "main", String[].class);
+    private static final MethodHandle UDP_MAIN = Internals.method("UDPServer", "main", String[].class);
+    private static final int TCP_PORT = 7031;
+    private static final int UDP_PORT = 7032;
+    private static final int CHALLENGE_LENGTH = 64;
+    private static final byte MAGIC = (byte) 0xA5;
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        InetAddress host;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            Internals.silenceStdout();
+            host = InetAddress.getLoopbackAddress();
+            serve(TCP_MAIN, TCP_PORT, "tcp-server");
+            serve(UDP_MAIN, UDP_PORT, "udp-server");
+            // Wait for the TCP server to accept, the UDP socket is bound before its thread gets that far
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    new Socket(host, TCP_PORT).close();
+                    break;
+                } catch (IOException e) {
+                    if (attempt == 100)
+                        throw e;
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        private static void serve(final MethodHandle main, int port, String name) {
+            final String[] args = {Integer.toString(port)};
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        main.invokeExact((Object) args);
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, name);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        DatagramSocket udp;
+
+        @Setup(Level.Trial)
+        public void open(Servers servers) throws IOException {
+            socket = new Socket(servers.host, TCP_PORT);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            udp = new DatagramSocket();
+            udp.connect(servers.host, UDP_PORT);
+            udp.setSoTimeout(2000);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+            udp.close();
+        }
+    }
+
+    @Benchmark
+    public boolean tcpNewConnection(Servers servers) throws IOException {
+        Socket socket = new Socket(servers.host, TCP_PORT);
+        try {
+            socket.setTcpNoDelay(true);
+            return textHandshake(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public boolean tcpPersistentText(Connection connection) throws IOException {
+        return textHandshake(connection.in, connection.out);
+    }
+
+    @Benchmark
+    public boolean tcpPersistentBinary(Connection connection) throws IOException {
+        DataInputStream in = new DataInputStream(connection.in);
+        connection.out.write(requestFrame());
+        byte[] challenge = new byte[4 + CHALLENGE_LENGTH];
+        in.readFully(challenge);
+        connection.out.write(usernameHashFrame(new String(challenge, 4, CHALLENGE_LENGTH, StandardCharsets.US_ASCII)));
+        byte[] authentication = new byte[5];
+        in.readFully(authentication);
+        return check(authentication[4] == 1);
+    }
+
+    @Benchmark
+    public boolean udpText(Connection connection) throws IOException {
+        String challenge = exchange(connection.udp, "REQ".getBytes(StandardCharsets.US_ASCII));
+        String urh = "URH" + Integer.toHexString(Messages.USERNAME.length()) + Messages.USERNAME
+                + Messages.md5Hex(Messages.USERNAME + Messages.PASSWORD + challenge.substring(3, 3 + CHALLENGE_LENGTH));
+        return check(exchange(connection.udp, urh.getBytes(StandardCharsets.US_ASCII)).startsWith("AUT1"));
+    }
+
+    @Benchmark
+    public boolean udpBinary(Connection connection) throws IOException {
+        String challenge = exchange(connection.udp, requestFrame());
+        String authentication = exchange(connection.udp, usernameHashFrame(challenge.substring(4, 4 + CHALLENGE_LENGTH)));
+        return check(authentication.charAt(4) == 1);
+    }
+
+    private static boolean textHandshake(InputStream in, OutputStream out) throws IOException {
+        out.write("REQ\n".getBytes(StandardCharsets.US_ASCII));
+        String challenge = readLine(in).substring(3, 3 + CHALLENGE_LENGTH);
+        String urh = "URH" + Integer.toHexString(Messages.USERNAME.length()) + Messages.USERNAME
+                + Messages.md5Hex(Messages.USERNAME + Messages.PASSWORD + challenge) + "\n";
+        out.write(urh.getBytes(StandardCharsets.US_ASCII));
+        return check(readLine(in).equals("AUT1"));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new IOException("Connection closed by the server");
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends a datagram and waits for the answer, decoded as ISO-8859-1 so
+     * binary frames keep one char per byte.
+     */
+    private static String exchange(DatagramSocket udp, byte[] message) throws IOException {
+        udp.send(new DatagramPacket(message, message.length));
+        DatagramPacket response = new DatagramPacket(new byte[259], 259);
+        udp.receive(response);
+        return new String(response.getData(), 0, response.getLength(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] requestFrame() {
+        return new byte[] {MAGIC, 1, 1, 0};
+    }
+
+    private static byte[] usernameHashFrame(String challenge) {
+        byte[] user = Messages.USERNAME.getBytes(StandardCharsets.US_ASCII);
+        byte[] digest = Messages.md5(Messages.USERNAME + Messages.PASSWORD + challenge);
+        byte[] frame = new byte[5 + user.length + digest.length];
+        frame[0] = MAGIC;
+        frame[1] = 1;
+        frame[2] = 3;
+        frame[3] = (byte) (1 + user.length + digest.length);
+        frame[4] = (byte) user.length;
+        System.arraycopy(user, 0, frame, 5, user.length);
+        System.arraycopy(digest, 0, frame, 5 + user.length, digest.length);
+        return frame;
+    }
+
+    /** A failed handshake would measure the failure path, stop the run instead */
+    private static boolean check(boolean authenticated) {
+        if (!authenticated)
+            throw new IllegalStateException("Handshake failed");
+        return true;
+    }
+}
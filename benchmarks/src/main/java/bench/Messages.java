@@ -0,0 +1,82 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The messages the server parse benchmarks feed in, one per branch of
+ * parseMessage. All of them come from the same client, user1 with the
+ * built in password, answering the fixed CHALLENGE.
+ */
+final class Messages {
+
+    static final String USERNAME = "user1";
+    static final String PASSWORD = "pass1";
+    static final String CHALLENGE = "benchmarkChallengeabcdefghijklmnopqrstuvwxyz01234520150211120000";
+
+    /** Every kind of message, the value of the benchmarks' @Param */
+    static final String REQ = "REQ";
+    static final String URH_VALID = "URH_VALID";
+    static final String TOO_SHORT = "TOO_SHORT";
+    static final String WRONG_TYPE = "WRONG_TYPE";
+    static final String BAD_USERNAME_LENGTH = "BAD_USERNAME_LENGTH";
+    static final String URH_TOO_SHORT = "URH_TOO_SHORT";
+    static final String BAD_HEX = "BAD_HEX";
+    static final String UNKNOWN_USER = "UNKNOWN_USER";
+    static final String NO_CHALLENGE = "NO_CHALLENGE";
+    static final String WRONG_HASH = "WRONG_HASH";
+
+    private Messages() {
+    }
+
+    /**
+     * @param kind one of the kinds above
+     * @return the text message, without an end of line
+     */
+    static String text(String kind) {
+        String hash = md5Hex(USERNAME + PASSWORD + CHALLENGE);
+        if (kind.equals(REQ))
+            return "REQ";
+        if (kind.equals(URH_VALID) || kind.equals(NO_CHALLENGE))
+            return "URH" + USERNAME.length() + USERNAME + hash;
+        if (kind.equals(TOO_SHORT))
+            return "UR";
+        if (kind.equals(WRONG_TYPE))
+            return "XYZ" + USERNAME.length() + USERNAME + hash;
+        if (kind.equals(BAD_USERNAME_LENGTH))
+            return "URH0" + USERNAME + hash;
+        if (kind.equals(URH_TOO_SHORT))
+            return "URH" + USERNAME.length() + USERNAME + hash.substring(0, 16);
+        if (kind.equals(BAD_HEX))
+            return "URH" + USERNAME.length() + USERNAME + "zz" + hash.substring(2);
+        if (kind.equals(UNKNOWN_USER))
+            return "URH" + USERNAME.length() + "userX" + hash;
+        if (kind.equals(WRONG_HASH))
+            return "URH" + USERNAME.length() + USERNAME + "00000000000000000000000000000000";
+        throw new IllegalArgumentException("Unknown message kind: " + kind);
+    }
+
+    /**
+     * @param s the input
+     * @return the raw MD5 of the UTF-8 bytes
+     */
+    static byte[] md5(String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param s the input
+     * @return the MD5 of the UTF-8 bytes, as lower case hex
+     */
+    static String md5Hex(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md5(s))
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
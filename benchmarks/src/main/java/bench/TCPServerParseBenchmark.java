@@ -0,0 +1,70 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TCPServer.parseMessage for REQ, a valid URH and every way a message can fail.
+ *
+ * The client's challenge is stored again before each iteration, which is
+ * shorter than the challenge ttl, so URH_VALID keeps finding it. An expired
+ * challenge is only reported until the store's timer wheel clears it a tick
+ * later, too briefly to measure, and is otherwise the NO_CHALLENGE path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TCPServerParseBenchmark {
+
+    private static final MethodHandle PARSE = Internals.method("TCPServer", "parseMessage", String.class, InetAddress.class, int.class);
+    private static final MethodHandle KEY = Internals.method("ChallengeStore", "key", InetAddress.class, int.class);
+    private static final MethodHandle PUT = Internals.method("ChallengeStore", "put", long.class, String.class);
+    private static final int PORT = 40000;
+
+    @Param({Messages.REQ, Messages.URH_VALID, Messages.TOO_SHORT, Messages.WRONG_TYPE, Messages.BAD_USERNAME_LENGTH,
+            Messages.URH_TOO_SHORT, Messages.BAD_HEX, Messages.UNKNOWN_USER, Messages.NO_CHALLENGE, Messages.WRONG_HASH})
+    public String message;
+
+    private Object store;
+    private String text;
+    private InetAddress host;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Internals.silenceStdout();
+        // main() creates the store, which is not run here
+        store = Internals.newInstance("ChallengeStore", new Class<?>[0]);
+        Internals.set(null, "TCPServer", "challenge", store);
+        text = Messages.text(message);
+        host = InetAddress.getLoopbackAddress();
+        port = message.equals(Messages.NO_CHALLENGE) ? PORT + 1 : PORT;
+    }
+
+    @Setup(Level.Iteration)
+    public void storeChallenge() throws Throwable {
+        PUT.invokeExact(store, (long) KEY.invokeExact((Object) host, PORT), (Object) Messages.CHALLENGE);
+    }
+
+    @Benchmark
+    public Object parseMessage() throws Throwable {
+        return (Object) PARSE.invokeExact((Object) text, (Object) host, port);
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UDPServer.answer for REQ, a valid URH and every way a message can fail,
+ * with the datagram laid out as the server's receive loop leaves it: the
+ * message at the start of a zeroed direct buffer of the largest datagram
+ * length. Everything answer allocates shows up in gc.alloc.rate.norm, which
+ * should be 0 for every kind of message.
+ *
+ * See {@link TCPServerParseBenchmark} for why the challenge is stored per
+ * iteration and why there is no expired case.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UDPServerParseBenchmark {
+
+    private static final MethodHandle ANSWER = Internals.method("UDPServer", "answer", ByteBuffer.class, InetSocketAddress.class);
+    private static final MethodHandle KEY = Internals.method("ChallengeStore", "key", InetAddress.class, int.class);
+    private static final MethodHandle PUT = Internals.method("ChallengeStore", "put", long.class, String.class);
+    // WireCodec.MAX_DATAGRAM_LENGTH, the size of the server's receive buffer
+    private static final int RECEIVE_LENGTH = 1472;
+    private static final int PORT = 40000;
+
+    @Param({Messages.REQ, Messages.URH_VALID, Messages.TOO_SHORT, Messages.WRONG_TYPE, Messages.BAD_USERNAME_LENGTH,
+            Messages.URH_TOO_SHORT, Messages.BAD_HEX, Messages.UNKNOWN_USER, Messages.NO_CHALLENGE, Messages.WRONG_HASH})
+    public String message;
+
+    private Object server;
+    private Object store;
+    private ByteBuffer datagram;
+    private InetSocketAddress client;
+    private InetAddress host;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Internals.silenceStdout();
+        // answer only touches the channel for a BATCH
+        server = Internals.newInstance("UDPServer", new Class<?>[] {DatagramChannel.class}, (Object) null);
+        store = Internals.get(server, "UDPServer", "challenge");
+        host = InetAddress.getLoopbackAddress();
+        byte[] text = Messages.text(message).getBytes(StandardCharsets.US_ASCII);
+        datagram = ByteBuffer.allocateDirect(RECEIVE_LENGTH);
+        datagram.put(text);
+        datagram.flip();
+        client = new InetSocketAddress(host, message.equals(Messages.NO_CHALLENGE) ? PORT + 1 : PORT);
+    }
+
+    @Setup(Level.Iteration)
+    public void storeChallenge() throws Throwable {
+        PUT.invokeExact(store, (long) KEY.invokeExact((Object) host, PORT), (Object) Messages.CHALLENGE);
+    }
+
+    @Benchmark
+    public Object answer() throws Throwable {
+        return (Object) ANSWER.invokeExact(server, (Object) datagram, (Object) client);
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Authenticates users against a TCPServer or UDPServer from inside another
+ * program, for any number of threads at once.
+ *
+ * {@link #authenticate} starts a handshake and returns at once. The future
+ * completes with the result when the AUT arrives, or exceptionally with a
+ * ServerBusyException, a SocketTimeoutException once the timeout passed, or
+ * the IOException that broke the transport. All handshakes of a client share
+ * its transport: {@link TCPAuthClient} pipelines them as TAGGED frames over a
+ * few pooled connections, {@link UDPAuthClient} sends them as BATCH entries
+ * over one socket. Each handshake holds a correlation id of its own while it
+ * runs, so a client has at most MAX_CORRELATION_ID + 1 of them in flight.
+ *
+ * Answers are handled by the reader threads of the transport, and the futures
+ * complete there: a dependent stage that does more than a little work should
+ * run on an executor of the caller.
+ *
+ * With {@link #setTickets}, a cached resumption ticket is tried before the full
+ * handshake and a new one kept after every success, as the -r option of the
+ * clients does.
+ *
+ * A client created with text framing speaks the text messages instead, for
+ * servers and tools that expect them. Text carries no correlation id, so such
+ * a client runs one handshake at a time; the transport turns each text answer
+ * into the frame it stands for ({@link #decodeText}) and the handshake goes on
+ * as in binary.
+ */
+public abstract class AuthClient implements Closeable {
+
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    // What a handshake sends next
+    static final int REQUEST = 0;
+    static final int ANSWER = 1;
+    static final int RESUME = 2;
+
+    // Shared by the clients of the process, a handshake only needs its deadline checked once a tick
+    private static final TimerWheel TIMERS = TimerWheel.start("auth-client-timers");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    protected final InetSocketAddress address;
+    // host:port, the key of this server's tickets and round trip times
+    protected final String server;
+    // Whether messages are text lines instead of binary frames
+    protected final boolean text;
+    // The handshake holding each correlation id
+    private final AtomicReferenceArray<Handshake> handshakes = new AtomicReferenceArray<Handshake>(WireCodec.MAX_CORRELATION_ID + 1);
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private volatile TicketCache tickets;
+    protected volatile boolean closed;
+
+    /**
+     * @param address the server
+     */
+    protected AuthClient(InetSocketAddress address) {
+        this(address, false);
+    }
+
+    /**
+     * @param address the server
+     * @param text whether to send text messages instead of binary frames, one handshake at a time
+     */
+    protected AuthClient(InetSocketAddress address, boolean text) {
+        this.address = address;
+        this.server = address.getHostString() + ":" + address.getPort();
+        this.text = text;
+    }
+
+    /**
+     * Sets how long a handshake may take before it fails, DEFAULT_TIMEOUT unless set.
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Timeout must be positive");
+        this.timeout = timeout;
+    }
+
+    /**
+     * Resumes handshakes with the tickets of a cache, and stores the tickets the server hands out.
+     * @param tickets the cache, or null to always run the full handshake
+     */
+    public void setTickets(TicketCache tickets) {
+        this.tickets = tickets;
+    }
+
+    /**
+     * Starts the handshake of a user.
+     * @param username 1-15 letters, digits or underscores
+     * @param password 1-15 letters, digits or underscores
+     * @return completes with whether the server accepted the user
+     * @throws IllegalArgumentException if the username or password is not valid
+     */
+    public CompletableFuture<Boolean> authenticate(String username, String password) {
+        if (!valid(username) || !valid(password))
+            throw new IllegalArgumentException("Username and password must be 1-15 letters, digits or underscores");
+        Handshake h = new Handshake(this, username, password);
+        if (closed) {
+            h.future.completeExceptionally(new IOException("Client closed"));
+            return h.future;
+        }
+        TicketCache cache = tickets;
+        String ticket = cache == null ? null : cache.get(server, username);
+        if (ticket != null) {
+            h.ticket = ticket;
+            h.resumeDigest = digest(username + password + ticket);
+            h.stage = RESUME;
+        }
+        if (!register(h)) {
+            h.future.completeExceptionally(new IOException(text ? "A handshake is in flight already" : "Too many handshakes in flight"));
+            return h.future;
+        }
+        h.deadline = System.nanoTime() + timeout * 1000000L;
+        arm(h);
+        send(h);
+        return h.future;
+    }
+
+    /**
+     * Authenticates many users, keeping at most window handshakes in flight.
+     * Users the server did not answer for in time count as failed.
+     * @param users username and password pairs
+     * @param window number of handshakes in flight at once
+     * @return whether each user was authenticated
+     * @throws IOException the first failure other than a timeout, such as the server being busy or unreachable
+     */
+    public boolean[] authenticateAll(String[][] users, int window) throws IOException {
+        boolean[] results = new boolean[users.length];
+        List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(users.length);
+        final Semaphore slots = new Semaphore(window);
+        BiConsumer<Boolean, Throwable> release = new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean result, Throwable failure) {
+                slots.release();
+            }
+        };
+        try {
+            for (String[] user : users) {
+                slots.acquire();
+                CompletableFuture<Boolean> future = authenticate(user[0], user[1]);
+                future.whenComplete(release);
+                futures.add(future);
+            }
+            for (int i = 0; i < users.length; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SocketTimeoutException)
+                        continue;
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return results;
+    }
+
+    /**
+     * Fails the handshakes in flight and lets go of the transport.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        IOException e = new IOException("Client closed");
+        for (int id = 0; id < handshakes.length(); id++) {
+            Handshake h = handshakes.get(id);
+            if (h != null)
+                fail(h, e);
+        }
+    }
+
+    /**
+     * Queues the next message of a handshake for the transport, which writes it
+     * with {@link Handshake#encode}. Called again for every message and resend.
+     * @param h the handshake
+     */
+    protected abstract void send(Handshake h);
+
+    /**
+     * @param attempt how many times the message was resent already
+     * @return how long to wait for an answer before resending, in milliseconds, 0 to never resend
+     */
+    protected int resendTimeout(int attempt) {
+        return 0;
+    }
+
+    /**
+     * Called with the round trip time of every message answered, as long as
+     * nothing of its handshake was resent.
+     * @param nanos the round trip time
+     */
+    protected void roundTrip(long nanos) {
+    }
+
+    /**
+     * Handles a frame the server sent for a handshake, on a reader thread of the transport.
+     * @param id the correlation id
+     * @param in buffer holding the frame between its position and limit
+     */
+    protected void received(int id, ByteBuffer in) {
+        if (id >= handshakes.length())
+            return;
+        Handshake h = handshakes.get(id);
+        // Nothing is waiting for a late answer to a handshake that is over
+        if (h == null)
+            return;
+        boolean next = false;
+        synchronized (h) {
+            if (h.future.isDone())
+                return;
+            switch (WireCodec.type(in)) {
+            case WireCodec.CHA:
+                if (h.stage == RESUME)
+                    return;
+                // Only a CHA right after the REQ answers the message just sent, a second one answers an earlier REQ
+                sample(h, h.stage == REQUEST);
+                // A resent REQ replaces the challenge, the URH of the new one is answered too
+                h.digest = digest(h.username + h.password + ascii(in, WireCodec.challengeOffset(in), WireCodec.CHALLENGE_LENGTH));
+                h.answers++;
+                h.stage = ANSWER;
+                next = true;
+                break;
+            case WireCodec.AUT:
+                // A late answer to the handshake that had this id before
+                if (h.stage == REQUEST)
+                    return;
+                int result = WireCodec.result(in);
+                if (result == WireCodec.BUSY) {
+                    fail(h, new ServerBusyException());
+                    return;
+                }
+                sample(h, true);
+                if (result != 1 && h.stage == RESUME) {
+                    // The ticket expired or the server restarted, fall back to the full handshake
+                    dropTicket(h);
+                    next = true;
+                } else if (result != 1 && h.answers > 1) {
+                    // The AUT0 of a replaced challenge, the answer to the URH of the newer one is still coming
+                    h.answers--;
+                } else if (result != 1 && h.requestResent && !h.rechallenged) {
+                    // The CHA of a resent REQ was lost, so the challenge answered may have been replaced; ask again once
+                    h.rechallenged = true;
+                    h.requestResent = false;
+                    h.answers = 0;
+                    h.stage = REQUEST;
+                    next = true;
+                } else {
+                    if (result == 1 && WireCodec.hasTicket(in))
+                        keepTicket(h, ascii(in, WireCodec.ticketOffset(in), WireCodec.TICKET_LENGTH));
+                    complete(h, result == 1);
+                }
+                break;
+            default:
+                fail(h, new IOException("Expected a CHA or AUT"));
+                return;
+            }
+        }
+        if (next) {
+            arm(h);
+            send(h);
+        }
+    }
+
+    /**
+     * Turns a text answer of the server into the binary frame it stands for,
+     * so it can be handed to {@link #received}.
+     * @param message array holding the answer, without its line end
+     * @param length length of the answer
+     * @param out the buffer to write the frame to
+     * @return false if the answer is neither a CHA nor an AUT, and nothing was written
+     */
+    protected static boolean decodeText(byte[] message, int length, ByteBuffer out) {
+        if (length >= 3 + WireCodec.CHALLENGE_LENGTH && message[0] == 'C' && message[1] == 'H' && message[2] == 'A') {
+            WireCodec.encodeChallenge(out, message, 3);
+            return true;
+        }
+        if (length < 4 || message[0] != 'A' || message[1] != 'U' || message[2] != 'T')
+            return false;
+        if (message[3] == '0' + WireCodec.BUSY)
+            WireCodec.encodeBusy(out);
+        else if (message[3] == '1' && length >= 4 + WireCodec.TICKET_LENGTH)
+            WireCodec.encodeAuthentication(out, message, 4);
+        else
+            WireCodec.encodeAuthentication(out, message[3] == '1');
+        return true;
+    }
+
+    /**
+     * Starts a handshake over from its first message, once, after the
+     * connection it ran on was lost before it was answered.
+     * @param h the handshake
+     * @return whether it was restarted; if not, the caller fails it
+     */
+    protected boolean restart(Handshake h) {
+        synchronized (h) {
+            if (h.restarted || h.future.isDone())
+                return false;
+            h.restarted = true;
+            // The new connection is in the round trip of the next answer
+            h.resent = true;
+            h.channel = null;
+            h.stage = h.ticket != null ? RESUME : REQUEST;
+            h.answers = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @param channel the transport handshakes were written to
+     * @return the handshakes in flight whose last message was written to it
+     */
+    protected List<Handshake> inFlight(Object channel) {
+        List<Handshake> found = new ArrayList<Handshake>();
+        for (int id = 0; id < handshakes.length(); id++) {
+            Handshake h = handshakes.get(id);
+            if (h != null && h.channel == channel)
+                found.add(h);
+        }
+        return found;
+    }
+
+    /**
+     * Ends a handshake with a failure and frees its correlation id.
+     * @param h the handshake
+     * @param e why it failed
+     */
+    protected void fail(Handshake h, IOException e) {
+        release(h);
+        h.future.completeExceptionally(e);
+    }
+
+    private void complete(Handshake h, boolean result) {
+        release(h);
+        h.future.complete(result);
+    }
+
+    private void release(Handshake h) {
+        if (h.timer != null)
+            h.timer.cancel();
+        if (h.id >= 0)
+            handshakes.compareAndSet(h.id, h, null);
+    }
+
+    /**
+     * Takes a free correlation id, going round the ids so that one is not
+     * reused right after it was freed while late answers may still come.
+     */
+    private boolean register(Handshake h) {
+        // Text answers carry no id, everything is for id 0
+        if (text) {
+            if (!handshakes.compareAndSet(0, null, h))
+                return false;
+            h.id = 0;
+            return true;
+        }
+        int ids = handshakes.length();
+        for (int i = 0; i < ids; i++) {
+            int id = (nextId.getAndIncrement() & Integer.MAX_VALUE) % ids;
+            if (handshakes.get(id) == null && handshakes.compareAndSet(id, null, h)) {
+                h.id = id;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the next resend of the message just queued, or only the deadline
+     * of the handshake when the transport does not resend.
+     */
+    private void arm(Handshake h) {
+        synchronized (h) {
+            int wait = resendTimeout(h.attempt);
+            if (wait == 0 && h.timer != null)
+                return;
+            long at = h.deadline;
+            if (wait > 0)
+                at = Math.min(at, System.nanoTime() + wait * 1000000L);
+            if (h.timer != null)
+                h.timer.cancel();
+            h.timer = TIMERS.schedule(h, at);
+        }
+    }
+
+    /**
+     * Resends the message of a handshake, or fails it once its deadline passed. Runs on the timer thread.
+     */
+    private void expire(Handshake h) {
+        if (h.future.isDone())
+            return;
+        if (System.nanoTime() - h.deadline >= 0) {
+            fail(h, new SocketTimeoutException("No answer from " + server + " within " + timeout + " ms"));
+            return;
+        }
+        synchronized (h) {
+            h.attempt++;
+            h.resent = true;
+            if (h.stage == REQUEST)
+                h.requestResent = true;
+        }
+        arm(h);
+        send(h);
+    }
+
+    /**
+     * Takes the round trip time of an answer, as Karn's algorithm does: only
+     * when it answers the message just sent and nothing of the handshake was
+     * resent, since a late answer to an earlier copy cannot be told apart.
+     * @param current whether the answer is of the type the last message asks for
+     */
+    private void sample(Handshake h, boolean current) {
+        if (current && !h.resent)
+            roundTrip(System.nanoTime() - h.sent);
+        h.attempt = 0;
+    }
+
+    private void keepTicket(Handshake h, String ticket) {
+        TicketCache cache = tickets;
+        if (cache == null)
+            return;
+        try {
+            cache.put(server, h.username, ticket);
+        } catch (IOException e) {
+            // The user is still authenticated, the next handshake just cannot resume
+        }
+    }
+
+    private void dropTicket(Handshake h) {
+        h.ticket = null;
+        h.stage = REQUEST;
+        TicketCache cache = tickets;
+        if (cache == null)
+            return;
+        try {
+            cache.remove(server, h.username);
+        } catch (IOException e) {
+            // Rejected again next time, and dropped then
+        }
+    }
+
+    private static boolean valid(String s) {
+        if (s == null || s.length() < 1 || s.length() > 15)
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_'))
+                return false;
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer in, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (in.get(offset + i) & 0xff);
+        return new String(chars);
+    }
+
+    private static byte[] digest(String s) {
+        try {
+            MessageDigest md = MD5.get();
+            md.reset();
+            return md.digest(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One user's handshake. The transport only touches it through {@link #encode};
+     * the state is guarded by the instance lock, since answers, resends and writes
+     * come from different threads.
+     */
+    protected static final class Handshake implements Runnable {
+        private final AuthClient client;
+        final String username;
+        private final String password;
+        private final byte[] user;
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        int id = -1;
+        private int stage = REQUEST;
+        private String ticket;
+        private byte[] resumeDigest;
+        private byte[] digest;
+        // CHAs answered with a URH; more than one when a resent REQ made the server replace the challenge
+        private int answers;
+        private long deadline;
+        private volatile TimerWheel.Timeout timer;
+        private int attempt;
+        // Once a message was resent, late duplicate answers make round trip times meaningless for the rest of the handshake
+        private boolean resent;
+        private long sent;
+        private boolean restarted;
+        // Whether a REQ was resent, and whether an AUT0 already made the handshake ask for a new challenge
+        private boolean requestResent;
+        private boolean rechallenged;
+        // What the last message was written to, see AuthClient#inFlight
+        private Object channel;
+        // Whether the transport has it queued already, so a resend does not queue it twice
+        private boolean queued;
+
+        private Handshake(AuthClient client, String username, String password) {
+            this.client = client;
+            this.username = username;
+            this.password = password;
+            byte[] bytes = new byte[username.length()];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) username.charAt(i);
+            this.user = bytes;
+        }
+
+        /**
+         * Marks the handshake as queued by the transport.
+         * @return false if it is queued already or over, and must not be queued again
+         */
+        public synchronized boolean enqueue() {
+            if (queued || future.isDone())
+                return false;
+            queued = true;
+            return true;
+        }
+
+        /**
+         * Writes the next message of the handshake. A URH meant for a challenge
+         * received over another connection would be rejected, so the handshake
+         * starts over with a REQ instead.
+         * @param out the buffer to write the frame to
+         * @param channel what the frame is about to be written to
+         * @return false if the handshake is over and nothing was written
+         */
+        public synchronized boolean encode(ByteBuffer out, Object channel) {
+            queued = false;
+            if (future.isDone())
+                return false;
+            if (stage == ANSWER && this.channel != channel) {
+                stage = ticket != null ? RESUME : REQUEST;
+                answers = 0;
+            }
+            this.channel = channel;
+            if (client.text) {
+                encodeText(out);
+            } else {
+                switch (stage) {
+                case ANSWER:
+                    WireCodec.encodeUsernameHash(out, user, 0, user.length, digest, 0);
+                    break;
+                case RESUME:
+                    byte[] t = new byte[WireCodec.TICKET_LENGTH];
+                    for (int i = 0; i < t.length; i++)
+                        t[i] = (byte) ticket.charAt(i);
+                    WireCodec.encodeResume(out, user, 0, user.length, resumeDigest, 0, t, 0);
+                    break;
+                default:
+                    WireCodec.encodeRequest(out);
+                }
+            }
+            sent = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Writes the next message as text: REQ, URH or RES, without a line end.
+         */
+        private void encodeText(ByteBuffer out) {
+            String type = stage == ANSWER ? "URH" : stage == RESUME ? "RES" : "REQ";
+            for (int i = 0; i < type.length(); i++)
+                out.put((byte) type.charAt(i));
+            if (stage == REQUEST)
+                return;
+            out.put((byte) HEX[user.length]);
+            out.put(user);
+            byte[] d = stage == ANSWER ? digest : resumeDigest;
+            for (byte b : d)
+                out.put((byte) HEX[(b >> 4) & 0xf]).put((byte) HEX[b & 0xf]);
+            if (stage == RESUME)
+                for (int i = 0; i < WireCodec.TICKET_LENGTH; i++)
+                    out.put((byte) ticket.charAt(i));
+        }
+
+        @Override
+        public void run() {
+            client.expire(this);
+        }
+    }
+
+    /**
+     * The server turned the handshake away, the user may try again later.
+     */
+    public static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ServerBusyException() {
+            super("Server busy");
+        }
+    }
+}
@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Challenges shared by a cluster of server instances behind a load balancer,
+ * so that a URH can reach a different instance than the REQ it answers.
+ *
+ * Every challenge key (see {@link ChallengeStore#key}) is owned by one member,
+ * picked by consistent hashing: each member puts VIRTUAL_NODES points on a
+ * ring of longs, and a key belongs to the first point at or after its hash.
+ * Adding or removing a member only moves the keys next to its points. The
+ * owner keeps the challenge in its own ChallengeStore; other members forward
+ * the put on REQ and the get on URH to it over UDP.
+ *
+ * Membership is static, read from a file with one member per line:
+ *
+ *   [name] [host]:[peer port]
+ *
+ * Lines starting with # are comments. Every member must be given the same file.
+ *
+ ****************************************************************************
+ *  - REQUEST -                                                             *
+ *  Index 0:     0xA6                                                       *
+ *  Index 1:     Operation (1=PUT, 2=GET)                                   *
+ *  Index 2-5:   Sequence number                                            *
+ *  Index 6-13:  Challenge key                                              *
+ *  Index 14-77: Challenge, PUT only                                        *
+ *                                                                          *
+ *  - REPLY -                                                               *
+ *  Index 0:     0xA6                                                       *
+ *  Index 1:     Operation | 0x80                                           *
+ *  Index 2-5:   Sequence number of the request                             *
+ *  Index 6:     Status (ChallengeStore.FOUND, MISSING or EXPIRED)          *
+ *  Index 7-70:  Challenge, GET and FOUND only                              *
+ ****************************************************************************
+ *
+ * Requests are only answered when they come from the host of a member, but
+ * they are not authenticated; keep the peer ports on a private network.
+ *
+ * A member that does not answer within PEER_TIMEOUT, twice, is marked down
+ * for DOWN_BACKOFF: its keys go to the next member on the ring that is up, as
+ * they do on every other member that finds it down, so puts and gets do not
+ * wait for it again. Once the backoff is over one request probes it, while
+ * the others keep going around it until it answers. With no other member up
+ * the local store is used, so the cluster degrades to sticky routing rather
+ * than failing every handshake.
+ */
+public class ChallengeCluster implements Runnable {
+
+    public static final int PEER_TIMEOUT = 100;
+    public static final int VIRTUAL_NODES = 128;
+    public static final long DOWN_BACKOFF = 5000;
+
+    private static final int ATTEMPTS = 2;
+    // Requests in flight to one member at a time, each on a socket of its own
+    private static final int EXCHANGES_PER_MEMBER = 8;
+    private static final byte MAGIC = (byte) 0xA6;
+    private static final byte PUT = 1;
+    private static final byte GET = 2;
+    private static final int REPLY = 0x80;
+    private static final int CHALLENGE_LENGTH = ChallengeStore.CHALLENGE_LENGTH;
+    private static final int REQUEST_HEADER_LENGTH = 14;
+    private static final int REPLY_HEADER_LENGTH = 7;
+    private static final int MAX_LENGTH = REQUEST_HEADER_LENGTH + CHALLENGE_LENGTH;
+
+    private final ChallengeStore local;
+    private final Member[] members;
+    private final int self;
+    // Sorted points of the ring and the member owning each
+    private final long[] ring;
+    private final int[] owners;
+    private final DatagramSocket socket;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder peerFailures = new LongAdder();
+
+    /**
+     * Creates the local member of a cluster and binds its peer port.
+     * @param members every member, in the same order on every instance
+     * @param self index of the local member
+     * @param local store for the challenges the local member owns
+     * @throws IOException if the peer port cannot be bound
+     */
+    ChallengeCluster(Member[] members, int self, ChallengeStore local) throws IOException {
+        this.members = members;
+        this.self = self;
+        this.local = local;
+        ring = new long[members.length * VIRTUAL_NODES];
+        owners = new int[ring.length];
+        long[][] points = new long[ring.length][];
+        for (int m = 0; m < members.length; m++)
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                points[m * VIRTUAL_NODES + v] = new long[] {point(members[m].name, v), m};
+        Arrays.sort(points, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+        socket = new DatagramSocket(members[self].address);
+    }
+
+    /**
+     * Reads the members from a file and binds the peer port of the local one.
+     * @param path the membership file
+     * @param node name of the local member
+     * @param local store for the challenges the local member owns
+     * @return the cluster, its peer thread not started yet
+     * @throws IOException if the file cannot be read, is malformed, has a host that does not resolve or does not list the node
+     */
+    public static ChallengeCluster fromFile(String path, String node, ChallengeStore local) throws IOException {
+        List<Member> members = new ArrayList<Member>();
+        int self = -1;
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            int colon = fields.length == 2 ? fields[1].lastIndexOf(':') : -1;
+            if (colon < 0 || !fields[1].substring(colon + 1).matches("\\d{1,5}") || Integer.parseInt(fields[1].substring(colon + 1)) > 65535)
+                throw new IOException("Not a cluster member, expected [name] [host]:[port]: " + line);
+            for (Member m : members)
+                if (m.name.equals(fields[0]))
+                    throw new IOException("Member listed twice: " + fields[0]);
+            if (fields[0].equals(node))
+                self = members.size();
+            InetSocketAddress address = new InetSocketAddress(fields[1].substring(0, colon),
+                    Integer.parseInt(fields[1].substring(colon + 1)));
+            // Resolved once here, a member that does not resolve could never be reached nor recognised
+            if (address.isUnresolved())
+                throw new IOException("Cannot resolve cluster member: " + line);
+            members.add(new Member(fields[0], address));
+        }
+        if (self < 0)
+            throw new IOException(node + " is not a member in " + path);
+        return new ChallengeCluster(members.toArray(new Member[0]), self, local);
+    }
+
+    /**
+     * Starts answering the requests of the other members.
+     */
+    public void start() {
+        Thread t = new Thread(this, "cluster-peer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return the store of the challenges the local member owns
+     */
+    public ChallengeStore store() {
+        return local;
+    }
+
+    /**
+     * @return the number of puts and gets sent to another member
+     */
+    public long forwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * @return the number of puts and gets that went to another member or the local store because a member did not answer
+     */
+    public long peerFailures() {
+        return peerFailures.sum();
+    }
+
+    /**
+     * @return the number of other members currently marked down
+     */
+    public int peersDown() {
+        int down = 0;
+        for (Member m : members)
+            if (m.down)
+                down++;
+        return down;
+    }
+
+    /**
+     * Stores the challenge for a client with the member owning its key.
+     * @param key the client key
+     * @param challenge CHALLENGE_LENGTH bytes of challenge
+     * @param offset where the challenge starts in the array
+     */
+    public void put(long key, byte[] challenge, int offset) {
+        int owner;
+        // Each member that fails is marked down, so this ends at the latest with the local store
+        while ((owner = route(key)) != self) {
+            forwarded.increment();
+            if (exchange(members[owner], PUT, key, challenge, offset) >= 0)
+                return;
+            peerFailures.increment();
+        }
+        local.put(key, challenge, offset);
+    }
+
+    /**
+     * Copies the challenge of a client from the member owning its key.
+     * @param key the client key
+     * @param dst array receiving CHALLENGE_LENGTH bytes
+     * @param offset where to write in the array
+     * @return FOUND, MISSING or EXPIRED
+     */
+    public int get(long key, byte[] dst, int offset) {
+        int owner;
+        while ((owner = route(key)) != self) {
+            forwarded.increment();
+            int status = exchange(members[owner], GET, key, dst, offset);
+            if (status >= 0)
+                return status;
+            peerFailures.increment();
+        }
+        return local.get(key, dst, offset);
+    }
+
+    /**
+     * @param key a client key
+     * @return index of the member to ask for the key: its owner, or the next
+     *         member on the ring if the owner is down
+     */
+    int route(long key) {
+        int i = point(key);
+        long now = System.nanoTime();
+        for (int n = 0; n < ring.length; n++) {
+            int m = owners[(i + n) % ring.length];
+            if (m == self || members[m].available(now))
+                return m;
+        }
+        return self;
+    }
+
+    private int point(long key) {
+        int i = Arrays.binarySearch(ring, mix(key));
+        if (i < 0)
+            i = -i - 1;
+        return i == ring.length ? 0 : i;
+    }
+
+    /**
+     * Sends a request to a member and waits for its reply.
+     * @param member the member owning the key
+     * @param op PUT or GET
+     * @param key the client key
+     * @param challenge the challenge to put, or the array receiving the challenge got
+     * @param offset where the challenge starts in the array
+     * @return the status replied, or -1 if the member did not answer
+     */
+    private int exchange(Member member, byte op, long key, byte[] challenge, int offset) {
+        int status = send(member, op, key, challenge, offset);
+        if (status < 0)
+            member.failed(System.nanoTime());
+        else
+            member.down = false;
+        return status;
+    }
+
+    private int send(Member member, byte op, long key, byte[] challenge, int offset) {
+        Exchange x;
+        try {
+            x = member.borrow();
+        } catch (IOException e) {
+            return -1;
+        }
+        try {
+            byte[] req = x.request.getData();
+            req[0] = MAGIC;
+            req[1] = op;
+            putLong(req, 6, key);
+            if (op == PUT)
+                System.arraycopy(challenge, offset, req, REQUEST_HEADER_LENGTH, CHALLENGE_LENGTH);
+            x.request.setLength(op == PUT ? REQUEST_HEADER_LENGTH + CHALLENGE_LENGTH : REQUEST_HEADER_LENGTH);
+            byte[] rep = x.reply.getData();
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                int sequence = ++x.sequence;
+                putInt(req, 2, sequence);
+                x.socket.send(x.request);
+                long deadline = System.nanoTime() + PEER_TIMEOUT * 1000000L;
+                while (true) {
+                    long remaining = (deadline - System.nanoTime()) / 1000000;
+                    if (remaining <= 0)
+                        break;
+                    x.socket.setSoTimeout((int) remaining);
+                    x.reply.setLength(rep.length);
+                    try {
+                        x.socket.receive(x.reply);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    // A late reply to an earlier attempt is skipped
+                    if (x.reply.getLength() < REPLY_HEADER_LENGTH || rep[0] != MAGIC || rep[1] != (byte) (op | REPLY)
+                            || getInt(rep, 2) != sequence)
+                        continue;
+                    int status = rep[6];
+                    if (op == GET && status == ChallengeStore.FOUND) {
+                        if (x.reply.getLength() < REPLY_HEADER_LENGTH + CHALLENGE_LENGTH)
+                            continue;
+                        System.arraycopy(rep, REPLY_HEADER_LENGTH, challenge, offset, CHALLENGE_LENGTH);
+                    }
+                    return status;
+                }
+            }
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            member.release(x);
+        }
+    }
+
+    /**
+     * Answers the puts and gets of the other members from the local store.
+     */
+    @Override
+    public void run() {
+        byte[] data = new byte[MAX_LENGTH];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        byte[] replyData = new byte[REPLY_HEADER_LENGTH + CHALLENGE_LENGTH];
+        DatagramPacket reply = new DatagramPacket(replyData, replyData.length);
+        while (true) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                if (packet.getLength() < REQUEST_HEADER_LENGTH || data[0] != MAGIC || !isMember(packet.getAddress()))
+                    continue;
+                long key = getLong(data, 6);
+                int length = REPLY_HEADER_LENGTH;
+                if (data[1] == PUT && packet.getLength() == REQUEST_HEADER_LENGTH + CHALLENGE_LENGTH) {
+                    local.put(key, data, REQUEST_HEADER_LENGTH);
+                    replyData[6] = ChallengeStore.FOUND;
+                } else if (data[1] == GET) {
+                    int status = local.get(key, replyData, REPLY_HEADER_LENGTH);
+                    replyData[6] = (byte) status;
+                    if (status == ChallengeStore.FOUND)
+                        length += CHALLENGE_LENGTH;
+                } else {
+                    continue;
+                }
+                replyData[0] = MAGIC;
+                replyData[1] = (byte) (data[1] | REPLY);
+                System.arraycopy(data, 2, replyData, 2, 4);
+                reply.setData(replyData, 0, length);
+                reply.setSocketAddress(packet.getSocketAddress());
+                socket.send(reply);
+            } catch (IOException e) {
+                // The member asking will time out and use its own store
+            } catch (RuntimeException e) {
+                // Same for a request that breaks something, the thread has to keep answering the others
+            }
+        }
+    }
+
+    private boolean isMember(InetAddress address) {
+        for (Member m : members)
+            if (address.equals(m.address.getAddress()))
+                return true;
+        return false;
+    }
+
+    /**
+     * @param name a member
+     * @param v number of the point, 0 to VIRTUAL_NODES - 1
+     * @return where the point lies on the ring, the same on every instance
+     */
+    private static long point(String name, int v) {
+        try {
+            byte[] h = MessageDigest.getInstance("MD5").digest((name + "#" + v).getBytes(StandardCharsets.UTF_8));
+            return getLong(h, 0);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        for (int i = 0; i < 4; i++)
+            b[off + i] = (byte) (v >>> (24 - 8 * i));
+    }
+
+    private static int getInt(byte[] b, int off) {
+        int v = 0;
+        for (int i = 0; i < 4; i++)
+            v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 0; i < 8; i++)
+            b[off + i] = (byte) (v >>> (56 - 8 * i));
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+
+    /**
+     * A member of the cluster and the sockets used to send it requests.
+     */
+    static final class Member {
+        final String name;
+        final InetSocketAddress address;
+        private final ArrayBlockingQueue<Exchange> idle = new ArrayBlockingQueue<Exchange>(EXCHANGES_PER_MEMBER);
+        private final AtomicInteger opened = new AtomicInteger();
+        // Set when the member did not answer, until it answers again
+        volatile boolean down;
+        // While down, when it may be probed next
+        private final AtomicLong retry = new AtomicLong();
+
+        Member(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        /**
+         * Takes an idle socket, opening one if fewer than EXCHANGES_PER_MEMBER
+         * exist, otherwise waiting for one to be released.
+         */
+        Exchange borrow() throws IOException {
+            Exchange x = idle.poll();
+            if (x != null)
+                return x;
+            if (opened.incrementAndGet() <= EXCHANGES_PER_MEMBER) {
+                try {
+                    return new Exchange(address);
+                } catch (IOException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+            opened.decrementAndGet();
+            try {
+                return idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + name, e);
+            }
+        }
+
+        void release(Exchange x) {
+            idle.offer(x);
+        }
+
+        /**
+         * @param now System.nanoTime()
+         * @return whether requests may go to the member: it is up, or its
+         *         backoff is over and the caller is the one to probe it
+         */
+        boolean available(long now) {
+            if (!down)
+                return true;
+            long at = retry.get();
+            return now - at >= 0 && retry.compareAndSet(at, now + DOWN_BACKOFF * 1000000);
+        }
+
+        /**
+         * Marks the member down for DOWN_BACKOFF after it did not answer.
+         * @param now System.nanoTime()
+         */
+        void failed(long now) {
+            retry.set(now + DOWN_BACKOFF * 1000000);
+            down = true;
+        }
+    }
+
+    /**
+     * A socket connected to one member with its request and reply buffers,
+     * used by one thread at a time.
+     */
+    private static final class Exchange {
+        final DatagramSocket socket = new DatagramSocket();
+        final DatagramPacket request = new DatagramPacket(new byte[MAX_LENGTH], MAX_LENGTH);
+        final DatagramPacket reply = new DatagramPacket(new byte[REPLY_HEADER_LENGTH + CHALLENGE_LENGTH], REPLY_HEADER_LENGTH + CHALLENGE_LENGTH);
+        int sequence;
+
+        Exchange(InetSocketAddress member) throws IOException {
+            // Connected, so only the member's replies are received
+            socket.connect(member);
+        }
+    }
+}
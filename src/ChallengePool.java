@@ -0,0 +1,216 @@
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Challenges made ahead of time by a background thread, so that answering a
+ * REQ only copies one out.
+ *
+ * A challenge is 64 ASCII characters: 50 drawn from a SecureRandom, then the
+ * time as yyyyMMddHHmmss. The pool keeps only the random part; the time is
+ * added when the challenge is taken, so a challenge that waited in the pool
+ * still carries the time it was handed out.
+ *
+ * The pool is a ring with one producer and any number of consumers. Every
+ * slot has a sequence number telling whether it is filled (Vyukov's bounded
+ * queue): a consumer claims the next slot with one CAS, copies it and hands
+ * the slot back by advancing its sequence. Nothing is locked, and the random
+ * source is only touched by the producer. When the pool is empty the caller
+ * makes the challenge itself with a SecureRandom of its own thread, and the
+ * miss is counted.
+ */
+public class ChallengePool implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int CHALLENGE_LENGTH = 64;
+
+    private static final byte[] CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final int TIMESTAMP_LENGTH = 14;
+    private static final int RANDOM_LENGTH = CHALLENGE_LENGTH - TIMESTAMP_LENGTH;
+    // How long the producer sleeps when the pool is full, in nanoseconds
+    private static final long FULL_PARK = 10000000;
+    // Random bytes are drawn this many at a time, a SecureRandom call costs far more than its bytes
+    private static final int RANDOM_BATCH = 1024;
+
+    private static final ThreadLocal<Source> SOURCE = new ThreadLocal<Source>() {
+        @Override
+        protected Source initialValue() {
+            return new Source();
+        }
+    };
+    private static volatile Stamp stamp = new Stamp(-1, new byte[TIMESTAMP_LENGTH]);
+
+    private final byte[] challenges;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    // Only written by the producer
+    private volatile long tail;
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a pool, its producer thread is started by {@link #start}.
+     * @param capacity number of challenges kept ready, rounded up to a power of two
+     */
+    ChallengePool(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        challenges = new byte[slots * RANDOM_LENGTH];
+        sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++)
+            sequences.set(i, i);
+        mask = slots - 1;
+    }
+
+    /**
+     * Starts a pool of DEFAULT_CAPACITY challenges.
+     * @param name name of the producer thread
+     * @return the pool
+     */
+    public static ChallengePool start(String name) {
+        ChallengePool pool = new ChallengePool(DEFAULT_CAPACITY);
+        Thread t = new Thread(pool, name);
+        t.setDaemon(true);
+        t.start();
+        return pool;
+    }
+
+    /**
+     * Writes a challenge, from the pool or made on the spot if it is empty.
+     * @param dst array receiving the 64 ASCII characters
+     * @param offset where to write in the array
+     */
+    public void next(byte[] dst, int offset) {
+        long pos = head.get();
+        while (true) {
+            int slot = (int) pos & mask;
+            long seq = sequences.get(slot);
+            if (seq == pos + 1) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    System.arraycopy(challenges, slot * RANDOM_LENGTH, dst, offset, RANDOM_LENGTH);
+                    sequences.set(slot, pos + mask + 1);
+                    break;
+                }
+                pos = head.get();
+            } else if (seq - (pos + 1) < 0) {
+                // Empty, the producer has not caught up
+                misses.increment();
+                SOURCE.get().fill(dst, offset, RANDOM_LENGTH);
+                break;
+            } else {
+                // Another consumer took it first
+                pos = head.get();
+            }
+        }
+        System.arraycopy(timestamp(), 0, dst, offset + RANDOM_LENGTH, TIMESTAMP_LENGTH);
+    }
+
+    /**
+     * Makes a challenge on the calling thread, for servers that run without a pool.
+     * @param dst array receiving the 64 ASCII characters
+     * @param offset where to write in the array
+     */
+    public static void generate(byte[] dst, int offset) {
+        SOURCE.get().fill(dst, offset, RANDOM_LENGTH);
+        System.arraycopy(timestamp(), 0, dst, offset + RANDOM_LENGTH, TIMESTAMP_LENGTH);
+    }
+
+    /**
+     * @return number of challenges ready to be taken
+     */
+    public int size() {
+        return (int) Math.max(0, tail - head.get());
+    }
+
+    /**
+     * @return number of challenges made on a request thread because the pool was empty
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void run() {
+        Source source = SOURCE.get();
+        long pos = tail;
+        while (true) {
+            int slot = (int) pos & mask;
+            if (sequences.get(slot) != pos) {
+                // Full until a consumer hands the slot back
+                LockSupport.parkNanos(FULL_PARK);
+                continue;
+            }
+            source.fill(challenges, slot * RANDOM_LENGTH, RANDOM_LENGTH);
+            sequences.set(slot, pos + 1);
+            tail = ++pos;
+        }
+    }
+
+    /**
+     * The random bytes of one thread, drawn RANDOM_BATCH at a time.
+     */
+    private static final class Source {
+        final SecureRandom random;
+        final byte[] bytes = new byte[RANDOM_BATCH];
+        int used = RANDOM_BATCH;
+
+        Source() {
+            SecureRandom r;
+            try {
+                // Its own instance, without the lock NativePRNG shares between its instances
+                r = SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                r = new SecureRandom();
+            }
+            random = r;
+        }
+
+        /**
+         * Writes random characters of CHARS. Random bytes that would favour
+         * some characters over others are skipped.
+         */
+        void fill(byte[] dst, int offset, int length) {
+            for (int i = 0; i < length; ) {
+                if (used == RANDOM_BATCH) {
+                    random.nextBytes(bytes);
+                    used = 0;
+                }
+                int b = bytes[used++] & 0x3f;
+                if (b < CHARS.length)
+                    dst[offset + i++] = CHARS[b];
+            }
+        }
+    }
+
+    /**
+     * @return the time as yyyyMMddHHmmss in ASCII, formatted again only when the second changes
+     */
+    private static byte[] timestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        Stamp s = stamp;
+        if (s.second != second) {
+            String time = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date(second * 1000));
+            byte[] text = new byte[TIMESTAMP_LENGTH];
+            for (int i = 0; i < TIMESTAMP_LENGTH; i++)
+                text[i] = (byte) time.charAt(i);
+            s = new Stamp(second, text);
+            stamp = s;
+        }
+        return s.text;
+    }
+
+    private static final class Stamp {
+        final long second;
+        final byte[] text;
+
+        Stamp(long second, byte[] text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
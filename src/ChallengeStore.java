@@ -0,0 +1,321 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size store for the challenge strings handed out in CHA messages.
+ *
+ * Keys are the client address and port packed into a long (see {@link #key}).
+ * Entries live in primitive arrays organised as a set associative table: a key
+ * can only be stored in one of WAYS slots of its set, and when all of them are
+ * taken by live entries the oldest one is evicted. Memory therefore never grows
+ * past the capacity given at construction, no matter how many clients have
+ * sent a REQ.
+ *
+ * The table is split into stripes, each with its own lock and its own timer
+ * wheel. The wheel has one bucket per second of the time to live; every insert
+ * records its slot in the bucket of the current second, and when the wheel
+ * comes around to that bucket again the slots in it are cleared. Buckets start
+ * at an even share of the slots and grow when a busy second needs more. Lookups
+ * also check the issue time, so a challenge is never accepted after its ttl even
+ * if the wheel has not turned yet.
+ */
+public class ChallengeStore {
+
+    public static final int FOUND = 0;
+    public static final int MISSING = 1;
+    public static final int EXPIRED = 2;
+
+    public static final int CHALLENGE_LENGTH = 64;
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final long DEFAULT_TTL = 10000;
+
+    private static final int WAYS = 4;
+    private static final int STRIPES = 16;
+    private static final long TICK = 1000;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttl;
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a store holding DEFAULT_CAPACITY challenges for DEFAULT_TTL milliseconds.
+     */
+    public ChallengeStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL);
+    }
+
+    /**
+     * Creates a store.
+     * @param capacity maximum number of challenges held at once, rounded up to a power of two
+     * @param ttl how long a challenge stays valid, in milliseconds
+     */
+    public ChallengeStore(int capacity, long ttl) {
+        int setsPerStripe = Integer.highestOneBit(Math.max(capacity / (STRIPES * WAYS) - 1, 1)) << 1;
+        int wheelSize = (int) ((ttl + TICK - 1) / TICK) + 2;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(setsPerStripe, wheelSize);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Packs a client address and port into a store key.
+     * IPv4 addresses are packed exactly. IPv6 addresses are folded into 47 bits,
+     * so two of them can share a key; a client that loses that race gets a
+     * challenge it does not know and fails its URH like any wrong hash.
+     * @param address the client address
+     * @param port the client port
+     * @return the key, never 0
+     */
+    public static long key(InetAddress address, int port) {
+        if (address instanceof Inet4Address) {
+            // hashCode() of an Inet4Address is the address itself, and unlike getAddress() it does not copy
+            long ip = address.hashCode() & 0xffffffffL;
+            return (1L << 48) | (ip << 16) | (port & 0xffff);
+        }
+        byte[] a = address.getAddress();
+        long h = 0;
+        for (byte b : a)
+            h = h * 31 + (b & 0xff);
+        return (1L << 63) | ((mix(h) & 0x7fffffffffffL) << 16) | (port & 0xffff);
+    }
+
+    /**
+     * Packs a client address, port and the correlation id of one handshake in a
+     * batch into a store key, so every handshake of a batch has its own challenge.
+     * The id goes into bits 49-62, which {@link #key(InetAddress, int)} leaves
+     * clear for IPv4; IPv6 keys are folded a little further.
+     * @param address the client address
+     * @param port the client port
+     * @param id the correlation id, 0 to WireCodec.MAX_CORRELATION_ID
+     * @return the key, never 0 and never the key of a single handshake from the same IPv4 client
+     */
+    public static long key(InetAddress address, int port, int id) {
+        return key(address, port) ^ ((long) (id + 1) << 49);
+    }
+
+    /**
+     * Stores the challenge for a client, replacing any previous one.
+     * @param key the client key
+     * @param challenge CHALLENGE_LENGTH bytes of challenge
+     * @param offset where the challenge starts in the array
+     */
+    public void put(long key, byte[] challenge, int offset) {
+        stripe(key).put(key, challenge, offset, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Stores the challenge for a client, replacing any previous one.
+     * @param key the client key
+     * @param challenge a CHALLENGE_LENGTH character ASCII challenge
+     */
+    public void put(long key, String challenge) {
+        put(key, challenge.getBytes(StandardCharsets.US_ASCII), 0);
+    }
+
+    /**
+     * Stores an entry only if the key has no live entry yet. Unlike put() it
+     * never evicts: when the set of the key is full of live entries nothing is
+     * stored, so a key once added is held for the whole ttl.
+     * @param key the key
+     * @param value CHALLENGE_LENGTH bytes to store with it
+     * @param offset where the value starts in the array
+     * @return whether the entry was stored, false if the key is already held or its set is full
+     */
+    public boolean add(long key, byte[] value, int offset) {
+        return stripe(key).put(key, value, offset, System.currentTimeMillis(), false);
+    }
+
+    /**
+     * Copies the challenge of a client into the given array.
+     * @param key the client key
+     * @param dst array receiving CHALLENGE_LENGTH bytes
+     * @param offset where to write in the array
+     * @return FOUND, MISSING or EXPIRED
+     */
+    public int get(long key, byte[] dst, int offset) {
+        return stripe(key).get(key, dst, offset, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of challenges currently held
+     */
+    public int size() {
+        long now = System.currentTimeMillis();
+        int size = 0;
+        for (Stripe s : stripes) {
+            // Stripes only turn their wheel when used, bring idle ones up to date first
+            s.lock.lock();
+            try {
+                s.advance(now);
+            } finally {
+                s.lock.unlock();
+            }
+            size += s.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of challenges removed by the timer wheel after their ttl
+     */
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return the number of live challenges dropped because their set was full
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private Stripe stripe(long key) {
+        return stripes[(int) (mix(key) >>> 60) & (STRIPES - 1)];
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final int setMask;
+        final long[] keys;
+        final long[] issued;
+        final byte[] values;
+        final int[][] wheel;
+        final int[] wheelCount;
+        final boolean[] wheelOverflow;
+        long wheelTick;
+        int size;
+
+        Stripe(int sets, int wheelSize) {
+            int slots = sets * WAYS;
+            setMask = sets - 1;
+            keys = new long[slots];
+            issued = new long[slots];
+            values = new byte[slots * CHALLENGE_LENGTH];
+            // An even spread of the slots over the seconds of the ttl, grown on demand
+            int bucketSize = Math.max(slots / Math.max(wheelSize - 2, 1), 1);
+            wheel = new int[wheelSize][bucketSize];
+            wheelCount = new int[wheelSize];
+            wheelOverflow = new boolean[wheelSize];
+        }
+
+        boolean put(long key, byte[] challenge, int offset, long now, boolean replace) {
+            lock.lock();
+            try {
+                advance(now);
+                int base = ((int) mix(key) & setMask) * WAYS;
+                int target = -1;
+                for (int i = base; i < base + WAYS; i++) {
+                    if (keys[i] == key) {
+                        if (!replace && now - issued[i] <= ttl)
+                            return false;
+                        target = i;
+                        break;
+                    }
+                    // Not cleared by the wheel yet, reclaim it here
+                    expire(i, now);
+                    if (keys[i] == 0 && target < 0)
+                        target = i;
+                }
+                if (target < 0) {
+                    if (!replace)
+                        return false;
+                    // Set is full of live entries, make room by dropping the oldest
+                    target = base;
+                    for (int i = base + 1; i < base + WAYS; i++)
+                        if (issued[i] < issued[target])
+                            target = i;
+                    evictions.increment();
+                    size--;
+                }
+                if (keys[target] != key)
+                    size++;
+                keys[target] = key;
+                issued[target] = now;
+                System.arraycopy(challenge, offset, values, target * CHALLENGE_LENGTH, CHALLENGE_LENGTH);
+
+                int bucket = (int) (wheelTick % wheel.length);
+                if (wheelCount[bucket] == wheel[bucket].length && wheel[bucket].length < keys.length)
+                    wheel[bucket] = Arrays.copyOf(wheel[bucket], Math.min(wheel[bucket].length * 2, keys.length));
+                // A full size bucket only fills up when slots are reused within one tick, it is then swept as a whole
+                if (wheelCount[bucket] < wheel[bucket].length)
+                    wheel[bucket][wheelCount[bucket]++] = target;
+                else
+                    wheelOverflow[bucket] = true;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int get(long key, byte[] dst, int offset, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                int base = ((int) mix(key) & setMask) * WAYS;
+                for (int i = base; i < base + WAYS; i++) {
+                    if (keys[i] != key)
+                        continue;
+                    if (now - issued[i] > ttl)
+                        return EXPIRED;
+                    System.arraycopy(values, i * CHALLENGE_LENGTH, dst, offset, CHALLENGE_LENGTH);
+                    return FOUND;
+                }
+                return MISSING;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Turns the wheel up to the current tick, clearing every bucket it passes.
+         * Entries are cleared one tick after they expire so that lookups in between
+         * can still tell an expired challenge from a missing one.
+         */
+        private void advance(long now) {
+            long tick = now / TICK;
+            if (wheelTick == 0)
+                wheelTick = tick;
+            int turns = 0;
+            while (wheelTick < tick && turns++ < wheel.length) {
+                wheelTick++;
+                int bucket = (int) (wheelTick % wheel.length);
+                if (wheelOverflow[bucket]) {
+                    for (int slot = 0; slot < keys.length; slot++)
+                        expire(slot, now);
+                    wheelOverflow[bucket] = false;
+                } else {
+                    for (int n = 0; n < wheelCount[bucket]; n++)
+                        expire(wheel[bucket][n], now);
+                }
+                wheelCount[bucket] = 0;
+            }
+            wheelTick = Math.max(wheelTick, tick);
+        }
+
+        /**
+         * Clears a slot if it holds an expired entry. Slots listed in the wheel
+         * may have been reused since, those are left alone.
+         */
+        private void expire(int slot, long now) {
+            if (keys[slot] != 0 && now - issued[slot] > ttl) {
+                keys[slot] = 0;
+                size--;
+                expirations.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Converts a plain user list into the index file read by {@link MappedCredentialStore}.
+ *
+ * The list has one user per line, username and password separated by
+ * whitespace or a colon. Blank lines and lines starting with # are skipped.
+ * The index is written straight into a mapped output file, so building it
+ * for millions of users does not need a large heap either. It is written next
+ * to the index file and renamed over it once complete, so a server that has
+ * the old index mapped keeps reading it until it reloads the new one whole
+ * (see {@link ReloadingCredentialStore}).
+ *
+ * usage: CredentialIndexBuilder [user list] [index file]
+ */
+public class CredentialIndexBuilder {
+
+    // Keeps probe sequences short, the table is at most 70% full
+    private static final double LOAD_FACTOR = 0.7;
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 2) {
+            System.out.println("usage: CredentialIndexBuilder [user list] [index file]");
+            System.exit(0);
+        }
+        long start = System.currentTimeMillis();
+        int users = build(args[0], args[1]);
+        System.out.println("Indexed " + users + " users in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Builds an index file.
+     * @param listPath the plain user list
+     * @param indexPath the index file to write, replaced if it exists
+     * @return the number of distinct users written
+     * @throws IOException if a file cannot be read or written, or the list is invalid
+     */
+    public static int build(String listPath, String indexPath) throws IOException {
+        Path target = Paths.get(indexPath).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        int users;
+        try {
+            users = write(listPath, temp.toString());
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return users;
+    }
+
+    private static int write(String listPath, String indexPath) throws IOException {
+        int slots = slotsFor(countLines(listPath));
+        long size = MappedCredentialStore.HEADER_LENGTH + (long) slots * MappedCredentialStore.SLOT_LENGTH;
+
+        RandomAccessFile file = new RandomAccessFile(indexPath, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(size);
+            MappedByteBuffer index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int users = 0;
+            byte[] record = new byte[CredentialStore.MAX_CREDENTIALS_LENGTH];
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listPath), StandardCharsets.US_ASCII));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    String[] fields = line.split("[\\s:]+");
+                    if (fields.length != 2 || !valid(fields[0]) || !valid(fields[1]))
+                        throw new IOException("Invalid user on line " + lineNumber + " of " + listPath);
+                    int nameLength = fields[0].length();
+                    int length = nameLength + fields[1].length();
+                    for (int i = 0; i < nameLength; i++)
+                        record[i] = (byte) fields[0].charAt(i);
+                    for (int i = nameLength; i < length; i++)
+                        record[i] = (byte) fields[1].charAt(i - nameLength);
+                    if (insert(index, slots - 1, record, nameLength, length))
+                        users++;
+                }
+            } finally {
+                reader.close();
+            }
+            index.putInt(0, MappedCredentialStore.MAGIC);
+            index.putInt(4, MappedCredentialStore.VERSION);
+            index.putInt(8, slots);
+            index.putInt(12, users);
+            index.force();
+            return users;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a user into its slot, replacing an earlier entry with the same username.
+     * @return whether the user is new
+     */
+    private static boolean insert(MappedByteBuffer index, int mask, byte[] record, int nameLength, int length) {
+        int slot = MappedCredentialStore.hash(record, 0, nameLength) & mask;
+        while (true) {
+            int base = MappedCredentialStore.HEADER_LENGTH + slot * MappedCredentialStore.SLOT_LENGTH;
+            int existing = index.get(base);
+            boolean same = existing == nameLength;
+            for (int i = 0; same && i < nameLength; i++)
+                same = index.get(base + 2 + i) == record[i];
+            if (existing == 0 || same) {
+                index.put(base, (byte) nameLength);
+                index.put(base + 1, (byte) length);
+                for (int i = 0; i < MappedCredentialStore.SLOT_LENGTH - 2; i++)
+                    index.put(base + 2 + i, i < length ? record[i] : 0);
+                return existing == 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean valid(String field) {
+        return field.length() >= 1 && field.length() <= CredentialStore.MAX_FIELD_LENGTH
+                && field.matches("^[a-zA-Z0-9_]+$");
+    }
+
+    private static int slotsFor(long users) throws IOException {
+        long needed = (long) Math.ceil(users / LOAD_FACTOR) + 1;
+        if (needed > MappedCredentialStore.MAX_SLOTS)
+            throw new IOException("Too many users for one index: " + users);
+        return Integer.highestOneBit((int) Math.max(needed - 1, 1)) << 1;
+    }
+
+    private static long countLines(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.US_ASCII));
+        try {
+            long lines = 0;
+            while (reader.readLine() != null)
+                lines++;
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Source of the passwords the servers check URH hashes against.
+ *
+ * A lookup returns the username + password bytes, which is the part of the
+ * MD5 input that does not depend on the challenge (see {@link HashVerifier}).
+ * Usernames and passwords are 1 to MAX_FIELD_LENGTH ASCII characters, the same
+ * rule the clients enforce.
+ */
+public interface CredentialStore {
+
+    int MAX_FIELD_LENGTH = 15;
+    int MAX_CREDENTIALS_LENGTH = 2 * MAX_FIELD_LENGTH;
+
+    /**
+     * Looks up a user.
+     * @param username array holding the ASCII username
+     * @param offset where the username starts in the array
+     * @param length length of the username
+     * @param dst array of at least MAX_CREDENTIALS_LENGTH bytes receiving username + password
+     * @return the number of bytes written to dst, or -1 if the user does not exist
+     */
+    int lookup(byte[] username, int offset, int length, byte[] dst);
+}
@@ -0,0 +1,220 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The debug output of the servers (-d), written by a background thread so
+ * that request threads never format text or wait on a stream.
+ *
+ * Events go into an {@link EventRing} of slots holding only primitive fields
+ * and references the caller already has. The time comes from a clock the
+ * writer thread refreshes about once a millisecond, so recording an event does
+ * not read the system clock either. The number of events dropped because the
+ * ring was full is written to the log once the writer catches up.
+ */
+public class DebugLog extends EventRing<DebugLog.Slot> {
+
+    // Events
+    public static final int CONNECTED = 0;
+    public static final int CHALLENGED = 1;
+    public static final int AUTHENTICATED = 2;
+    public static final int REJECTED = 3;
+    public static final int MESSAGE = 4;
+    public static final int BUSY = 5;
+    public static final int EVICTED = 6;
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static final int MAX_USERNAME_LENGTH = 15;
+    // Why a client got AUT0, indexed by the ServerMetrics reason
+    private static final String[] REASONS = {"message malformed", "wrong message type", "username has wrong length",
+            "hash not in the right format", "username does not exist", "IP does not have a challenge string",
+            "IP has an expired challenge", "hash not correct", "ticket not valid or expired", "over the rate limit",
+            "ticket already used"};
+    // Why a client got AUT2, indexed by the ServerMetrics shed cause
+    private static final String[] SHED_CAUSES = {"queue full", "waited too long in the queue"};
+    // Why a connection was closed, indexed by the ServerMetrics eviction cause
+    private static final String[] EVICTION_CAUSES = {"sent nothing in time", "sent a message too slowly",
+            "handshake took too long"};
+
+    private volatile long clock = System.currentTimeMillis();
+    private final Writer out;
+    // Only used by the writer thread
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH.mm.ss.SSS");
+    private final Date date = new Date();
+    private final StringBuilder line = new StringBuilder();
+    private long reported;
+
+    /**
+     * Creates a log, the writer thread is started by {@link #open}.
+     * @param out where the lines go
+     * @param capacity number of events buffered, rounded up to a power of two
+     */
+    DebugLog(OutputStream out, int capacity) {
+        super(capacity);
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Starts a log of DEFAULT_CAPACITY events.
+     * @param file the file to append to, or null for stdout
+     * @return the log
+     * @throws IOException if the file cannot be opened
+     */
+    public static DebugLog open(String file) throws IOException {
+        DebugLog log = new DebugLog(file == null ? System.out : new FileOutputStream(file, true), DEFAULT_CAPACITY);
+        log.start("debug-log");
+        return log;
+    }
+
+    /**
+     * Records an event, or counts it as dropped if the ring is full.
+     * @param event CONNECTED, CHALLENGED, AUTHENTICATED, REJECTED, BUSY or EVICTED
+     * @param reason the ServerMetrics reason of a REJECTED or cause of a BUSY or EVICTED, ignored otherwise
+     * @param address the client address
+     * @param port the client port
+     * @param username the username sent by the client, or null
+     * @param usernameLength length of the username, 0 if unknown
+     */
+    public void log(int event, int reason, InetAddress address, int port, byte[] username, int usernameLength) {
+        Slot s = claim();
+        if (s == null)
+            return;
+        s.time = clock;
+        s.event = event;
+        s.reason = reason;
+        s.address = address;
+        s.port = port;
+        s.usernameLength = username == null ? 0 : Math.min(usernameLength, MAX_USERNAME_LENGTH);
+        if (s.usernameLength > 0)
+            System.arraycopy(username, 0, s.username, 0, s.usernameLength);
+        s.text = null;
+        publish(s);
+    }
+
+    /**
+     * Records a line of free text. Meant for startup and errors, the caller
+     * builds the string.
+     * @param text the line
+     */
+    public void message(String text) {
+        Slot s = claim();
+        if (s == null)
+            return;
+        s.time = clock;
+        s.event = MESSAGE;
+        s.address = null;
+        s.text = text;
+        publish(s);
+    }
+
+    @Override
+    protected Slot newSlot() {
+        return new Slot();
+    }
+
+    @Override
+    protected void write(Slot s) {
+        clock = System.currentTimeMillis();
+        date.setTime(s.time);
+        line.setLength(0);
+        line.append('[').append(timeFormat.format(date)).append("] ");
+        format(s, line);
+        s.address = null;
+        s.text = null;
+        writeLine();
+    }
+
+    @Override
+    protected void idle() {
+        clock = System.currentTimeMillis();
+        long lost = dropped();
+        if (lost > reported) {
+            line.setLength(0);
+            line.append(lost - reported).append(" debug events dropped");
+            reported = lost;
+            writeLine();
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+    }
+
+    private static void format(Slot s, StringBuilder line) {
+        switch (s.event) {
+        case CONNECTED:
+            line.append("Handling client at ").append(s.address.getHostAddress()).append(" on port ").append(s.port);
+            return;
+        case CHALLENGED:
+            line.append("Sent CHA to ");
+            client(s, line);
+            return;
+        case AUTHENTICATED:
+            line.append("Authenticated ");
+            username(s, line);
+            client(s, line);
+            return;
+        case REJECTED:
+            line.append("Failed to authenticate ");
+            username(s, line);
+            client(s, line);
+            line.append(": ").append(s.reason < REASONS.length ? REASONS[s.reason] : "unknown reason");
+            return;
+        case BUSY:
+            line.append("Server busy, shed ");
+            client(s, line);
+            line.append(": ").append(s.reason < SHED_CAUSES.length ? SHED_CAUSES[s.reason] : "unknown cause");
+            return;
+        case EVICTED:
+            line.append("Closed connection of ");
+            client(s, line);
+            line.append(": ").append(s.reason < EVICTION_CAUSES.length ? EVICTION_CAUSES[s.reason] : "unknown cause");
+            return;
+        default:
+            line.append(s.text);
+        }
+    }
+
+    private static void client(Slot s, StringBuilder line) {
+        line.append(s.address.getHostAddress()).append(':').append(s.port);
+    }
+
+    private static void username(Slot s, StringBuilder line) {
+        if (s.usernameLength == 0)
+            return;
+        for (int i = 0; i < s.usernameLength; i++)
+            line.append((char) (s.username[i] & 0xff));
+        line.append(" at ");
+    }
+
+    private void writeLine() {
+        try {
+            out.append(line).append(System.lineSeparator());
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+    }
+
+    /**
+     * One event.
+     */
+    static final class Slot extends EventRing.Slot {
+        long time;
+        int event;
+        int reason;
+        InetAddress address;
+        int port;
+        final byte[] username = new byte[MAX_USERNAME_LENGTH];
+        int usernameLength;
+        String text;
+    }
+}
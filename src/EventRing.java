@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ring behind {@link DebugLog} and {@link TrafficCapture}: request threads
+ * record events into it without waiting, and a background thread writes them
+ * out.
+ *
+ * The ring is an array of preallocated slots. A request thread claims the next
+ * one with a single CAS on the head, fills in its fields and publishes it with
+ * a volatile write of its sequence. The writer thread, the only one to move
+ * the tail, writes the published slots out in order, and when it catches up
+ * or finds the next slot claimed but not filled in yet it parks for about a
+ * millisecond. When it falls a whole ring behind, new events are dropped and
+ * counted instead of blocking the request.
+ *
+ * Subclasses add the fields of their events to {@link Slot} and say how a slot
+ * is written out.
+ */
+public abstract class EventRing<S extends EventRing.Slot> implements Runnable {
+
+    private static final long TICK = 1000000;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    // Only written by the writer thread
+    private volatile long tail;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates the ring, filled with slots from {@link #newSlot}.
+     * @param capacity number of events buffered, rounded up to a power of two
+     */
+    protected EventRing(int capacity) {
+        slots = new Slot[Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = newSlot();
+        mask = slots.length - 1;
+    }
+
+    /**
+     * Starts the writer thread, a daemon.
+     * @param name name of the thread
+     */
+    protected void start(String name) {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Creates an empty slot. Called from the constructor, before the fields of
+     * the subclass are set.
+     * @return the slot
+     */
+    protected abstract S newSlot();
+
+    /**
+     * Writes out a published slot, on the writer thread. It should drop the
+     * references the slot holds, so they do not stay reachable until the ring
+     * comes round again.
+     * @param s the slot
+     */
+    protected abstract void write(S s);
+
+    /**
+     * Called on the writer thread when it has nothing to write, before it parks.
+     * Meant to flush what was written.
+     */
+    protected abstract void idle();
+
+    /**
+     * Takes the next free slot for the calling thread, which fills it in and
+     * then hands it to {@link #publish}.
+     * @return the slot, or null if the writer is a whole ring behind and the event is dropped
+     */
+    @SuppressWarnings("unchecked")
+    protected final S claim() {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= slots.length) {
+                dropped.increment();
+                return null;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        Slot s = slots[(int) sequence & mask];
+        s.claimed = sequence;
+        return (S) s;
+    }
+
+    /**
+     * Makes a filled in slot visible to the writer.
+     * @param s the slot returned by {@link #claim}
+     */
+    protected final void publish(S s) {
+        s.sequence = s.claimed;
+    }
+
+    /**
+     * @return the number of events written, not counting those dropped
+     */
+    protected final long written() {
+        return tail;
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        while (true) {
+            Slot s = slots[(int) tail & mask];
+            if (s.sequence == tail) {
+                write((S) s);
+                tail = tail + 1;
+                continue;
+            }
+            // Caught up, or the next slot is claimed but not filled in yet
+            idle();
+            LockSupport.parkNanos(TICK);
+        }
+    }
+
+    /**
+     * One event. The fields of a subclass are written by the thread that
+     * claimed the slot and become visible to the writer with the volatile
+     * write of the sequence.
+     */
+    public static class Slot {
+        volatile long sequence = -1;
+        long claimed;
+    }
+}
@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checks the MD5 a client sent in its URH without building Strings.
+ *
+ * The expected hash is MD5(username + password + challenge). A
+ * {@link CredentialStore} hands out the username + password bytes of a user,
+ * so a check only feeds those and the 64 challenge bytes into a digest owned
+ * by the calling thread and compares the raw result in constant time.
+ *
+ * Instances are confined to one thread; get the calling thread's one with
+ * {@link #get()}. They also hold scratch arrays for the username, credentials,
+ * challenge and the client's hash so callers do not need to allocate their own.
+ */
+public final class HashVerifier {
+
+    public static final int DIGEST_LENGTH = 16;
+    public static final int CHALLENGE_LENGTH = 64;
+
+    private static final ThreadLocal<HashVerifier> LOCAL = new ThreadLocal<HashVerifier>() {
+        @Override
+        protected HashVerifier initialValue() {
+            return new HashVerifier();
+        }
+    };
+
+    private final MessageDigest md;
+    private final byte[] expected = new byte[DIGEST_LENGTH];
+    private final byte[] challenge = new byte[CHALLENGE_LENGTH];
+    private final byte[] userhash = new byte[DIGEST_LENGTH];
+    private final byte[] username = new byte[CredentialStore.MAX_FIELD_LENGTH];
+    private final byte[] credentials = new byte[CredentialStore.MAX_CREDENTIALS_LENGTH];
+
+    private HashVerifier() {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * @return the verifier of the calling thread
+     */
+    public static HashVerifier get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Encodes the part of the hash input that only depends on the user.
+     * @param username the username
+     * @param password the password
+     * @return the UTF-8 bytes of username + password
+     */
+    public static byte[] credentials(String username, String password) {
+        return (username + password).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return scratch array of CHALLENGE_LENGTH bytes to copy the client's challenge into
+     */
+    public byte[] challenge() {
+        return challenge;
+    }
+
+    /**
+     * @return scratch array of DIGEST_LENGTH bytes to decode the client's hash into
+     */
+    public byte[] userhash() {
+        return userhash;
+    }
+
+    /**
+     * @return scratch array of CredentialStore.MAX_FIELD_LENGTH bytes to copy the client's username into
+     */
+    public byte[] username() {
+        return username;
+    }
+
+    /**
+     * @return scratch array of CredentialStore.MAX_CREDENTIALS_LENGTH bytes for a {@link CredentialStore} lookup
+     */
+    public byte[] credentials() {
+        return credentials;
+    }
+
+    /**
+     * Checks a raw hash sent by a client.
+     * @param credentials array holding the user's username + password bytes
+     * @param length number of credential bytes
+     * @param challenge array holding the CHALLENGE_LENGTH byte challenge
+     * @param hash array holding the client's raw hash
+     * @param offset where the hash starts in the array
+     * @return whether the hash matches
+     */
+    public boolean verify(byte[] credentials, int length, byte[] challenge, byte[] hash, int offset) {
+        compute(credentials, length, challenge);
+        int diff = 0;
+        for (int i = 0; i < DIGEST_LENGTH; i++)
+            diff |= expected[i] ^ hash[offset + i];
+        return diff == 0;
+    }
+
+    private void compute(byte[] credentials, int length, byte[] challenge) {
+        md.update(credentials, 0, length);
+        md.update(challenge, 0, CHALLENGE_LENGTH);
+        try {
+            md.digest(expected, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes 32 hex characters, as sent in a text URH, into {@link #userhash()}.
+     * @param s the string holding the hash
+     * @param offset where the hash starts in the string
+     * @return false if the characters are not valid hex
+     */
+    public boolean parseHex(String s, int offset) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int hi = Character.digit(s.charAt(offset + 2*i), 16);
+            int lo = Character.digit(s.charAt(offset + 2*i + 1), 16);
+            if (hi < 0 || lo < 0)
+                return false;
+            userhash[i] = (byte) ((hi << 4) | lo);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes 32 hex characters, as sent in a text URH, into {@link #userhash()}
+     * straight from the buffer a datagram was received into.
+     * @param buf the buffer holding the hash as ASCII
+     * @param index where the hash starts in the buffer, ignoring its position
+     * @return false if the characters are not valid hex
+     */
+    public boolean parseHex(ByteBuffer buf, int index) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int hi = Character.digit((char) (buf.get(index + 2*i) & 0xff), 16);
+            int lo = Character.digit((char) (buf.get(index + 2*i + 1) & 0xff), 16);
+            if (hi < 0 || lo < 0)
+                return false;
+            userhash[i] = (byte) ((hi << 4) | lo);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Histogram of latencies in nanoseconds with the bucket layout of an HDR
+ * histogram: exact up to 127, then 64 linear buckets per power of two, so any
+ * value is reported within 1.6% of what was recorded and the whole range of a
+ * long fits in under 4000 counters.
+ *
+ * Not thread safe. Each thread records into its own histogram and they are
+ * combined with {@link #add} once recording is over. Histograms recorded
+ * concurrently elsewhere use the same layout through {@link #bucket} and are
+ * copied into one of these to be read (see ServerMetrics).
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    /**
+     * @param value the latency in nanoseconds, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        total++;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Adds values counted elsewhere to one bucket.
+     * @param bucket the bucket, from {@link #bucket}
+     * @param count number of values in it
+     * @param max the largest of all values recorded there, exactly
+     */
+    void add(int bucket, long count, long max) {
+        counts[bucket] += count;
+        total += count;
+        this.max = Math.max(this.max, max);
+    }
+
+    /**
+     * @param value the latency in nanoseconds, not negative
+     * @return the bucket counting the value
+     */
+    static int bucket(long value) {
+        return index(value);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+        return total;
+    }
+
+    /**
+     * @return the largest value recorded, exactly
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value at or below which the given share of values fall, 0 if empty
+     */
+    public long percentile(double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), max);
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many handshakes at once against one server and reports how they went.
+ * Used by the -l mode of {@link TCPClient} and {@link UDPClient}, which supply
+ * the protocol as a {@link Session}.
+ *
+ * Without a rate each worker thread starts its next handshake as soon as the
+ * last one ends, keeping the given number in flight. With a rate, handshakes
+ * are scheduled at fixed intervals and taken by the next free worker, and the
+ * total latency is taken from the scheduled start, so time spent waiting for a
+ * free worker while the server is slow counts against the server.
+ *
+ * Latencies are kept per phase: connect (TCP only), REQ to CHA and URH to AUT,
+ * plus the total.
+ */
+public abstract class LoadGenerator {
+
+    public static final int CONNECT = 0;
+    public static final int CHALLENGE = 1;
+    public static final int AUTHENTICATION = 2;
+    private static final int TOTAL = 3;
+    private static final String[] PHASES = {"connect", "REQ->CHA", "URH->AUT", "total"};
+
+    private static final int REJECTED = 0;
+    private static final int TIMEOUT = 1;
+    private static final int REFUSED = 2;
+    private static final int CLOSED = 3;
+    private static final int UNEXPECTED = 4;
+    private static final int IO_ERROR = 5;
+    private static final int BUSY = 6;
+    private static final String[] FAILURES = {"rejected (AUT0)", "timeout", "connection refused", "closed by server",
+            "unexpected message", "other I/O error", "server busy (AUT2)"};
+
+    /**
+     * One client's connection to the server, used by a single worker thread for
+     * handshake after handshake. A session that threw is closed and replaced.
+     */
+    protected interface Session {
+
+        /**
+         * Runs one handshake, calling {@link Phases#lap} as each phase ends.
+         * @param username the user
+         * @param password the password
+         * @param phases the worker's phase timer
+         * @return whether the server answered AUT1
+         * @throws IOException on timeouts, connection problems and {@link UnexpectedMessage}
+         */
+        boolean handshake(String username, String password, Phases phases) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Thrown by a session when the server answers with something the handshake does not expect.
+     */
+    protected static class UnexpectedMessage extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnexpectedMessage(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown by a session when the server sheds the handshake with AUT2.
+     */
+    protected static class ServerBusy extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ServerBusy() {
+            super("Server busy");
+        }
+    }
+
+    /**
+     * Per worker latency recording, handed to {@link Session#handshake}.
+     */
+    protected static final class Phases {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        private long last;
+
+        private Phases() {
+            for (int i = 0; i < histograms.length; i++)
+                histograms[i] = new LatencyHistogram();
+        }
+
+        /**
+         * Records the time since the previous phase ended, or the handshake started.
+         * @param phase CONNECT, CHALLENGE or AUTHENTICATION
+         */
+        public void lap(int phase) {
+            long now = System.nanoTime();
+            histograms[phase].record(now - last);
+            last = now;
+        }
+    }
+
+    private final String[][] users;
+    private final int concurrency;
+    private final double rate;
+    private final long duration;
+    private final AtomicLong issued = new AtomicLong();
+
+    /**
+     * @param users username and password pairs, used in turn
+     * @param concurrency number of worker threads, the most handshakes in flight
+     * @param rate handshakes per second to start, or 0 to keep every worker busy
+     * @param duration how long to run, in seconds
+     */
+    protected LoadGenerator(String[][] users, int concurrency, double rate, int duration) {
+        this.users = users;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.duration = duration * 1000000000L;
+    }
+
+    /**
+     * Opens a new session to the server.
+     * @return the session
+     * @throws IOException if it cannot be opened
+     */
+    protected abstract Session newSession() throws IOException;
+
+    /**
+     * Runs the load and prints the report.
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public void run() throws InterruptedException {
+        final long start = System.nanoTime();
+        final long period = rate > 0 ? (long) (1000000000L / rate) : 0;
+        Worker[] workers = new Worker[concurrency];
+        Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            workers[i] = new Worker(start, period);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        report(workers, System.nanoTime() - start);
+    }
+
+    private final class Worker implements Runnable {
+        private final long start;
+        private final long period;
+        private final Phases phases = new Phases();
+        private final long[] failures = new long[FAILURES.length];
+        private long succeeded;
+
+        private Worker(long start, long period) {
+            this.start = start;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            Session session = null;
+            while (true) {
+                long slot = issued.getAndIncrement();
+                long scheduled = period > 0 ? start + slot * period : System.nanoTime();
+                if (scheduled - start >= duration)
+                    break;
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+                String[] user = users[(int) (slot % users.length)];
+                phases.last = System.nanoTime();
+                try {
+                    if (session == null)
+                        session = newSession();
+                    if (session.handshake(user[0], user[1], phases)) {
+                        succeeded++;
+                        phases.histograms[TOTAL].record(System.nanoTime() - scheduled);
+                    } else {
+                        failures[REJECTED]++;
+                    }
+                } catch (IOException e) {
+                    failures[reason(e)]++;
+                    if (session != null)
+                        session.close();
+                    session = null;
+                }
+            }
+            if (session != null)
+                session.close();
+        }
+    }
+
+    private static int reason(IOException e) {
+        if (e instanceof SocketTimeoutException)
+            return TIMEOUT;
+        if (e instanceof ConnectException || e instanceof PortUnreachableException)
+            return REFUSED;
+        if (e instanceof EOFException)
+            return CLOSED;
+        if (e instanceof UnexpectedMessage)
+            return UNEXPECTED;
+        if (e instanceof ServerBusy)
+            return BUSY;
+        return IO_ERROR;
+    }
+
+    private void report(Worker[] workers, long elapsed) {
+        LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+        for (int i = 0; i < phases.length; i++)
+            phases[i] = new LatencyHistogram();
+        long succeeded = 0;
+        long[] failures = new long[FAILURES.length];
+        for (Worker w : workers) {
+            for (int i = 0; i < phases.length; i++)
+                phases[i].add(w.phases.histograms[i]);
+            succeeded += w.succeeded;
+            for (int i = 0; i < failures.length; i++)
+                failures[i] += w.failures[i];
+        }
+        long failed = 0;
+        for (long f : failures)
+            failed += f;
+
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d handshakes succeeded, %d failed in %.1f s: %.1f handshakes/s",
+                succeeded, failed, seconds, succeeded / seconds) + (rate > 0 ? String.format(Locale.ROOT, " (target %.1f/s)", rate) : ""));
+        if (phases[CHALLENGE].count() > 0)
+            System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s", "phase (ms)", "count", "p50", "p99", "p99.9", "max"));
+        for (int i = 0; i < phases.length; i++) {
+            LatencyHistogram h = phases[i];
+            if (h.count() == 0)
+                continue;
+            System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.3f %10.3f %10.3f %10.3f", PHASES[i], h.count(),
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6));
+        }
+        for (int i = 0; i < failures.length; i++)
+            if (failures[i] > 0)
+                System.out.println("Failed, " + FAILURES[i] + ": " + failures[i]);
+    }
+
+    /**
+     * Reads a text message up to its end of line.
+     * @param in the connection's input
+     * @return the message without the end of line
+     * @throws IOException if the connection ends first or the line is over 256 characters
+     */
+    protected static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException();
+            if (sb.length() >= 256)
+                throw new UnexpectedMessage("Line too long");
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param digest a raw MD5
+     * @return the digest as lower case hex, as sent in a text URH
+     */
+    protected static String hex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Reads the users to log in as, one per line with username and password
+     * separated by whitespace or a colon, the same list CredentialIndexBuilder reads.
+     * Blank lines and lines starting with # are skipped.
+     * @param path the user list
+     * @return username and password pairs
+     * @throws IOException if the file cannot be read or holds no users
+     */
+    public static String[][] readUsers(String path) throws IOException {
+        List<String[]> users = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.US_ASCII));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("[\\s:]+");
+                if (fields.length != 2)
+                    throw new IOException("Invalid user in " + path + ": " + line);
+                users.add(fields);
+            }
+        } finally {
+            reader.close();
+        }
+        if (users.isEmpty())
+            throw new IOException("No users in " + path);
+        return users.toArray(new String[users.size()][]);
+    }
+}
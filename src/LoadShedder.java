@@ -0,0 +1,101 @@
+/**
+ * Decides which queued connections to turn away with a "server busy" answer,
+ * by how long they waited rather than by how many there are, as CoDel does for
+ * packets (RFC 8289).
+ *
+ * A short burst fills the queue and drains again, and nobody is shed. Only
+ * when every connection taken from the queue has waited longer than the target
+ * for a whole interval is the queue standing, and then one is shed. While the
+ * waits stay above the target it sheds more and more often, every interval /
+ * sqrt(count), until the waits fall back under the target. The queue then
+ * keeps just enough backlog to keep the workers busy. The handshakes that
+ * still get through see a low latency, instead of every client waiting longer
+ * and longer until all of them time out.
+ *
+ * Called by every worker as it takes a connection, so the state is guarded by
+ * the instance lock; the work done under it is a few comparisons.
+ */
+public class LoadShedder {
+
+    public static final long DEFAULT_TARGET = 5;
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private final long target;
+    private final long interval;
+    // When the waits have been above target long enough to start shedding, valid while above is set
+    private boolean above;
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int count;
+    private int lastCount;
+
+    /**
+     * Creates a shedder with DEFAULT_TARGET and DEFAULT_INTERVAL.
+     */
+    public LoadShedder() {
+        this(DEFAULT_TARGET, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates a shedder.
+     * @param target acceptable time in the queue, in milliseconds
+     * @param interval how long the waits must stay above the target before shedding starts, in milliseconds
+     */
+    public LoadShedder(long target, long interval) {
+        if (target <= 0 || interval <= 0)
+            throw new IllegalArgumentException("Target and interval must be positive");
+        this.target = target * 1000000;
+        this.interval = interval * 1000000;
+    }
+
+    /**
+     * Decides the fate of a connection just taken from the queue.
+     * @param sojourn how long it waited in the queue, in nanoseconds
+     * @param now System.nanoTime() when it was taken
+     * @param empty whether the queue is empty after taking it
+     * @return whether to answer it "busy" instead of handling it
+     */
+    public synchronized boolean shed(long sojourn, long now, boolean empty) {
+        boolean okToDrop = okToDrop(sojourn, now, empty);
+        if (dropping) {
+            if (!okToDrop) {
+                // Back under the target
+                dropping = false;
+                return false;
+            }
+            if (now - dropNext >= 0) {
+                count++;
+                dropNext = controlLaw(dropNext);
+                return true;
+            }
+            return false;
+        }
+        if (!okToDrop)
+            return false;
+        dropping = true;
+        // Coming back soon after the last episode, start from the rate it ended with
+        int delta = count - lastCount;
+        count = delta > 1 && now - dropNext < 16 * interval ? delta : 1;
+        lastCount = count;
+        dropNext = controlLaw(now);
+        return true;
+    }
+
+    private boolean okToDrop(long sojourn, long now, boolean empty) {
+        if (sojourn < target || empty) {
+            above = false;
+            return false;
+        }
+        if (!above) {
+            above = true;
+            firstAboveTime = now + interval;
+            return false;
+        }
+        return now - firstAboveTime >= 0;
+    }
+
+    private long controlLaw(long t) {
+        return t + (long) (interval / Math.sqrt(count));
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Credential store held on the heap, for small user sets such as the built in
+ * test users. Lookups use the same open addressing scheme as
+ * {@link MappedCredentialStore} over byte arrays, so they do not allocate either.
+ */
+public class MapCredentialStore implements CredentialStore {
+
+    private final byte[][] names;
+    private final byte[][] credentials;
+    private final int mask;
+
+    /**
+     * @param passwords passwords by username
+     */
+    public MapCredentialStore(Map<String, String> passwords) {
+        int slots = Integer.highestOneBit(Math.max(passwords.size() * 2, 2) - 1) << 1;
+        names = new byte[slots][];
+        credentials = new byte[slots][];
+        mask = slots - 1;
+        for (Map.Entry<String, String> user : passwords.entrySet()) {
+            byte[] name = user.getKey().getBytes(StandardCharsets.US_ASCII);
+            int slot = MappedCredentialStore.hash(name, 0, name.length) & mask;
+            while (names[slot] != null)
+                slot = (slot + 1) & mask;
+            names[slot] = name;
+            credentials[slot] = HashVerifier.credentials(user.getKey(), user.getValue());
+        }
+    }
+
+    @Override
+    public int lookup(byte[] username, int offset, int length, byte[] dst) {
+        int slot = MappedCredentialStore.hash(username, offset, length) & mask;
+        byte[] name;
+        while ((name = names[slot]) != null) {
+            if (name.length == length && matches(name, username, offset)) {
+                System.arraycopy(credentials[slot], 0, dst, 0, credentials[slot].length);
+                return credentials[slot].length;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] name, byte[] username, int offset) {
+        for (int i = 0; i < name.length; i++)
+            if (name[i] != username[offset + i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Credential store backed by a memory mapped index file, so millions of users
+ * cost neither heap nor start up time. Build the file with {@link CredentialIndexBuilder}.
+ *
+ ****************************************************************************
+ *  Index 0-3:   Magic ("CRED")                                             *
+ *  Index 4-7:   Version (1)                                                *
+ *  Index 8-11:  Number of slots (power of two)                             *
+ *  Index 12-15: Number of users                                            *
+ *  Index 16-:   Slots of 32 bytes each                                     *
+ *                                                                          *
+ *  - SLOT -                                                                *
+ *  Index 0:    Username length (0 = empty slot)                            *
+ *  Index 1:    Username + password length                                  *
+ *  Index 2-31: Username followed by password                               *
+ ****************************************************************************
+ *
+ * Users are placed by the FNV-1a hash of their username with linear probing,
+ * so a lookup touches one or two slots and never allocates.
+ */
+public class MappedCredentialStore implements CredentialStore {
+
+    static final int MAGIC = 0x43524544;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int SLOT_LENGTH = 32;
+    // A single mapping is limited to 2GB
+    static final int MAX_SLOTS = 1 << 25;
+
+    private final ByteBuffer index;
+    private final int mask;
+    private final int users;
+
+    /**
+     * Maps an index file.
+     * @param path the index file
+     * @throws IOException if the file cannot be mapped or is not an index
+     */
+    public MappedCredentialStore(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (map.limit() < HEADER_LENGTH || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                throw new IOException("Not a credential index: " + path);
+            int slots = map.getInt(8);
+            if (Integer.bitCount(slots) != 1 || map.limit() < HEADER_LENGTH + (long) slots * SLOT_LENGTH)
+                throw new IOException("Truncated credential index: " + path);
+            index = map;
+            mask = slots - 1;
+            users = map.getInt(12);
+        } finally {
+            // The mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Reads every page of the index into memory, so that lookups do not wait
+     * for the disk. Only worth it before the index is put to use.
+     */
+    public void preload() {
+        if (index instanceof MappedByteBuffer)
+            ((MappedByteBuffer) index).load();
+    }
+
+    /**
+     * @return the number of users in the index
+     */
+    public int size() {
+        return users;
+    }
+
+    @Override
+    public int lookup(byte[] username, int offset, int length, byte[] dst) {
+        int slot = hash(username, offset, length) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int base = HEADER_LENGTH + slot * SLOT_LENGTH;
+            int nameLength = index.get(base);
+            if (nameLength == 0)
+                return -1;
+            if (nameLength == length && matches(base + 2, username, offset, length)) {
+                int credentialsLength = index.get(base + 1);
+                for (int i = 0; i < credentialsLength; i++)
+                    dst[i] = index.get(base + 2 + i);
+                return credentialsLength;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int position, byte[] username, int offset, int length) {
+        for (int i = 0; i < length; i++)
+            if (index.get(position + i) != username[offset + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * FNV-1a hash of a username, shared with the index builder.
+     */
+    static int hash(byte[] b, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Parsing of the numbers in command line options. The options are matched
+ * against a pattern of digits first, but digits alone can still be too many
+ * for an int or a long; these parse them without throwing.
+ */
+public final class Options {
+
+    private Options() {
+    }
+
+    /**
+     * Parses a decimal number that may not exceed a maximum.
+     * @param digits the number, decimal digits only
+     * @param max the largest value accepted
+     * @return the number, or -1 if it is above max
+     */
+    public static long parse(String digits, long max) {
+        digits = digits.replaceFirst("^0+(?=\\d)", "");
+        String limit = Long.toString(max);
+        // Compared as text, since digits above max may not fit in a long; of equal length they sort like numbers
+        if (digits.length() > limit.length() || digits.length() == limit.length() && digits.compareTo(limit) > 0)
+            return -1;
+        return Long.parseLong(digits);
+    }
+
+    /**
+     * Parses a decimal number that has to fit in an int.
+     * @param digits the number, decimal digits only
+     * @return the number, or -1 if it is above Integer.MAX_VALUE
+     */
+    public static int parseInt(String digits) {
+        return (int) parse(digits, Integer.MAX_VALUE);
+    }
+}
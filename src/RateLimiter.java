@@ -0,0 +1,181 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket rate limits per client address and per subnet (/24 for IPv4,
+ * /48 for IPv6), checked before a message is parsed.
+ *
+ * Every bucket holds up to one second worth of tokens and refills
+ * continuously. The buckets live in two fixed size tables organised like
+ * {@link ChallengeStore}: a key can only be stored in one of WAYS slots of its
+ * set, and a new key takes the slot that was refilled least recently. Unlike
+ * the challenge store there are no locks. A bucket is a single long holding
+ * the time of its last refill and its tokens, updated with compareAndSet, so
+ * threads only contend when they charge the same bucket. Tokens are counted
+ * in thousandths, so every millisecond refills a whole number of them and no
+ * part of the rate is lost to rounding.
+ *
+ * When two new keys race for the same slot, one of them may briefly be
+ * charged against the other's bucket. A limiter can afford that; it never
+ * grows past its capacity and never blocks.
+ */
+public class RateLimiter {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final int MAX_RATE = (1 << 20) - 1;
+
+    private static final int WAYS = 4;
+    // A bucket packs the refill time in milliseconds above TOKEN_BITS of tokens in 1/SCALE units
+    private static final int TOKEN_BITS = 30;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    // The refill time wraps after about 198 days, only its difference to now is used
+    static final long TIME_MASK = (1L << (64 - TOKEN_BITS)) - 1;
+    private static final long SCALE = 1000;
+    private static final int IPV4_SUBNET_MASK = 0xffffff00;
+    private static final int IPV6_SUBNET_BYTES = 6;
+
+    private final Table addresses;
+    private final Table subnets;
+    // Bucket times are kept relative to this
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * Creates a limiter with DEFAULT_CAPACITY buckets per table.
+     * @param addressRate messages per second allowed from one address, 0 for no limit
+     * @param subnetRate messages per second allowed from one subnet, 0 for no limit
+     */
+    public RateLimiter(int addressRate, int subnetRate) {
+        this(addressRate, subnetRate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a limiter.
+     * @param addressRate messages per second allowed from one address, 0 for no limit
+     * @param subnetRate messages per second allowed from one subnet, 0 for no limit
+     * @param capacity number of buckets per table, rounded up to a power of two
+     */
+    public RateLimiter(int addressRate, int subnetRate, int capacity) {
+        if (addressRate < 0 || addressRate > MAX_RATE || subnetRate < 0 || subnetRate > MAX_RATE)
+            throw new IllegalArgumentException("Rates must be between 0 and " + MAX_RATE);
+        addresses = addressRate > 0 ? new Table(addressRate, capacity) : null;
+        subnets = subnetRate > 0 ? new Table(subnetRate, capacity) : null;
+    }
+
+    /**
+     * Takes tokens for a message from the buckets of its address and subnet.
+     * @param address the client address
+     * @param cost number of tokens, the number of handshakes in the message
+     * @return whether both buckets had enough tokens, if not the message must be rejected
+     */
+    public boolean acquire(InetAddress address, int cost) {
+        return acquire(address, cost, (System.currentTimeMillis() - epoch) & TIME_MASK);
+    }
+
+    /**
+     * Takes tokens at a given time on the limiter's clock.
+     * @param address the client address
+     * @param cost number of tokens
+     * @param now milliseconds since the limiter was created, modulo TIME_MASK + 1
+     * @return whether both buckets had enough tokens
+     */
+    boolean acquire(InetAddress address, int cost, long now) {
+        if (address instanceof Inet4Address) {
+            // hashCode() of an Inet4Address is the address itself, and unlike getAddress() it does not copy
+            int ip = address.hashCode();
+            return (subnets == null || subnets.acquire((1L << 32) | (ip & IPV4_SUBNET_MASK & 0xffffffffL), cost, now))
+                    && (addresses == null || addresses.acquire((1L << 32) | (ip & 0xffffffffL), cost, now));
+        }
+        byte[] a = address.getAddress();
+        long subnet = 0;
+        long h = 0;
+        for (int i = 0; i < a.length; i++) {
+            h = h * 31 + (a[i] & 0xff);
+            if (i == IPV6_SUBNET_BYTES - 1)
+                subnet = h;
+        }
+        return (subnets == null || subnets.acquire((1L << 63) | (subnet & Long.MAX_VALUE), cost, now))
+                && (addresses == null || addresses.acquire((1L << 63) | (mix(h) & Long.MAX_VALUE), cost, now));
+    }
+
+    /**
+     * Reads a rate given on the command line.
+     * @param digits the rate, decimal digits only
+     * @return the rate, or -1 if it is above MAX_RATE
+     */
+    public static int parseRate(String digits) {
+        return (int) Options.parse(digits, MAX_RATE);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Table {
+        final long rate;
+        final long burst;
+        final int setMask;
+        final AtomicLongArray keys;
+        final AtomicLongArray buckets;
+
+        Table(int rate, int capacity) {
+            int sets = Integer.highestOneBit(Math.max(capacity / WAYS - 1, 1)) << 1;
+            this.rate = rate;
+            this.burst = rate * SCALE;
+            setMask = sets - 1;
+            keys = new AtomicLongArray(sets * WAYS);
+            buckets = new AtomicLongArray(sets * WAYS);
+        }
+
+        boolean acquire(long key, int cost, long now) {
+            int slot = slot(key, now);
+            // A batch bigger than the burst empties the bucket instead of never passing
+            long needed = Math.min(cost * SCALE, burst);
+            while (true) {
+                long bucket = buckets.get(slot);
+                long tokens = bucket & TOKEN_MASK;
+                // SCALE is 1000, so a millisecond is worth rate units exactly
+                long elapsed = Math.min(age(bucket, now), 1000);
+                tokens = Math.min(burst, tokens + elapsed * rate * SCALE / 1000);
+                if (tokens < needed)
+                    return false;
+                if (buckets.compareAndSet(slot, bucket, (now << TOKEN_BITS) | (tokens - needed)))
+                    return true;
+            }
+        }
+
+        /**
+         * Finds the slot of a key, taking over the least recently refilled slot
+         * of its set if the key has none.
+         */
+        private int slot(long key, long now) {
+            int base = ((int) mix(key) & setMask) * WAYS;
+            while (true) {
+                int victim = base;
+                for (int i = base; i < base + WAYS; i++) {
+                    if (keys.get(i) == key)
+                        return i;
+                    if (age(buckets.get(i), now) > age(buckets.get(victim), now))
+                        victim = i;
+                }
+                long old = keys.get(victim);
+                if (keys.compareAndSet(victim, old, key)) {
+                    buckets.set(victim, (now << TOKEN_BITS) | burst);
+                    return victim;
+                }
+            }
+        }
+
+        /**
+         * @return milliseconds since the bucket was last refilled, modulo the wrap of the time
+         */
+        private static long age(long bucket, long now) {
+            return (now - (bucket >>> TOKEN_BITS)) & TIME_MASK;
+        }
+    }
+}
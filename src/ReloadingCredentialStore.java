@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Credential index (see {@link MappedCredentialStore}) that is read again
+ * while the server runs, when the file changes or {@link #reload} is called.
+ *
+ * Every index is an immutable snapshot, and lookups go to whichever one the
+ * volatile field points to when they start, so they never wait for a reload.
+ * A background thread maps the new file, touches all of its pages so the first
+ * lookups do not fault them in, and only then swaps it in. Handshakes that
+ * looked a user up in the old index finish with it; the old mapping goes away
+ * once nothing refers to it any more.
+ *
+ * The file is checked every POLL_INTERVAL for a new modification time, size
+ * or inode. It must be replaced by renaming a complete file over it, as
+ * {@link CredentialIndexBuilder} does, never rewritten in place. An index
+ * that cannot be read is counted and the current one kept. Reloads and
+ * failures are also written to the debug log, if the server keeps one.
+ */
+public class ReloadingCredentialStore implements CredentialStore, Runnable {
+
+    public static final long POLL_INTERVAL = 1000;
+
+    private final Path path;
+    private volatile MappedCredentialStore current;
+    private volatile boolean requested;
+    private volatile Thread watcher;
+    // The file the current index was read from, only used by the watcher after start
+    private Object fileKey;
+    private long modified;
+    private long size;
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long reloadTime;
+    private volatile DebugLog log;
+
+    /**
+     * Reads the index, the watcher thread is started by {@link #start}.
+     * @param path the index file
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public ReloadingCredentialStore(String path) throws IOException {
+        this.path = Paths.get(path);
+        BasicFileAttributes attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+        current = new MappedCredentialStore(path);
+        remember(attributes);
+    }
+
+    /**
+     * Sets the debug log reloads and failures are written to.
+     * @param log the log, or null for none
+     */
+    public void setLog(DebugLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Starts watching the file.
+     * @param name name of the watcher thread
+     */
+    public void start(String name) {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        watcher = t;
+        t.start();
+    }
+
+    /**
+     * Asks the watcher to read the file again now, whether it changed or not.
+     */
+    public void reload() {
+        requested = true;
+        Thread t = watcher;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    @Override
+    public int lookup(byte[] username, int offset, int length, byte[] dst) {
+        return current.lookup(username, offset, length, dst);
+    }
+
+    /**
+     * @return number of users in the current index
+     */
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * @return number of times a new index was swapped in
+     */
+    public long reloads() {
+        return reloads.sum();
+    }
+
+    /**
+     * @return number of times a changed file could not be read
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return nanoseconds the last reload took to read and preload the index, 0 before the first
+     */
+    public long reloadTime() {
+        return reloadTime;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LockSupport.parkNanos(POLL_INTERVAL * 1000000);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // Between removing the old file and renaming the new one, try again next time
+                continue;
+            } catch (IOException e) {
+                continue;
+            }
+            if (!requested && !changed(attributes))
+                continue;
+            requested = false;
+            long start = System.nanoTime();
+            try {
+                MappedCredentialStore store = new MappedCredentialStore(path.toString());
+                store.preload();
+                current = store;
+                reloadTime = System.nanoTime() - start;
+                reloads.increment();
+                DebugLog l = log;
+                if (l != null)
+                    l.message("Reloaded " + store.size() + " users from " + path + " in " + reloadTime / 1000000 + " ms");
+            } catch (IOException e) {
+                failures.increment();
+                DebugLog l = log;
+                if (l != null)
+                    l.message("Kept the current users, cannot reload " + path + ": " + e.getMessage());
+            }
+            // A broken file is not tried again until it changes
+            remember(attributes);
+        }
+    }
+
+    private boolean changed(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return attributes.lastModifiedTime().toMillis() != modified || attributes.size() != size
+                || (key != null && !key.equals(fileKey));
+    }
+
+    private void remember(BasicFileAttributes attributes) {
+        fileKey = attributes.fileKey();
+        modified = attributes.lastModifiedTime().toMillis();
+        size = attributes.size();
+    }
+}
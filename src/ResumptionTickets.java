@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short lived tickets handed out with AUT1 so a client can authenticate again
+ * in one round trip with a RES message.
+ *
+ *  Index 0-11:  Expiry, 12 hex digits (seconds since the epoch)
+ *  Index 12-23: Random nonce, 12 hex digits
+ *  Index 24-63: First 20 bytes of HMAC-SHA256(key, client IP | expiry | nonce | username), hex
+ *
+ * A ticket is 64 characters like a challenge, and a RES proves the password
+ * the same way a URH does: MD5(username + password + ticket). The server only
+ * has to check the MAC, so nothing is stored per client and any server with
+ * the same key accepts the ticket. The nonce makes every ticket different, even
+ * two issued to the same user in the same second. Tickets are bound to the client's IP but
+ * not its port, since every connection of a client gets a new port.
+ *
+ * A ticket is good for one RES. Once its hash checks out the server remembers
+ * it in a {@link ChallengeStore} until it would have expired anyway, so a RES
+ * seen on the wire cannot be sent again. That set is per server: servers
+ * sharing a key each accept a ticket once. When the set is full the ticket is
+ * refused rather than forgotten early, and the client does a full handshake.
+ */
+public final class ResumptionTickets {
+
+    public static final int TICKET_LENGTH = 64;
+    public static final long DEFAULT_LIFETIME = 60000;
+
+    private static final int KEY_LENGTH = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SecretKeySpec key;
+    private final long lifetime;
+    private final ChallengeStore redeemed;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+    };
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
+
+    /**
+     * @param key the secret shared by every server that should accept these tickets
+     * @param lifetime how long a ticket stays valid, in milliseconds
+     */
+    public ResumptionTickets(byte[] key, long lifetime) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.lifetime = lifetime;
+        // Expiry is rounded down to the second, so no ticket is valid longer than the lifetime
+        redeemed = new ChallengeStore(ChallengeStore.DEFAULT_CAPACITY, lifetime);
+    }
+
+    /**
+     * Reads the key from a file, so several servers can share it.
+     * @param path the key file, any length
+     * @return the ticket issuer
+     * @throws IOException if the file cannot be read
+     */
+    public static ResumptionTickets fromFile(String path) throws IOException {
+        byte[] key = Files.readAllBytes(Paths.get(path));
+        if (key.length == 0)
+            throw new IOException("Empty key file: " + path);
+        return new ResumptionTickets(key, DEFAULT_LIFETIME);
+    }
+
+    /**
+     * Creates an issuer with a random key, only useful to a single server.
+     * @return the ticket issuer
+     */
+    public static ResumptionTickets withRandomKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return new ResumptionTickets(key, DEFAULT_LIFETIME);
+    }
+
+    /**
+     * Writes a new ticket for an authenticated user.
+     * @param client address of the client
+     * @param username array holding the ASCII username
+     * @param length length of the username
+     * @param dst array receiving TICKET_LENGTH ASCII bytes
+     * @param offset where to write in the array
+     */
+    public void issue(InetAddress client, byte[] username, int length, byte[] dst, int offset) {
+        long expiry = (System.currentTimeMillis() + lifetime) / 1000;
+        long nonce = ThreadLocalRandom.current().nextLong() & 0xffffffffffffL;
+        for (int i = 0; i < 12; i++) {
+            dst[offset + i] = (byte) HEX[(int) (expiry >>> (44 - 4 * i)) & 0xf];
+            dst[offset + 12 + i] = (byte) HEX[(int) (nonce >>> (44 - 4 * i)) & 0xf];
+        }
+        byte[] mac = mac(client, username, length, expiry, nonce);
+        for (int i = 0; i < 20; i++) {
+            dst[offset + 24 + 2 * i] = (byte) HEX[(mac[i] >> 4) & 0xf];
+            dst[offset + 25 + 2 * i] = (byte) HEX[mac[i] & 0xf];
+        }
+    }
+
+    /**
+     * Checks that a ticket was issued by a server with this key, to this client
+     * and user, and has not expired.
+     * @param client address of the client
+     * @param username array holding the ASCII username
+     * @param length length of the username
+     * @param ticket array holding the TICKET_LENGTH byte ticket
+     * @param offset where the ticket starts in the array
+     * @return whether the ticket is valid
+     */
+    public boolean validate(InetAddress client, byte[] username, int length, byte[] ticket, int offset) {
+        long expiry = hex(ticket, offset);
+        long nonce = hex(ticket, offset + 12);
+        if (expiry < 0 || nonce < 0 || expiry * 1000 < System.currentTimeMillis())
+            return false;
+        byte[] mac = mac(client, username, length, expiry, nonce);
+        int diff = 0;
+        for (int i = 0; i < 20; i++) {
+            diff |= ticket[offset + 24 + 2 * i] ^ HEX[(mac[i] >> 4) & 0xf];
+            diff |= ticket[offset + 25 + 2 * i] ^ HEX[mac[i] & 0xf];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Marks a valid ticket as used. Call it once the hash of the RES is
+     * verified, so a RES with a wrong hash does not use up the ticket.
+     * @param ticket array holding the TICKET_LENGTH byte ticket, already validated
+     * @param offset where the ticket starts in the array
+     * @return true the first time, false if the ticket was used before or cannot be tracked
+     */
+    public boolean redeem(byte[] ticket, int offset) {
+        // 64 bits of the MAC, unique enough; the low bit keeps the key from being 0
+        long key = 0;
+        for (int i = 0; i < 16; i++)
+            key = (key << 4) | Character.digit(ticket[offset + 24 + i], 16);
+        return redeemed.add(key | 1, ticket, offset);
+    }
+
+    /**
+     * Reads 12 hex digits.
+     * @return the value, or -1 if a character is not a hex digit
+     */
+    private static long hex(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = Character.digit(b[offset + i], 16);
+            if (digit < 0)
+                return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private byte[] mac(InetAddress client, byte[] username, int length, long expiry, long nonce) {
+        byte[] buf = scratch.get();
+        Mac mac = macs.get();
+        // hashCode() is the address for IPv4 and does not copy, IPv6 is rare enough to pay for getAddress()
+        if (client instanceof Inet4Address) {
+            putLong(buf, 0, client.hashCode());
+            mac.update(buf, 0, 8);
+        } else {
+            mac.update(client.getAddress());
+        }
+        putLong(buf, 0, expiry);
+        putLong(buf, 8, nonce);
+        mac.update(buf, 0, 16);
+        mac.update(username, 0, length);
+        try {
+            mac.doFinal(buf, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf;
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        for (int i = 0; i < 8; i++)
+            b[offset + i] = (byte) (v >>> (56 - 8 * i));
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retransmission timeout for the UDP messages sent to one server, estimated
+ * from the round trip times measured so far as in RFC 6298:
+ *
+ *   SRTT   = 7/8 SRTT + 1/8 RTT
+ *   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - RTT|
+ *   RTO    = SRTT + 4 RTTVAR, between MIN_TIMEOUT and MAX_TIMEOUT
+ *
+ * Only answers to messages that were sent once are measured, since an answer
+ * to a resent message cannot be matched to one of the copies (Karn's rule).
+ * Each resend doubles the timeout, and a random quarter is added on top so
+ * that clients that lost packets at the same time do not all resend at once.
+ *
+ * There is one timer per server, shared by every handshake of the process,
+ * and the estimates can be kept in a file between runs (see {@link #load}).
+ */
+public class RetransmitTimer {
+
+    // Before the first measurement, as recommended by RFC 6298
+    public static final int INITIAL_TIMEOUT = 1000;
+    public static final int MIN_TIMEOUT = 100;
+    public static final int MAX_TIMEOUT = 5000;
+
+    private static final Map<String, RetransmitTimer> TIMERS = new ConcurrentHashMap<String, RetransmitTimer>();
+
+    // Microseconds, 0 until the first measurement
+    private long srtt;
+    private long rttvar;
+
+    /**
+     * @param server the server as host:port
+     * @return the timer of the server, created if it has none yet
+     */
+    public static RetransmitTimer forServer(String server) {
+        RetransmitTimer timer = TIMERS.get(server);
+        if (timer == null) {
+            TIMERS.putIfAbsent(server, new RetransmitTimer());
+            timer = TIMERS.get(server);
+        }
+        return timer;
+    }
+
+    /**
+     * @param attempt how many times the message was resent already
+     * @return how long to wait for an answer before resending, in milliseconds
+     */
+    public synchronized int timeout(int attempt) {
+        long rto = srtt == 0 ? INITIAL_TIMEOUT : (srtt + 4 * rttvar + 999) / 1000;
+        rto = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, rto << Math.min(attempt, 16)));
+        return (int) Math.min(MAX_TIMEOUT, rto + ThreadLocalRandom.current().nextLong(rto / 4 + 1));
+    }
+
+    /**
+     * Adds a round trip time measurement.
+     * @param nanos time from sending a message, once, to receiving its answer
+     */
+    public synchronized void sample(long nanos) {
+        long rtt = Math.max(nanos / 1000, 1);
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in microseconds, 0 if nothing was measured yet
+     */
+    public synchronized long srtt() {
+        return srtt;
+    }
+
+    /**
+     * Reads the estimates kept in a file into the timers of their servers.
+     * The file is a properties file mapping host:port to SRTT,RTTVAR in
+     * microseconds; a missing file or a malformed line is skipped.
+     * @param path the file
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static void load(String path) throws IOException {
+        Properties estimates = new Properties();
+        try {
+            InputStream in = new FileInputStream(path);
+            try {
+                estimates.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // First run, nothing measured yet
+            return;
+        }
+        for (String server : estimates.stringPropertyNames()) {
+            String[] values = estimates.getProperty(server).split(",");
+            if (values.length != 2 || !values[0].matches("\\d+") || !values[1].matches("\\d+"))
+                continue;
+            RetransmitTimer timer = forServer(server);
+            synchronized (timer) {
+                timer.srtt = Long.parseLong(values[0]);
+                timer.rttvar = Long.parseLong(values[1]);
+            }
+        }
+    }
+
+    /**
+     * Writes the estimates of every server measured so far to a file.
+     * @param path the file
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(String path) throws IOException {
+        Properties estimates = new Properties();
+        for (Map.Entry<String, RetransmitTimer> e : TIMERS.entrySet()) {
+            RetransmitTimer timer = e.getValue();
+            synchronized (timer) {
+                if (timer.srtt > 0)
+                    estimates.setProperty(e.getKey(), timer.srtt + "," + timer.rttvar);
+            }
+        }
+        OutputStream out = new FileOutputStream(path);
+        try {
+            estimates.store(out, "Round trip time estimates, SRTT,RTTVAR in microseconds");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters and latency histograms of one server, cheap enough to update for
+ * every message: the messages received by type, AUT1 and AUT0 answers with
+ * the reason for each AUT0, handshakes shed with AUT2 and why, the size of the challenge stores and
+ * of the pool of ready challenges, open
+ * connections and those closed for being too slow, how long requests and handshakes take, how many debug log
+ * events and captured messages were dropped, and in a cluster how many challenge lookups went to
+ * another member.
+ *
+ * Counters are LongAdders, which spread concurrent increments over cells
+ * instead of contending on one word. Histograms keep the bucket layout of
+ * {@link LatencyHistogram} in a few AtomicLongArray stripes picked by thread,
+ * so recording a value is one atomic add that other threads rarely touch.
+ * Nothing is summed until the metrics are read.
+ *
+ * They are read through JMX, as the attributes of
+ * tcpudp:type=ServerMetrics,server=[name], or as plain text in the Prometheus
+ * exposition format from http://127.0.0.1:[port]/metrics, see {@link #expose}.
+ */
+public class ServerMetrics implements DynamicMBean {
+
+    // Messages received
+    public static final int REQ = 0;
+    public static final int URH = 1;
+    public static final int RES = 2;
+    public static final int BATCH = 3;
+    public static final int TAGGED = 4;
+    public static final int INVALID = 5;
+    private static final String[] MESSAGES = {"REQ", "URH", "RES", "BATCH", "TAGGED", "invalid"};
+
+    // Reasons for answering AUT0
+    public static final int MALFORMED = 0;
+    public static final int WRONG_TYPE = 1;
+    public static final int BAD_USERNAME_LENGTH = 2;
+    public static final int BAD_HASH_FORMAT = 3;
+    public static final int UNKNOWN_USER = 4;
+    public static final int NO_CHALLENGE = 5;
+    public static final int EXPIRED_CHALLENGE = 6;
+    public static final int WRONG_HASH = 7;
+    public static final int BAD_TICKET = 8;
+    public static final int RATE_LIMITED = 9;
+    public static final int REUSED_TICKET = 10;
+    private static final String[] REASONS = {"malformed", "wrong_type", "bad_username_length", "bad_hash_format",
+            "unknown_user", "no_challenge", "expired_challenge", "wrong_hash", "bad_ticket", "rate_limited",
+            "reused_ticket"};
+
+    // Reasons for shedding a handshake with AUT2
+    public static final int QUEUE_FULL = 0;
+    public static final int QUEUE_DELAY = 1;
+    private static final String[] SHED_CAUSES = {"queue_full", "queue_delay"};
+
+    // Reasons for closing a connection whose read deadline passed
+    public static final int IDLE = 0;
+    public static final int TOO_SLOW = 1;
+    public static final int HANDSHAKE_TOO_LONG = 2;
+    private static final String[] EVICTION_CAUSES = {"idle", "too_slow", "handshake_too_long"};
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final String name;
+    private final LongAdder[] messages = new LongAdder[MESSAGES.length];
+    private final LongAdder[] failures = new LongAdder[REASONS.length];
+    private final LongAdder authenticated = new LongAdder();
+    private final LongAdder[] shed = new LongAdder[SHED_CAUSES.length];
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder[] evicted = new LongAdder[EVICTION_CAUSES.length];
+    private final Histogram requests = new Histogram();
+    private final Histogram handshakes = new Histogram();
+    private final List<ChallengeStore> stores = new CopyOnWriteArrayList<ChallengeStore>();
+    private volatile DebugLog log;
+    private volatile TrafficCapture capture;
+    private volatile ChallengeCluster cluster;
+    private volatile ChallengePool pool;
+    private volatile ReloadingCredentialStore credentials;
+    private volatile Collection<?> queue;
+
+    /**
+     * @param name the server, used in the JMX object name
+     */
+    public ServerMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = new LongAdder();
+        for (int i = 0; i < failures.length; i++)
+            failures[i] = new LongAdder();
+        for (int i = 0; i < shed.length; i++)
+            shed[i] = new LongAdder();
+        for (int i = 0; i < evicted.length; i++)
+            evicted[i] = new LongAdder();
+    }
+
+    /**
+     * Counts a message received.
+     * @param type REQ, URH, RES, BATCH, TAGGED or INVALID
+     */
+    public void message(int type) {
+        messages[type].increment();
+    }
+
+    /**
+     * Counts an AUT1.
+     */
+    public void authenticated() {
+        authenticated.increment();
+    }
+
+    /**
+     * Counts an AUT0.
+     * @param reason why the client was rejected, MALFORMED to REUSED_TICKET
+     */
+    public void rejected(int reason) {
+        failures[reason].increment();
+    }
+
+    /**
+     * Counts a handshake shed with AUT2.
+     * @param cause QUEUE_FULL or QUEUE_DELAY
+     */
+    public void shed(int cause) {
+        shed[cause].increment();
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    /**
+     * Counts a connection closed because its read deadline passed.
+     * @param cause IDLE, TOO_SLOW or HANDSHAKE_TOO_LONG
+     */
+    public void evicted(int cause) {
+        evicted[cause].increment();
+    }
+
+    /**
+     * Records how long a request took from being read to its answer being ready.
+     * @param nanos the time taken
+     */
+    public void request(long nanos) {
+        requests.record(nanos);
+    }
+
+    /**
+     * Records how long a handshake took, from the connection being accepted or
+     * the previous handshake on it ending, to the AUT being ready.
+     * @param nanos the time taken
+     */
+    public void handshake(long nanos) {
+        handshakes.record(nanos);
+    }
+
+    /**
+     * Adds a challenge store to the reported store size.
+     * @param store the store
+     */
+    public void addStore(ChallengeStore store) {
+        stores.add(store);
+    }
+
+    /**
+     * Sets the debug log whose dropped events are reported.
+     * @param log the log
+     */
+    public void setLog(DebugLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Sets the traffic capture whose recorded and dropped messages are reported.
+     * @param capture the capture
+     */
+    public void setCapture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Sets the queue of connections waiting for a handshake worker, whose length is reported.
+     * @param queue the queue
+     */
+    public void setQueue(Collection<?> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Sets the cluster whose forwarded lookups are reported.
+     * @param cluster the cluster
+     */
+    public void setCluster(ChallengeCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Sets the pool whose size and misses are reported.
+     * @param pool the challenge pool
+     */
+    public void setPool(ChallengePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the users read from an index file, whose reloads are reported and
+     * can be asked for with the reloadCredentials operation or a POST to /reload.
+     * @param credentials the users
+     */
+    public void setCredentials(ReloadingCredentialStore credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and, if a port is
+     * given, serves them as text on the loopback interface only, where a POST
+     * to /reload also asks for the users to be read again.
+     * @param port the port of the text endpoint, or 0 for JMX only
+     * @throws IOException if the port cannot be bound
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void expose(int port) throws IOException, JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("tcpudp:type=ServerMetrics,server=" + name));
+        if (port == 0)
+            return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        http.createContext("/reload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean post = exchange.getRequestMethod().equals("POST");
+                byte[] body = ((post ? reloadCredentials() : "Use POST") + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(post ? 200 : 405, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public String text() {
+        StringBuilder sb = new StringBuilder();
+        String last = null;
+        for (Sample s : snapshot()) {
+            // A summary's count belongs to its family and has no type of its own
+            if (s.type != null && !s.name.equals(last))
+                sb.append("# TYPE ").append(s.name).append(' ').append(s.type).append('\n');
+            last = s.name;
+            sb.append(s.name);
+            if (s.label != null)
+                sb.append('{').append(s.label).append("=\"").append(s.labelValue).append("\"}");
+            sb.append(' ').append(s.value).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads every metric, summing counters and copying histograms as it goes.
+     * Concurrent updates may or may not be included.
+     */
+    private List<Sample> snapshot() {
+        List<Sample> samples = new ArrayList<Sample>();
+        for (int i = 0; i < messages.length; i++)
+            samples.add(new Sample("auth_messages_total", "counter", "type", MESSAGES[i], messages[i].sum()));
+        long rejected = 0;
+        for (LongAdder f : failures)
+            rejected += f.sum();
+        samples.add(new Sample("auth_results_total", "counter", "result", "AUT1", authenticated.sum()));
+        samples.add(new Sample("auth_results_total", "counter", "result", "AUT0", rejected));
+        long busy = 0;
+        for (LongAdder s : shed)
+            busy += s.sum();
+        samples.add(new Sample("auth_results_total", "counter", "result", "AUT2", busy));
+        for (int i = 0; i < failures.length; i++)
+            samples.add(new Sample("auth_failures_total", "counter", "reason", REASONS[i], failures[i].sum()));
+        for (int i = 0; i < shed.length; i++)
+            samples.add(new Sample("auth_shed_total", "counter", "cause", SHED_CAUSES[i], shed[i].sum()));
+        Collection<?> q = queue;
+        samples.add(new Sample("auth_queued_connections", "gauge", null, null, q == null ? 0 : q.size()));
+        long size = 0;
+        long expirations = 0;
+        long evictions = 0;
+        for (ChallengeStore store : stores) {
+            size += store.size();
+            expirations += store.expirations();
+            evictions += store.evictions();
+        }
+        samples.add(new Sample("auth_challenge_store_size", "gauge", null, null, size));
+        samples.add(new Sample("auth_challenge_store_expirations_total", "counter", null, null, expirations));
+        samples.add(new Sample("auth_challenge_store_evictions_total", "counter", null, null, evictions));
+        ReloadingCredentialStore u = credentials;
+        samples.add(new Sample("auth_users", "gauge", null, null, u == null ? 0 : u.size()));
+        samples.add(new Sample("auth_credential_reloads_total", "counter", null, null, u == null ? 0 : u.reloads()));
+        samples.add(new Sample("auth_credential_reload_failures_total", "counter", null, null, u == null ? 0 : u.failures()));
+        samples.add(new Sample("auth_credential_reload_seconds", "gauge", null, null, u == null ? 0 : u.reloadTime() / 1e9));
+        ChallengePool p = pool;
+        samples.add(new Sample("auth_challenge_pool_size", "gauge", null, null, p == null ? 0 : p.size()));
+        samples.add(new Sample("auth_challenge_pool_misses_total", "counter", null, null, p == null ? 0 : p.misses()));
+        samples.add(new Sample("auth_active_connections", "gauge", null, null, connections.sum()));
+        for (int i = 0; i < evicted.length; i++)
+            samples.add(new Sample("auth_evicted_connections_total", "counter", "cause", EVICTION_CAUSES[i], evicted[i].sum()));
+        DebugLog l = log;
+        samples.add(new Sample("auth_debug_events_dropped_total", "counter", null, null, l == null ? 0 : l.dropped()));
+        TrafficCapture t = capture;
+        samples.add(new Sample("auth_capture_records_total", "counter", null, null, t == null ? 0 : t.records()));
+        samples.add(new Sample("auth_capture_dropped_total", "counter", null, null, t == null ? 0 : t.dropped()));
+        ChallengeCluster c = cluster;
+        samples.add(new Sample("auth_cluster_forwarded_total", "counter", null, null, c == null ? 0 : c.forwarded()));
+        samples.add(new Sample("auth_cluster_peer_failures_total", "counter", null, null, c == null ? 0 : c.peerFailures()));
+        samples.add(new Sample("auth_cluster_peers_down", "gauge", null, null, c == null ? 0 : c.peersDown()));
+        summary(samples, "auth_request_latency_seconds", requests.snapshot());
+        summary(samples, "auth_handshake_latency_seconds", handshakes.snapshot());
+        return samples;
+    }
+
+    private static void summary(List<Sample> samples, String name, LatencyHistogram h) {
+        for (double q : QUANTILES)
+            samples.add(new Sample(name, "summary", "quantile", String.valueOf(q), h.percentile(q * 100) / 1e9));
+        samples.add(new Sample(name + "_count", null, null, null, h.count()));
+        samples.add(new Sample(name + "_max", "gauge", null, null, h.max() / 1e9));
+    }
+
+    /**
+     * One value, named the same for JMX as for the text format with the label
+     * value appended.
+     */
+    private static final class Sample {
+        final String name;
+        final String type;
+        final String label;
+        final String labelValue;
+        final Number value;
+
+        Sample(String name, String type, String label, String labelValue, Number value) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+
+        String attribute() {
+            return label == null ? name : name + "_" + labelValue;
+        }
+    }
+
+    /**
+     * A LatencyHistogram that many threads record into at once.
+     */
+    private static final class Histogram {
+        private static final int STRIPES = 4;
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++)
+                stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(LatencyHistogram.bucket(nanos));
+            long m = max.get();
+            // Only the first few values of a run raise the max, the rest skip the CAS
+            while (nanos > m && !max.compareAndSet(m, nanos))
+                m = max.get();
+        }
+
+        LatencyHistogram snapshot() {
+            LatencyHistogram h = new LatencyHistogram();
+            long m = max.get();
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                long count = 0;
+                for (AtomicLongArray stripe : stripes)
+                    count += stripe.get(i);
+                if (count > 0)
+                    h.add(i, count, m);
+            }
+            return h;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Sample s : snapshot())
+            if (s.attribute().equals(attribute))
+                return s.value;
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        List<Sample> samples = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes)
+            for (Sample s : samples)
+                if (s.attribute().equals(attribute))
+                    list.add(new Attribute(attribute, s.value));
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("reloadCredentials") && (params == null || params.length == 0))
+            return reloadCredentials();
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * Asks for the users to be read again from their index file, in the background.
+     * @return what was done
+     */
+    private String reloadCredentials() {
+        ReloadingCredentialStore u = credentials;
+        if (u == null)
+            return "No index file (-u) to reload";
+        u.reload();
+        return "Reload requested";
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<Sample> samples = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            Sample s = samples.get(i);
+            attributes[i] = new MBeanAttributeInfo(s.attribute(), s.value.getClass().getName(),
+                    String.format(Locale.ROOT, "%s (%s)", s.name, s.type == null ? "summary" : s.type), true, false, false);
+        }
+        MBeanOperationInfo[] operations = {new MBeanOperationInfo("reloadCredentials",
+                "Reads the users again from the index file given with -u", new MBeanParameterInfo[0],
+                String.class.getName(), MBeanOperationInfo.ACTION)};
+        return new MBeanInfo(getClass().getName(), "Metrics of " + name, attributes, null, operations, null);
+    }
+}
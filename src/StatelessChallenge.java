@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Challenges the server can recompute instead of remembering.
+ *
+ * A challenge is derived from a secret key, the client's address and port
+ * (packed as in {@link ChallengeStore#key}) and the time window it was issued in:
+ *
+ *  Index 0-15:  Issue window, 16 hex digits (milliseconds / WINDOW)
+ *  Index 16-63: First 24 bytes of HMAC-SHA256(key, client key | window), hex
+ *
+ * The URH does not echo the challenge back, so on URH the server regenerates
+ * the challenges of the windows that are still valid for that client and checks
+ * the hash against each of them, newest first. Nothing is stored per client,
+ * and every server holding the same key and a roughly synchronised clock can
+ * finish a handshake another one started.
+ *
+ * A challenge is accepted for at least the ttl and at most ttl + WINDOW after
+ * it was issued.
+ *
+ * Replay is accepted by design. Checking a URH must not look anything up, and
+ * a URH only carries the username and the hash, so the challenge can hold no
+ * nonce the server could check and nothing records that a challenge was used.
+ * Every REQ from the same address and port gets the same challenge within a
+ * window, and the same URH is accepted again, as often as it is sent, from
+ * that address and port until ttl to ttl + WINDOW (10 to 15 seconds with the
+ * default ttl) after the first REQ of its window. Over TCP the address and
+ * port are those of the client's own connection, and the AUT goes back there.
+ * Servers that must accept each challenge once store them instead
+ * ({@link ChallengeStore}, or {@link ChallengeCluster} across servers).
+ */
+public final class StatelessChallenge {
+
+    public static final int CHALLENGE_LENGTH = 64;
+    public static final long WINDOW = 5000;
+
+    private static final int KEY_LENGTH = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SecretKeySpec key;
+    private final long ttl;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+    };
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
+
+    /**
+     * @param key the secret shared by every server that should accept these challenges
+     * @param ttl minimum time a challenge stays valid, in milliseconds
+     */
+    public StatelessChallenge(byte[] key, long ttl) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.ttl = ttl;
+    }
+
+    /**
+     * Reads the key from a file, so several servers can share it.
+     * @param path the key file, any length
+     * @param ttl minimum time a challenge stays valid, in milliseconds
+     * @return the challenge generator
+     * @throws IOException if the file cannot be read
+     */
+    public static StatelessChallenge fromFile(String path, long ttl) throws IOException {
+        byte[] key = Files.readAllBytes(Paths.get(path));
+        if (key.length == 0)
+            throw new IOException("Empty key file: " + path);
+        return new StatelessChallenge(key, ttl);
+    }
+
+    /**
+     * Creates a generator with a random key, only useful to a single server.
+     * @param ttl minimum time a challenge stays valid, in milliseconds
+     * @return the challenge generator
+     */
+    public static StatelessChallenge withRandomKey(long ttl) {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return new StatelessChallenge(key, ttl);
+    }
+
+    /**
+     * Writes the challenge for a client into the given array.
+     * @param clientKey the client key, see {@link ChallengeStore#key}
+     * @param dst array receiving CHALLENGE_LENGTH ASCII bytes
+     * @param offset where to write in the array
+     */
+    public void issue(long clientKey, byte[] dst, int offset) {
+        generate(clientKey, System.currentTimeMillis() / WINDOW, dst, offset);
+    }
+
+    /**
+     * @return the number of windows {@link #candidate} has to be asked for
+     */
+    public int candidates() {
+        return (int) ((ttl + WINDOW - 1) / WINDOW) + 1;
+    }
+
+    /**
+     * Writes one of the challenges a client may be answering, newest first.
+     * @param clientKey the client key, see {@link ChallengeStore#key}
+     * @param age 0 for the current window, up to {@link #candidates()} - 1
+     * @param dst array receiving CHALLENGE_LENGTH ASCII bytes
+     * @param offset where to write in the array
+     */
+    public void candidate(long clientKey, int age, byte[] dst, int offset) {
+        generate(clientKey, System.currentTimeMillis() / WINDOW - age, dst, offset);
+    }
+
+    private void generate(long clientKey, long window, byte[] dst, int offset) {
+        byte[] buf = scratch.get();
+        putLong(buf, 0, clientKey);
+        putLong(buf, 8, window);
+        Mac mac = macs.get();
+        mac.update(buf, 0, 16);
+        try {
+            mac.doFinal(buf, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < 16; i++)
+            dst[offset + i] = (byte) HEX[(int) (window >>> (60 - 4 * i)) & 0xf];
+        for (int i = 0; i < 24; i++) {
+            dst[offset + 16 + 2 * i] = (byte) HEX[(buf[i] >> 4) & 0xf];
+            dst[offset + 17 + 2 * i] = (byte) HEX[buf[i] & 0xf];
+        }
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        for (int i = 0; i < 8; i++)
+            b[offset + i] = (byte) (v >>> (56 - 8 * i));
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link AuthClient} for a TCPServer. Handshakes are spread over a small pool
+ * of connections, and each connection pipelines any number of them as binary
+ * TAGGED frames, so authenticating a user costs no connection of its own.
+ *
+ * Every connection has a writer thread that takes the messages of its queue
+ * and writes them, flushing only when the queue is empty, so messages queued
+ * together share a write; and a reader thread that hands the answers to
+ * AuthClient. A connection is opened when it is first needed and opened again
+ * after the server closed it, for example because it stayed idle longer than
+ * the server allows. Handshakes still unanswered on a connection that is lost
+ * start over on the new one, once.
+ *
+ * With text framing the messages are text lines, and the single handshake in
+ * flight always runs on the first connection.
+ */
+public class TCPAuthClient extends AuthClient {
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a client with DEFAULT_CONNECTIONS connections.
+     * @param address the server
+     */
+    public TCPAuthClient(InetSocketAddress address) {
+        this(address, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Creates a client, the connections are opened when they are first used.
+     * @param address the server
+     * @param connections number of connections to spread the handshakes over
+     */
+    public TCPAuthClient(InetSocketAddress address, int connections) {
+        this(address, connections, false);
+    }
+
+    /**
+     * Creates a client, the connections are opened when they are first used.
+     * @param address the server
+     * @param connections number of connections to spread the handshakes over
+     * @param text whether to send text lines instead of TAGGED frames, one handshake at a time
+     */
+    public TCPAuthClient(InetSocketAddress address, int connections, boolean text) {
+        super(address, text);
+        if (connections < 1)
+            throw new IllegalArgumentException("At least one connection is needed");
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+            Thread t = new Thread(this.connections[i], "auth-client-tcp-writer-" + i);
+            t.setDaemon(true);
+            this.connections[i].writer = t;
+            t.start();
+        }
+    }
+
+    @Override
+    protected void send(Handshake h) {
+        if (!h.enqueue())
+            return;
+        Connection c = connections[(h.id & Integer.MAX_VALUE) % connections.length];
+        c.queue.add(h);
+        LockSupport.unpark(c.writer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Connection c : connections) {
+            LockSupport.unpark(c.writer);
+            c.close();
+        }
+    }
+
+    /**
+     * Called by the reader or writer of a connection when it fails. The
+     * handshakes that were waiting on it start over, or fail if they did already.
+     */
+    private void lost(Socket socket, IOException e) {
+        try {
+            socket.close();
+        } catch (IOException e1) {
+            // closed already
+        }
+        for (Handshake h : inFlight(socket)) {
+            if (!(e instanceof ServerBusyException) && !closed && restart(h))
+                send(h);
+            else
+                fail(h, e);
+        }
+    }
+
+    /**
+     * Reads the answers of one socket until it fails or is closed.
+     */
+    private void read(Socket socket) {
+        if (text) {
+            readText(socket);
+            return;
+        }
+        try {
+            DataInputStream receive = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] frame = new byte[WireCodec.MAX_FRAME_LENGTH];
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            while (true) {
+                receive.readFully(frame, 0, WireCodec.HEADER_LENGTH);
+                // A server that sheds a connection before reading from it answers in text
+                if (frame[0] == 'A' && frame[1] == 'U' && frame[2] == 'T' && frame[3] == '0' + WireCodec.BUSY)
+                    throw new ServerBusyException();
+                in.clear();
+                in.limit(WireCodec.frameLength(in));
+                receive.readFully(frame, WireCodec.HEADER_LENGTH, in.limit() - WireCodec.HEADER_LENGTH);
+                int type = WireCodec.type(in);
+                if (type == WireCodec.AUT && WireCodec.result(in) == WireCodec.BUSY)
+                    throw new ServerBusyException();
+                if (type != WireCodec.TAGGED)
+                    throw new IOException("Expected a tagged frame");
+                int id = WireCodec.tag(in);
+                in.position(WireCodec.taggedFrame(in));
+                if (WireCodec.type(in) == WireCodec.AUT && WireCodec.result(in) == WireCodec.BUSY)
+                    throw new ServerBusyException();
+                received(id, in);
+            }
+        } catch (IOException e) {
+            lost(socket, e);
+        }
+    }
+
+    /**
+     * Reads the text answers of one socket until it fails or is closed. They
+     * are all for the one handshake in flight.
+     */
+    private void readText(Socket socket) {
+        try {
+            BufferedInputStream receive = new BufferedInputStream(socket.getInputStream());
+            byte[] line = new byte[WireCodec.MAX_FRAME_LENGTH];
+            ByteBuffer in = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+            while (true) {
+                int length = 0;
+                for (int b = receive.read(); b != '\n'; b = receive.read()) {
+                    if (b < 0)
+                        throw new EOFException();
+                    // Longer than any answer, the rest cannot matter
+                    if (length < line.length)
+                        line[length++] = (byte) b;
+                }
+                in.clear();
+                if (!decodeText(line, length, in))
+                    throw new IOException("Expected a CHA or AUT");
+                in.flip();
+                received(0, in);
+            }
+        } catch (IOException e) {
+            lost(socket, e);
+        }
+    }
+
+    /**
+     * One pooled connection and its writer.
+     */
+    private final class Connection implements Runnable {
+        final ConcurrentLinkedQueue<Handshake> queue = new ConcurrentLinkedQueue<Handshake>();
+        volatile Thread writer;
+        // Only written by the writer
+        private volatile Socket socket;
+
+        @Override
+        public void run() {
+            ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+            OutputStream send = null;
+            while (!closed) {
+                Handshake h = queue.poll();
+                if (h == null) {
+                    if (send != null) {
+                        try {
+                            send.flush();
+                        } catch (IOException e) {
+                            lost(socket, e);
+                            send = null;
+                        }
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (send == null || socket.isClosed()) {
+                    try {
+                        send = open();
+                    } catch (IOException e) {
+                        send = null;
+                        fail(h, e);
+                        continue;
+                    }
+                }
+                out.clear();
+                if (text) {
+                    if (!h.encode(out, socket))
+                        continue;
+                    out.put((byte) '\n');
+                } else {
+                    int start = WireCodec.beginTagged(out, h.id);
+                    if (!h.encode(out, socket))
+                        continue;
+                    WireCodec.endTagged(out, start);
+                }
+                try {
+                    send.write(out.array(), 0, out.position());
+                } catch (IOException e) {
+                    lost(socket, e);
+                    send = null;
+                }
+            }
+        }
+
+        private OutputStream open() throws IOException {
+            final Socket s = new Socket();
+            try {
+                s.connect(address, DEFAULT_TIMEOUT);
+                s.setTcpNoDelay(true);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            socket = s;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read(s);
+                }
+            }, "auth-client-tcp-reader");
+            t.setDaemon(true);
+            t.start();
+            return new BufferedOutputStream(s.getOutputStream());
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s == null)
+                return;
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+    }
+}
@@ -1,18 +1,31 @@
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.io.*;
 import java.util.Date;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class TCPClient {
 
     //private static final int PACKETSIZE = 128;
 	private static final int RANDOM_STRING_LENGTH = 64;
-    private static String username;
-    private static String password;
     private static boolean debug = false;
+    private static boolean binary = false;
+    // Set with -r, keeps the tickets that let the next run skip the challenge
+    private static TicketCache tickets = null;
     private static final int DEFAULT_PORT = 1024;
+    private static final String USAGE = "usage: TCPClient [-d] [-b] [-r<ticketfile>] [host:port] [username] [password]\n"
+    		+ "       TCPClient -l<userfile> [-b] [-c<concurrency>] [-q<handshakes per second>] [-s<seconds>] [host:port]\n"
+    		+ "       TCPClient -g<userfile> [host:port]";
+    // Load mode, see LoadGenerator
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int DEFAULT_SECONDS = 10;
+    private static final int LOAD_TIMEOUT = 5000;
+    // Pipelined mode, see authenticatePipelined
+    private static final int PIPELINE_DEPTH = 64;
 
     /****************************************************************************
      *   ---------------------------------------------------------------------  *
@@ -22,6 +35,7 @@ public class TCPClient {
      *  |   CHA      | Random String    | Send URH                            | *
      *  |   URH      | Username & Hash  | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *  |   AUT      | Authentication   | Determine Result                    | *
+     *  |   RES      | Resume           | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *   ---------------------------------------------------------------------  *
      *                                                                          *
      *  Message Format:                                                         *
@@ -40,97 +54,82 @@ public class TCPClient {
      *                                                                          *
      *  - AUTHENTICATION -                                                      *
      *  Index 0-2: Message Type (AUT)                                           *
-     *  Index 3:   Result (0=Fail, 1=Succeed)                                   *
+     *  Index 3:   Result (0=Fail, 1=Succeed, 2=Busy, try again later)          *
+     *  Index 4-67: Resumption ticket, if the server hands them out             *
+     *                                                                          *
+     *  - RESUME -                                                              *
+     *  Same as USERNAME & HASH, with the hash taken over the ticket instead    *
+     *  of a random string, followed by the 64 character ticket                 *
+     *                                                                          *
+     *  The handshake of a user runs through the client library (AuthClient,    *
+     *  TCPAuthClient) as text lines, or with -b as binary frames. With -g      *
+     *  the handshakes of every user in a file are pipelined over one           *
+     *  connection as TAGGED frames (see WireCodec and authenticatePipelined).  *
      *                                                                          *
      ***************************************************************************/
 
     /**
-     * Parses the received message and generates the response accordingly.
-     * @param message Message received from server
-     * @return  response message
-     * @throws NoSuchAlgorithmException
-     * @throws UnsupportedEncodingException
-     */
-    private String parseMessage(String message) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        if(message.length() < 4){
-        	if(debug)
-        		System.out.print("Received message too short. ");
-        	System.exit(0);
-        }
-
-        String type = message.substring(0,3);
-        String data = message.substring(3);
-        StringBuilder sb = new StringBuilder();
-
-        // Determine type of message and handle accordingly
-        if (type.equals("CHA")) {
-            String hash = hash(username+password+data.substring(0,RANDOM_STRING_LENGTH));
-            sb.append("URH");
-            sb.append(username.length());
-            sb.append(username);
-            sb.append(hash);
-        } else if (type.equals("AUT")) {
-            int result = Character.getNumericValue(data.charAt(0));
-            if (result==1)
-                System.out.println("Welcome to our service.");
-            else
-                System.out.println("User authorization failed.");
-            System.exit(0);
-        } else {
-            System.out.println("Cannot understand message.");
-            System.exit(0);
-        }
-
-        if (debug) {
-            String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-            System.out.println("["+timeStamp+"] "+"Sending Message: "+sb.toString());
-        }
-        sb.append('\n'); // add end of message character to message
-        return sb.toString();
-    }
-
-    /**
-     * Generates a MD5 hash from a given string
+     * Generates a raw MD5 hash from a given string
      * @param s the String to generate MD5 from
      * @return generated MD5
      * @throws NoSuchAlgorithmException
      * @throws UnsupportedEncodingException
      */
-    private String hash(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    private byte[] digest(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
     	MessageDigest md = MessageDigest.getInstance("MD5");
     	md.reset();
-		byte[] digest = md.digest(s.getBytes("UTF-8"));
-		StringBuffer sb = new StringBuffer();
-		for (byte b : digest) {
-			sb.append(String.format("%02x", b & 0xff));
-		}
-		return sb.toString();
+		return md.digest(s.getBytes("UTF-8"));
     }
 
     public static void main(String args[]) throws Exception {
-    	if(args.length > 4 || args.length < 3){
+    	if(args.length > 11 || args.length < 1){
     		System.out.println("Wrong number of arguments");
-    		System.out.println("usage: TCPClient [-d] [host:port] [username] [password]");
+    		System.out.println(USAGE);
     		System.exit(0);
     	}
 
     	int off = 0;
-    	if (args[0].charAt(0) == '-'){
-    		if(args[0].charAt(1)!='d'){
-				System.out.println("Not a valid option: "+args[0]);
-				System.out.println("usage: TCPClient [-d] [host:port] [username] [password]");
+    	String userFile = null;
+    	String pipelineFile = null;
+    	int concurrency = DEFAULT_CONCURRENCY;
+    	double rate = 0;
+    	int seconds = DEFAULT_SECONDS;
+    	while (off < args.length && args[off].charAt(0) == '-'){
+    		if(args[off].equals("-d"))
+    			debug = true;
+    		else if(args[off].equals("-b"))
+    			binary = true;
+    		else if(args[off].startsWith("-r") && args[off].length() > 2)
+    			tickets = new TicketCache(args[off].substring(2));
+    		else if(args[off].startsWith("-l") && args[off].length() > 2)
+    			userFile = args[off].substring(2);
+    		else if(args[off].startsWith("-g") && args[off].length() > 2)
+    			pipelineFile = args[off].substring(2);
+    		else if(args[off].matches("-c[1-9]\\d*") && Options.parseInt(args[off].substring(2)) > 0)
+    			concurrency = Options.parseInt(args[off].substring(2));
+    		else if(args[off].matches("-q\\d+(\\.\\d+)?"))
+    			rate = Double.parseDouble(args[off].substring(2));
+    		else if(args[off].matches("-s[1-9]\\d*") && Options.parseInt(args[off].substring(2)) > 0)
+    			seconds = Options.parseInt(args[off].substring(2));
+    		else{
+				System.out.println("Not a valid option: "+args[off]);
+				System.out.println(USAGE);
 				System.exit(0);
 			}
-			debug = true;
 			off++;
     	}
+    	if(args.length - off != (userFile == null && pipelineFile == null ? 3 : 1)){
+    		System.out.println("Wrong number of arguments");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
         String delimiter = "[:]+";
         String[] tokens = args[0+off].split(delimiter);
         String hostStr = tokens[0];
         InetAddress host = InetAddress.getByName(hostStr);
         int port = DEFAULT_PORT;
         if(tokens.length > 1 && tokens[1].matches("\\d+"))
-        	port = Integer.parseInt(tokens[1]);
+        	port = (int) Options.parse(tokens[1], 9999);
         else if(debug)
         	System.out.println("Using default port number 1024");
         if(port < 1024 || port > 9999){
@@ -138,7 +137,32 @@ public class TCPClient {
 			System.exit(0);
     	}
 
-        username = args[1+off];
+        if (userFile != null) {
+            runLoad(new InetSocketAddress(host, port), LoadGenerator.readUsers(userFile), concurrency, rate, seconds);
+            return;
+        }
+        if (pipelineFile != null) {
+            String[][] users = LoadGenerator.readUsers(pipelineFile);
+            long start = System.nanoTime();
+            boolean[] results = null;
+            try {
+                results = authenticatePipelined(new InetSocketAddress(host, port), users);
+            } catch (ConnectException e) {
+                System.out.println("Server unreachable.");
+                System.exit(0);
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            int authenticated = 0;
+            for (int i = 0; i < users.length; i++) {
+                System.out.println(users[i][0] + ": " + (results[i] ? "Welcome to our service." : "User authorization failed."));
+                if (results[i])
+                    authenticated++;
+            }
+            System.out.println(authenticated + " of " + users.length + " users authenticated in " + elapsed + " ms");
+            return;
+        }
+
+        String username = args[1+off];
         if(username.length()>15 || username.length() < 1){
         	System.out.println("Invalid user name length. Only 1-15");
         	System.exit(0);
@@ -147,7 +171,7 @@ public class TCPClient {
         	System.out.println("Invalid username. Aalphanumeric and underscores only.");
         	System.exit(0);
         }
-        password = args[2+off];
+        String password = args[2+off];
         if(password.length()>15 || password.length() < 1){
         	System.out.println("Invalid password length. Only 1-15");
         	System.exit(0);
@@ -157,41 +181,175 @@ public class TCPClient {
         	System.exit(0);
         }
 
-        // Initiate client
-        TCPClient client = new TCPClient();
-        Socket clientSocket = new Socket(host, port);
-        BufferedReader receiveBuffer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        DataOutputStream sendBuffer = new DataOutputStream(clientSocket.getOutputStream());
-
-        // Check connection
-        if (!clientSocket.isConnected()) {
-            System.out.println("Connection is not established. Please try again.");
-            clientSocket.close();
-            System.exit(0);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if(debug){
+            String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
+        	System.out.println("["+timeStamp+"] "+"Authenticating "+username+" at "+host+":"+port);
         }
-
-        // Send request message
-        String request = "REQ\n";
-        sendBuffer.writeBytes(request);
+        long start = System.nanoTime();
+        // A single handshake through the client library
+        AuthClient client = new TCPAuthClient(address, 1, !binary);
+        client.setTickets(tickets);
+        String outcome = outcome(client.authenticate(username, password));
+        client.close();
         if(debug){
             String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-        	System.out.println("["+timeStamp+"] "+"Sending Message: REQ to " +host+":"+port);
+        	System.out.println("["+timeStamp+"] "+"Answered in "+(System.nanoTime() - start) / 1000000+" ms");
         }
-        // Keep it running until authentication message is received.
-        String receiveData = "";
-        while(true){
-            receiveBuffer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            sendBuffer = new DataOutputStream(clientSocket.getOutputStream());
-	        	receiveData = receiveBuffer.readLine();
-                if (debug) {
-                    String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                    System.out.println("["+timeStamp+"] "+"Received Message: "+receiveData+" from "+ host+":"+port);
-                }
-	        sendBuffer.writeBytes(client.parseMessage(receiveData));
-            if (receiveData.substring(0,3).equals("AUT")) {
-                clientSocket.close();
-                break;
+        System.out.println(outcome);
+    }
+
+    /**
+     * Waits for a handshake of the client library and tells how it ended.
+     * @param result the future returned by AuthClient.authenticate
+     * @return the line to print
+     * @throws InterruptedException
+     */
+    private static String outcome(Future<Boolean> result) throws InterruptedException {
+        try {
+            return result.get() ? "Welcome to our service." : "User authorization failed.";
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AuthClient.ServerBusyException)
+                return "Server busy, try again later.";
+            if (e.getCause() instanceof SocketTimeoutException)
+                return "Connection timeout.";
+            if (e.getCause() instanceof ConnectException)
+                return "Server unreachable.";
+            return "Connection failed: " + e.getCause().getMessage();
+        }
+    }
+
+    /**
+     * A server that sheds a connection before the client sent anything cannot
+     * know it speaks binary, and answers with the text line AUT2.
+     * @param header the first HEADER_LENGTH bytes received
+     * @return whether they are that line
+     */
+    private static boolean textBusy(byte[] header) {
+        return header[0] == 'A' && header[1] == 'U' && header[2] == 'T' && header[3] == '0' + WireCodec.BUSY;
+    }
+
+    /**
+     * Authenticates many users over one connection, their handshakes pipelined
+     * as binary TAGGED frames by {@link TCPAuthClient}. Up to PIPELINE_DEPTH
+     * handshakes are in flight at once.
+     * @param address the server
+     * @param users username and password pairs
+     * @return whether each user was authenticated; users the server did not answer for in time count as failed
+     * @throws IOException if the connection fails, the server is busy or answers out of protocol
+     */
+    public static boolean[] authenticatePipelined(InetSocketAddress address, String[][] users) throws IOException {
+        AuthClient client = new TCPAuthClient(address, 1);
+        try {
+            return client.authenticateAll(users, PIPELINE_DEPTH);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Runs handshakes for many users at once instead of one, see {@link LoadGenerator}.
+     * Each handshake opens its own connection, like a separate run of the client.
+     * @param address the server
+     * @param users username and password pairs
+     * @param concurrency number of handshakes in flight
+     * @param rate handshakes per second, 0 for as many as the concurrency allows
+     * @param seconds how long to run
+     * @throws InterruptedException
+     */
+    private static void runLoad(final InetSocketAddress address, String[][] users, int concurrency, double rate, int seconds) throws InterruptedException {
+        System.out.println("Running " + (binary ? "binary" : "text") + " handshakes against " + address + " for " + seconds + " s");
+        new LoadGenerator(users, concurrency, rate, seconds) {
+            @Override
+            protected Session newSession() {
+                return new LoadSession(address);
             }
+        }.run();
+    }
+
+    /**
+     * The client side of a handshake for the load mode. Unlike the client
+     * library it opens a connection for every handshake, and sends each
+     * message with one write and TCP_NODELAY, so the numbers describe the server.
+     */
+    static private class LoadSession implements LoadGenerator.Session {
+        private final InetSocketAddress address;
+        private final TCPClient client = new TCPClient();
+        private final byte[] frame = new byte[WireCodec.MAX_FRAME_LENGTH];
+        private final ByteBuffer in = ByteBuffer.wrap(frame);
+        private final ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+
+        private LoadSession(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public boolean handshake(String username, String password, LoadGenerator.Phases phases) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, LOAD_TIMEOUT);
+                socket.setSoTimeout(LOAD_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                phases.lap(LoadGenerator.CONNECT);
+                DataInputStream receive = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream send = socket.getOutputStream();
+                if (binary)
+                    return binaryHandshake(username, password, phases, receive, send);
+
+                send.write("REQ\n".getBytes("US-ASCII"));
+                String challenge = LoadGenerator.readLine(receive);
+                phases.lap(LoadGenerator.CHALLENGE);
+                if (challenge.equals("AUT2"))
+                    throw new LoadGenerator.ServerBusy();
+                if (!challenge.startsWith("CHA") || challenge.length() < 3 + RANDOM_STRING_LENGTH)
+                    throw new LoadGenerator.UnexpectedMessage(challenge);
+                String hash = LoadGenerator.hex(client.digest(username+password+challenge.substring(3, 3 + RANDOM_STRING_LENGTH)));
+                send.write(("URH" + Integer.toHexString(username.length()) + username + hash + "\n").getBytes("US-ASCII"));
+                String authentication = LoadGenerator.readLine(receive);
+                phases.lap(LoadGenerator.AUTHENTICATION);
+                if (!authentication.startsWith("AUT") || authentication.length() < 4)
+                    throw new LoadGenerator.UnexpectedMessage(authentication);
+                return authentication.charAt(3) == '1';
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                socket.close();
+            }
+        }
+
+        private boolean binaryHandshake(String username, String password, LoadGenerator.Phases phases, DataInputStream receive, OutputStream send) throws IOException, NoSuchAlgorithmException {
+            out.clear();
+            WireCodec.encodeRequest(out);
+            send.write(out.array(), 0, out.position());
+            int type = readFrame(receive);
+            if (type == WireCodec.AUT && WireCodec.result(in) == WireCodec.BUSY)
+                throw new LoadGenerator.ServerBusy();
+            if (type != WireCodec.CHA)
+                throw new LoadGenerator.UnexpectedMessage("Expected a binary CHA");
+            phases.lap(LoadGenerator.CHALLENGE);
+            String random = new String(frame, WireCodec.challengeOffset(in), WireCodec.CHALLENGE_LENGTH, "US-ASCII");
+            byte[] user = username.getBytes("US-ASCII");
+            out.clear();
+            WireCodec.encodeUsernameHash(out, user, 0, user.length, client.digest(username+password+random), 0);
+            send.write(out.array(), 0, out.position());
+            if (readFrame(receive) != WireCodec.AUT)
+                throw new LoadGenerator.UnexpectedMessage("Expected a binary AUT");
+            phases.lap(LoadGenerator.AUTHENTICATION);
+            return WireCodec.result(in) == 1;
+        }
+
+        private int readFrame(DataInputStream receive) throws IOException {
+            receive.readFully(frame, 0, WireCodec.HEADER_LENGTH);
+            if (textBusy(frame))
+                throw new LoadGenerator.ServerBusy();
+            in.clear();
+            in.limit(WireCodec.frameLength(in));
+            receive.readFully(frame, WireCodec.HEADER_LENGTH, in.limit() - WireCodec.HEADER_LENGTH);
+            return WireCodec.type(in);
+        }
+
+        @Override
+        public void close() {
         }
     }
 }
@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based alternative to the thread-per-connection model of TCPServer.
+ *
+ * One thread accepts connections and hands them out round robin to a fixed
+ * number of event loops. Each loop owns a Selector, frames the REQ/URH lines
+ * itself and answers them through {@link TCPServer#parseMessage}, so the
+ * CHA/AUT responses are exactly the same as in the blocking server.
+ */
+public class TCPEventLoop implements Runnable {
+
+    private static final int MAX_PACKETSIZE = 128;
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+
+    private TCPEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Accepts connections on the given port and dispatches them to the event loops.
+     * Never returns unless the server socket fails.
+     * @param port the port to listen on
+     * @param threads number of event loop threads
+     * @throws IOException
+     */
+    public static void serve(int port, int threads) throws IOException {
+        TCPEventLoop[] loops = new TCPEventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new TCPEventLoop();
+            Thread t = new Thread(loops[i], "tcp-event-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        if (TCPServer.log != null)
+            TCPServer.log.message("Serving port " + port + " with " + threads + " event loops");
+
+        // The accepting thread only blocks in accept(), all socket I/O happens on the loops
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            if (!TCPServer.admit(channel.socket().getInetAddress(), channel.socket().getPort())) {
+                channel.close();
+                continue;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % threads;
+        }
+    }
+
+    /**
+     * Queues an accepted channel to be registered on this loop's selector.
+     * @param channel the accepted channel
+     */
+    private void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (Exception e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (TCPServer.log != null)
+                    TCPServer.log.message("Event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                TCPServer.metrics.connectionOpened();
+                if (TCPServer.log != null)
+                    TCPServer.log.log(DebugLog.CONNECTED, 0, connection.address, connection.port, null, 0);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                    // nothing left to clean up
+                }
+            }
+        }
+    }
+
+    /**
+     * Per connection framing state. Requests are lines of at most
+     * MAX_PACKETSIZE bytes or binary frames, responses are queued in a fixed
+     * output buffer.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final InetAddress address;
+        final int port;
+        final ByteBuffer in = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        final ByteBuffer out = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        SelectionKey key;
+        // When the last handshake on this connection ended, or it was accepted
+        long handshakeStart = System.nanoTime();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+            this.port = channel.socket().getPort();
+        }
+
+        void read() throws Exception {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            processMessages();
+            flush();
+        }
+
+        void write() throws Exception {
+            flush();
+            // Messages held back while the output buffer was full can be answered now
+            if (out.position() == 0 && in.position() > 0) {
+                processMessages();
+                flush();
+            }
+        }
+
+        /**
+         * Answers every complete message in the input buffer, as long as there is
+         * room in the output buffer for the response. The format is detected per
+         * message: binary frames start with WireCodec.MAGIC, anything else is a
+         * text line.
+         */
+        private void processMessages() throws Exception {
+            in.flip();
+            int start = in.position();
+            boolean blocked = false;
+            for (int i = start; i < in.limit(); i++) {
+                if (i == start && in.get(i) == WireCodec.MAGIC) {
+                    int length = WireCodec.frameLength(in);
+                    if (length < 0 || in.remaining() < length)
+                        break;
+                    if (out.remaining() < MAX_PACKETSIZE) {
+                        blocked = true;
+                        break;
+                    }
+                    int limit = in.limit();
+                    in.limit(start + length);
+                    int response = out.position();
+                    long begin = System.nanoTime();
+                    TCPServer.parseFrame(in, address, port, out);
+                    answered(begin, WireCodec.innerType(out, response) == WireCodec.AUT);
+                    in.limit(limit);
+                    start += length;
+                    in.position(start);
+                    i = start - 1;
+                    continue;
+                }
+                if (in.get(i) != '\n')
+                    continue;
+                if (out.remaining() < MAX_PACKETSIZE) {
+                    blocked = true;
+                    break;
+                }
+                int end = i;
+                if (end > start && in.get(end - 1) == '\r')
+                    end--;
+                String message = new String(in.array(), start, end - start, "US-ASCII");
+                long begin = System.nanoTime();
+                String response = TCPServer.parseMessage(message, address, port);
+                answered(begin, response.startsWith("AUT"));
+                out.put(response.getBytes("US-ASCII"));
+                start = i + 1;
+                in.position(start);
+            }
+            in.position(start);
+            in.compact();
+            // Same limit as the blocking server: lines longer than a packet drop the connection
+            if (!blocked && in.position() > 0 && in.get(0) != WireCodec.MAGIC && in.position() > MAX_PACKETSIZE + 1)
+                throw new IOException("Line too long");
+        }
+
+        /**
+         * Records the metrics of a request answered.
+         * @param begin when parsing it started
+         * @param authentication whether the answer was an AUT, which ends a handshake
+         */
+        private void answered(long begin, boolean authentication) {
+            long end = System.nanoTime();
+            TCPServer.metrics.request(end - begin);
+            if (authentication) {
+                TCPServer.metrics.handshake(end - handshakeStart);
+                handshakeStart = end;
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() > 0)
+                key.interestOps(SelectionKey.OP_WRITE);
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (key.isValid())
+                TCPServer.metrics.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -1,11 +1,13 @@
 import java.io.*;
 import java.net.*;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.security.NoSuchAlgorithmException;
-import java.util.Date;
 
 public class TCPServer {
 
@@ -17,12 +19,40 @@ public class TCPServer {
 		PASSWORD.put("user4", "pass4");
 		PASSWORD.put("user5", "pass5");
 	}
-	private static HashMap<String, String> challenge = new HashMap<String, String>();
+	// The built in users above, unless an index file is given with -u
+	private static CredentialStore credentials = new MapCredentialStore(PASSWORD);
+	// Created in main unless challenges are stateless
+	private static ChallengeStore challenge = null;
+	// Started with the challenge store, REQs take their challenge from it
+	private static ChallengePool pool = null;
     //private static final int MAX_PACKETSIZE = 128;
 	private static final int RANDOM_STRING_LENGTH = 64;
 	private static final int MD5_LENGTH = 32;
     private static final int DEFAULT_PORT = 1024;
-	private static boolean debug = false;
+    private static final String USAGE = "usage: TCPServer [-d[logfile]] [-n[threads] | -v] [-c<max handshakes>] [-q<queue length>[:<target ms>]] [-i<message ms>[:<handshake ms>]] [-s[keyfile]] [-t[keyfile]] [-u<indexfile>] [-m[metrics port]] [-r<rate>[:<subnet rate>]] [-p<capturefile>] [port]";
+	// Set with -d, null when debugging is off
+	static DebugLog log = null;
+	// Set with -p, records every message received and sent
+	private static TrafficCapture capture = null;
+	// Set when challenges are derived from a shared key instead of being stored
+	private static StatelessChallenge stateless = null;
+	// Set when successful handshakes hand out resumption tickets
+	private static ResumptionTickets tickets = null;
+	// Bounds the number of connections handled at once by the thread based modes, null if unbounded
+	private static Semaphore handshakeLimit = null;
+	// Set with -r, checked before a connection is handled or a message parsed
+	private static RateLimiter limiter = null;
+	// Set with -q, accepted connections wait here for one of the -c handshake workers
+	private static ArrayBlockingQueue<Pending> queue = null;
+	private static LoadShedder shedder = null;
+	private static final byte[] BUSY_MESSAGE = "AUT2\n".getBytes(StandardCharsets.US_ASCII);
+	// Read deadlines of the thread based modes, changed with -i. Each message must arrive
+	// within MESSAGE_TIMEOUT of the last answer, and a handshake finish within HANDSHAKE_TIMEOUT
+	private static long messageTimeout = 5000;
+	private static long handshakeTimeout = 10000;
+	private static TimerWheel timers = null;
+	// Always collected, exposed with -m
+	static final ServerMetrics metrics = new ServerMetrics("TCPServer");
 
     /****************************************************************************
      *  ----------------------------------------------------------------------  *
@@ -32,6 +62,7 @@ public class TCPServer {
      *  |   CHA      | Random String    | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *  |   URH      | Username & Hash  | Compare result, send Authentication | *
      *  |   AUT      | Authentication   | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
+     *  |   RES      | Resume           | Check ticket, send Authentication   | *
      *   ---------------------------------------------------------------------  *
      *                                                                          *
      *  Message Format:                                                         *
@@ -50,21 +81,48 @@ public class TCPServer {
      *                                                                          *
      *  - AUTHENTICATION -                                                      *
      *  Index 0-2: Message Type (AUT)                                           *
-     *  Index 3:   Result (0=Fail, 1=Succeed)                                   *
+     *  Index 3:   Result (0=Fail, 1=Succeed, 2=Busy, try again later)          *
+     *  Index 4-67: Resumption ticket, only on success with -t                  *
+     *                                                                          *
+     *  Binary frames (see WireCodec) can also be wrapped in TAGGED frames      *
+     *  carrying a correlation id. Every id is a handshake of its own, so a     *
+     *  client can pipeline handshakes for many users over one connection;     *
+     *  they are answered in order, with the id of the request.                 *
+     *                                                                          *
+     *  - RESUME -                                                              *
+     *  Same as USERNAME & HASH, with the hash taken over the ticket instead    *
+     *  of a random string, followed by the 64 character ticket                 *
      *                                                                          *
      ***************************************************************************/
 
 	/**
 	 * Parses the received message and generates the response accordingly.
-	 * @param receivePacket	message received from the client
-	 * @return	the response packet
+	 * Shared by the thread-per-connection handler and {@link TCPEventLoop}.
+	 * @param message	message received from the client, without the end of line
+	 * @param host	address of the client
+	 * @param port	port of the client
+	 * @return	the response message, terminated by an end of line
 	 * @throws NoSuchAlgorithmException
 	 * @throws UnsupportedEncodingException
 	 */
-    private static String parseMessage(String message, String host, int port) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    static String parseMessage(String message, InetAddress host, int port) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if(capture == null)
+        	return answerMessage(message, host, port);
+        capture.received(host, port, message + "\n");
+        String response = answerMessage(message, host, port);
+        capture.sent(host, port, response);
+        return response;
+    }
+
+    /**
+     * Answers a text message, see {@link #parseMessage}.
+     */
+    private static String answerMessage(String message, InetAddress host, int port) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if(!admit(host, port))
+        	return "AUT0\n";
         if(message.length() < 3){
-        	if(debug)
-        		System.out.print("Received message too short. ");
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.MALFORMED, host, port, 0);
         	return "AUT0\n";
         }
 
@@ -74,129 +132,497 @@ public class TCPServer {
 
         // Determine type of message and handle accordingly
         if (type.equals("REQ")) {
+            metrics.message(ServerMetrics.REQ);
             sb.append("CHA");
-            String random = generateRandomString();
+            String random = issueChallenge(ChallengeStore.key(host, port));
             sb.append(random);
-            challenge.put(host+port, random);
+            if(log != null)
+            	log.log(DebugLog.CHALLENGED, 0, host, port, null, 0);
         }
-        else if (type.equals("URH")) {
+        else if (type.equals("URH") || type.equals("RES")) {
+            boolean resume = type.equals("RES");
+            metrics.message(resume ? ServerMetrics.RES : ServerMetrics.URH);
             int usernameLength = Character.getNumericValue(data.charAt(0));
             if(usernameLength > 15 || usernameLength < 1){
-            	if(debug)
-            		System.out.print("Received username has wrong length. ");
+            	rejected(ServerMetrics.BAD_USERNAME_LENGTH, host, port, 0);
             	return "AUT0\n";
             }
 
-            String username = data.substring(1, usernameLength+1);
-            String password = PASSWORD.get(username);
-
-            if(password == null){
-            	if(debug)
-            		System.out.print("Received username does not exist. ");
+            if(data.length() < 1 + usernameLength + MD5_LENGTH + (resume ? ResumptionTickets.TICKET_LENGTH : 0)){
+            	rejected(ServerMetrics.MALFORMED, host, port, 0);
             	return "AUT0\n";
             }
-
-            String random = challenge.get(host+port);
-            if(random == null){
-            	if(debug)
-            		System.out.print("Received IP does not have a challenge string. ");
+            byte[] username = HashVerifier.get().username();
+            for(int i=0; i<usernameLength; i++)
+            	username[i] = (byte) data.charAt(1+i);
+            //Get the hash from user
+            if(!HashVerifier.get().parseHex(data, usernameLength+1)){
+            	rejected(ServerMetrics.BAD_HASH_FORMAT, host, port, usernameLength);
             	return "AUT0\n";
             }
-            if(Long.parseLong(random.substring(RANDOM_STRING_LENGTH-14))-Long.parseLong(generateTimeStamp()) > 10){
-            	if(debug)
-            		System.out.print("Received IP has an expired challenge. ");
-            	return "AUT0\n";
+            if(resume){
+            	byte[] ticket = HashVerifier.get().challenge();
+            	for(int i=0; i<ticket.length; i++)
+            		ticket[i] = (byte) data.charAt(1+usernameLength+MD5_LENGTH+i);
+            	if(!resume(usernameLength, host, port))
+            		return "AUT0\n";
             }
-            //Get the hash from user
-            String userhash = data.substring(usernameLength+1, usernameLength+MD5_LENGTH+1);
-			//Calculate the hash
-            String serverhash = hash(username+password+random);
-            if(!userhash.equals(serverhash)){
-            	if(debug)
-            		System.out.print("Received hash not correct. ");
+            else if(!verify(usernameLength, ChallengeStore.key(host, port), host, port))
             	return "AUT0\n";
-            }
             sb.append("AUT1");
+            if(tickets != null){
+            	byte[] ticket = HashVerifier.get().challenge();
+            	tickets.issue(host, HashVerifier.get().username(), usernameLength, ticket, 0);
+            	sb.append(new String(ticket, StandardCharsets.US_ASCII));
+            }
 
         } else {
-        	if(debug)
-        		System.out.print("Received wrong message type. ");
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.WRONG_TYPE, host, port, 0);
         	return "AUT0\n";
         }
 
-        if (debug) {
-            String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-            System.out.println("["+timeStamp+"] "+"Sending Message: "+sb.toString()+" to "+host+":"+port);
-        }
         sb.append('\n'); // add end of message character to message
         return sb.toString();
     }
 
-	/**
-     * Generates a random alphanumeric string of length 64.
-     * @return a random alphanumeric string of length 64.
+    /**
+	 * Parses a binary frame and writes the binary response accordingly.
+     * Shared by the thread-per-connection handler and {@link TCPEventLoop}.
+     * @param in heap buffer holding one complete frame between its position and limit
+     * @param host address of the client
+     * @param port port of the client
+     * @param out buffer the response frame is written to
+     * @throws NoSuchAlgorithmException
+     * @throws UnsupportedEncodingException
      */
-    private static String generateRandomString() {
-        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-		String time = generateTimeStamp();
-        int length = RANDOM_STRING_LENGTH - time.length();
-        StringBuilder sb = new StringBuilder();
-        for (int i=0; i<length; i++)
-            sb.append(chars.charAt((int)(Math.random()*chars.length())));
-        sb.append(time);
-        return sb.toString();
+    static void parseFrame(ByteBuffer in, InetAddress host, int port, ByteBuffer out) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if (capture == null) {
+            answerFrame(in, host, port, out);
+            return;
+        }
+        capture.received(host, port, in);
+        int start = out.position();
+        answerFrame(in, host, port, out);
+        ByteBuffer response = out.duplicate();
+        response.flip();
+        response.position(start);
+        capture.sent(host, port, response);
+    }
+
+    /**
+     * Answers a binary frame, see {@link #parseFrame(ByteBuffer, InetAddress, int, ByteBuffer)}.
+     */
+    private static void answerFrame(ByteBuffer in, InetAddress host, int port, ByteBuffer out) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if (!admit(host, port)) {
+            // Answered without parsing, but a TAGGED frame still gets its id back
+            if (in.remaining() >= WireCodec.HEADER_LENGTH + WireCodec.CORRELATION_ID_LENGTH && in.get(in.position() + 2) == WireCodec.TAGGED) {
+                int start = WireCodec.beginTagged(out, WireCodec.tag(in));
+                WireCodec.encodeAuthentication(out, false);
+                WireCodec.endTagged(out, start);
+            } else {
+                WireCodec.encodeAuthentication(out, false);
+            }
+            return;
+        }
+        parseFrame(in, host, port, ChallengeStore.key(host, port), out);
     }
 
     /**
-     * Helper method for generating time stamps
-     * @return formated time stamp
+     * Charges a connection or a message to the rate limits of its client.
+     * Shared by the thread-per-connection handler and {@link TCPEventLoop}.
+     * @param host address of the client
+     * @param port port of the client
+     * @return whether it is within the limits, if not it is counted and logged as rejected
      */
-    private static String generateTimeStamp(){
-    	return new SimpleDateFormat("yyyyMMddHHmmss").format(new Timestamp(System.currentTimeMillis()));
+    static boolean admit(InetAddress host, int port) {
+        if(limiter == null || limiter.acquire(host, 1))
+        	return true;
+        rejected(ServerMetrics.RATE_LIMITED, host, port, 0);
+        return false;
     }
 
     /**
-     * Generates a MD5 hash from a given string
-     * @param s the String to generate MD5 from
-     * @return generated MD5
+     * Parses a binary frame for the handshake with the given challenge key.
+     * A TAGGED frame is unwrapped and its frame parsed under the key of its
+     * correlation id, and the response is tagged with the same id.
+     * @param in heap buffer holding one complete frame between its position and limit
+     * @param host address of the client
+     * @param port port of the client
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @param out buffer the response frame is written to
      * @throws NoSuchAlgorithmException
      * @throws UnsupportedEncodingException
      */
-    private static String hash(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-    	MessageDigest md = MessageDigest.getInstance("MD5");
-    	md.reset();
-		byte[] digest = md.digest(s.getBytes("UTF-8"));
-		StringBuffer sb = new StringBuffer();
-		for (byte b : digest) {
-			sb.append(String.format("%02x", b & 0xff));
-		}
-		return sb.toString();
+    private static void parseFrame(ByteBuffer in, InetAddress host, int port, long key, ByteBuffer out) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        switch (WireCodec.type(in)) {
+        case WireCodec.TAGGED:
+            metrics.message(ServerMetrics.TAGGED);
+            int id = WireCodec.tag(in);
+            int frame = WireCodec.taggedFrame(in);
+            int start = WireCodec.beginTagged(out, id);
+            if (id > WireCodec.MAX_CORRELATION_ID || in.get(frame + 2) == WireCodec.TAGGED) {
+                rejected(ServerMetrics.MALFORMED, host, port, 0);
+                WireCodec.encodeAuthentication(out, false);
+            } else {
+                int position = in.position();
+                in.position(frame);
+                parseFrame(in, host, port, ChallengeStore.key(host, port, id), out);
+                in.position(position);
+            }
+            WireCodec.endTagged(out, start);
+            return;
+        case WireCodec.REQ:
+            metrics.message(ServerMetrics.REQ);
+            String random = issueChallenge(key);
+            WireCodec.encodeChallenge(out, random.getBytes(StandardCharsets.US_ASCII), 0);
+            if (log != null)
+                log.log(DebugLog.CHALLENGED, 0, host, port, null, 0);
+            return;
+        case WireCodec.URH:
+        case WireCodec.RES:
+            metrics.message(WireCodec.hasTicket(in) ? ServerMetrics.RES : ServerMetrics.URH);
+            int usernameLength = WireCodec.usernameLength(in);
+            byte[] username = HashVerifier.get().username();
+            for (int i = 0; i < usernameLength; i++)
+                username[i] = in.get(WireCodec.usernameOffset(in) + i);
+            byte[] userhash = HashVerifier.get().userhash();
+            for (int i = 0; i < userhash.length; i++)
+                userhash[i] = in.get(WireCodec.digestOffset(in) + i);
+            boolean success;
+            if (WireCodec.hasTicket(in)) {
+                byte[] ticket = HashVerifier.get().challenge();
+                for (int i = 0; i < ticket.length; i++)
+                    ticket[i] = in.get(WireCodec.ticketOffset(in) + i);
+                success = resume(usernameLength, host, port);
+            } else {
+                success = verify(usernameLength, key, host, port);
+            }
+            if (success && tickets != null) {
+                byte[] ticket = HashVerifier.get().challenge();
+                tickets.issue(host, username, usernameLength, ticket, 0);
+                WireCodec.encodeAuthentication(out, ticket, 0);
+            } else {
+                WireCodec.encodeAuthentication(out, success);
+            }
+            return;
+        default:
+            metrics.message(ServerMetrics.INVALID);
+            rejected(ServerMetrics.MALFORMED, host, port, 0);
+            WireCodec.encodeAuthentication(out, false);
+        }
+    }
+
+    /**
+     * Checks the hash sent in a URH against the stored challenge of the client.
+     * Shared by the text and binary formats, which leave the raw MD5 sent by the
+     * client in {@link HashVerifier#userhash()} and the username in
+     * {@link HashVerifier#username()} of the calling thread.
+     * @param usernameLength length of the username sent by the client
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @param host address of the client
+     * @param port port of the client
+     * @return whether the client is authenticated
+     */
+    private static boolean verify(int usernameLength, long key, InetAddress host, int port) {
+        HashVerifier verifier = HashVerifier.get();
+        int length = credentials.lookup(verifier.username(), 0, usernameLength, verifier.credentials());
+
+        if(length < 0){
+        	rejected(ServerMetrics.UNKNOWN_USER, host, port, usernameLength);
+        	return false;
+        }
+
+        if(stateless != null){
+        	// Nothing was stored, try the challenges this client may have been given
+        	for(int age=0; age<stateless.candidates(); age++){
+        		stateless.candidate(key, age, verifier.challenge(), 0);
+        		if(verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        			authenticated(host, port, usernameLength);
+        			return true;
+        		}
+        	}
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        int status = challenge.get(key, verifier.challenge(), 0);
+        if(status == ChallengeStore.MISSING){
+        	rejected(ServerMetrics.NO_CHALLENGE, host, port, usernameLength);
+        	return false;
+        }
+        if(status == ChallengeStore.EXPIRED){
+        	rejected(ServerMetrics.EXPIRED_CHALLENGE, host, port, usernameLength);
+        	return false;
+        }
+		//Calculate the hash and compare it in constant time
+        if(!verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        authenticated(host, port, usernameLength);
+        return true;
+    }
+
+    /**
+     * Checks the hash sent in a RES, which is taken over a resumption ticket
+     * instead of a challenge. The caller leaves the ticket in
+     * {@link HashVerifier#challenge()} next to the username and hash.
+     * @param usernameLength length of the username sent by the client
+     * @param host address of the client
+     * @param port port of the client
+     * @return whether the client is authenticated
+     */
+    private static boolean resume(int usernameLength, InetAddress host, int port) {
+        HashVerifier verifier = HashVerifier.get();
+        if(tickets == null){
+        	rejected(ServerMetrics.BAD_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        if(!tickets.validate(host, verifier.username(), usernameLength, verifier.challenge(), 0)){
+        	rejected(ServerMetrics.BAD_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        int length = credentials.lookup(verifier.username(), 0, usernameLength, verifier.credentials());
+        if(length < 0){
+        	rejected(ServerMetrics.UNKNOWN_USER, host, port, usernameLength);
+        	return false;
+        }
+        if(!verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        if(!tickets.redeem(verifier.challenge(), 0)){
+        	rejected(ServerMetrics.REUSED_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        authenticated(host, port, usernameLength);
+        return true;
+    }
+
+    /**
+     * Counts an AUT1 and logs it with -d.
+     * @param host address of the client
+     * @param port port of the client
+     * @param usernameLength length of the username in {@link HashVerifier#username()}
+     */
+    private static void authenticated(InetAddress host, int port, int usernameLength) {
+        metrics.authenticated();
+        if(log != null)
+        	log.log(DebugLog.AUTHENTICATED, 0, host, port, HashVerifier.get().username(), usernameLength);
+    }
+
+    /**
+     * Counts an AUT0 and logs it with -d.
+     * @param reason why the client is rejected, see {@link ServerMetrics#rejected}
+     * @param host address of the client
+     * @param port port of the client
+     * @param usernameLength length of the username in {@link HashVerifier#username()}, 0 if not parsed yet
+     */
+    private static void rejected(int reason, InetAddress host, int port, int usernameLength) {
+        metrics.rejected(reason);
+        if(log != null)
+        	log.log(DebugLog.REJECTED, reason, host, port, HashVerifier.get().username(), usernameLength);
+    }
+
+    /**
+     * Answers a connection that will not be handled with AUT2 and closes it.
+     * Whatever the client sent already is read first, to answer in its format
+     * and so that closing does not reset the connection before the answer
+     * arrives. A client that has sent nothing yet gets the text form.
+     * @param socket the accepted connection
+     * @param cause why it is shed, see {@link ServerMetrics#shed}
+     */
+    private static void busy(Socket socket, int cause) {
+        metrics.shed(cause);
+        if (log != null)
+            log.log(DebugLog.BUSY, cause, socket.getInetAddress(), socket.getPort(), null, 0);
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] received = new byte[WireCodec.MAX_FRAME_LENGTH];
+            int length = in.available() > 0 ? in.read(received) : 0;
+            while (in.available() > 0)
+                in.skip(in.available());
+            if (capture != null && length > 0)
+                capture.received(socket.getInetAddress(), socket.getPort(), ByteBuffer.wrap(received, 0, length));
+            ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+            if (length > 0 && received[0] == WireCodec.MAGIC) {
+                if (length >= WireCodec.HEADER_LENGTH + WireCodec.CORRELATION_ID_LENGTH && received[2] == WireCodec.TAGGED) {
+                    int start = WireCodec.beginTagged(out, WireCodec.tag(ByteBuffer.wrap(received)));
+                    WireCodec.encodeBusy(out);
+                    WireCodec.endTagged(out, start);
+                } else {
+                    WireCodec.encodeBusy(out);
+                }
+            } else {
+                out.put(BUSY_MESSAGE);
+            }
+            out.flip();
+            if (capture != null)
+                capture.sent(socket.getInetAddress(), socket.getPort(), out);
+            socket.getOutputStream().write(out.array(), 0, out.limit());
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // The client is gone already
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Creates the challenge for a client and remembers it, unless challenges are stateless.
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @return the 64 character challenge
+     */
+    private static String issueChallenge(long key) {
+        if(stateless != null){
+        	byte[] random = new byte[RANDOM_STRING_LENGTH];
+        	stateless.issue(key, random, 0);
+        	return new String(random, StandardCharsets.US_ASCII);
+        }
+        String random = generateRandomString();
+        challenge.put(key, random);
+        return random;
+    }
+
+	/**
+     * Takes a random alphanumeric string of length 64 from the pool, made on the spot without one.
+     * @return a random alphanumeric string of length 64.
+     */
+    private static String generateRandomString() {
+        byte[] random = new byte[RANDOM_STRING_LENGTH];
+        if (pool != null)
+            pool.next(random, 0);
+        else
+            ChallengePool.generate(random, 0);
+        return new String(random, StandardCharsets.US_ASCII);
     }
 
     public static void main(String args[]) throws Exception {
-    	if(args.length > 2){
+    	if(args.length > 12){
     		System.out.println("Too many arguments");
-    		System.out.println("usage: TCPServer [-d] [port]");
+    		System.out.println(USAGE);
     		System.exit(0);
     	}
 
     	int port=DEFAULT_PORT;
+    	int eventLoops = 0;
+    	boolean virtualThreads = false;
+    	int metricsPort = -1;
+    	String indexFile = null;
+    	int maxHandshakes = 0;
+    	int queueLength = 0;
+    	long queueTarget = LoadShedder.DEFAULT_TARGET;
     	for(int i=0; i<args.length; i++){
     		switch (args[i].charAt(0)){
     		case '-':
-    			if(args[i].charAt(1)!='d'){
+    			if(args[i].startsWith("-d")){
+    				// -d logs to stdout, -d<file> appends to the file
+    				log = DebugLog.open(args[i].length() > 2 ? args[i].substring(2) : null);
+    				metrics.setLog(log);
+    			}
+    			else if(args[i].startsWith("-p") && args[i].length() > 2){
+    				// -p<file> appends every message received and sent to a capture for TrafficReplay
+    				capture = TrafficCapture.open(args[i].substring(2), false);
+    				metrics.setCapture(capture);
+    			}
+    			else if(args[i].matches("-n\\d*")){
+    				// -n selects the selector based server, optionally with the number of event loops
+    				eventLoops = args[i].length() > 2 ? Options.parseInt(args[i].substring(2))
+    						: Runtime.getRuntime().availableProcessors();
+    				if(eventLoops < 1){
+    					System.out.println("Invalid number of event loops: "+args[i]);
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else if(args[i].startsWith("-s")){
+    				// -s makes challenges stateless, -s<keyfile> shares the key with other servers
+    				stateless = args[i].length() > 2 ? StatelessChallenge.fromFile(args[i].substring(2), ChallengeStore.DEFAULT_TTL)
+    						: StatelessChallenge.withRandomKey(ChallengeStore.DEFAULT_TTL);
+    			}
+    			else if(args[i].startsWith("-t")){
+    				// -t hands out resumption tickets, -t<keyfile> shares the key with other servers
+    				tickets = args[i].length() > 2 ? ResumptionTickets.fromFile(args[i].substring(2))
+    						: ResumptionTickets.withRandomKey();
+    			}
+    			else if(args[i].startsWith("-u") && args[i].length() > 2){
+    				// -u<indexfile> reads users from an index built by CredentialIndexBuilder, again whenever it changes
+    				indexFile = args[i].substring(2);
+    			}
+    			else if(args[i].matches("-m\\d*")){
+    				// -m registers the metrics with JMX, -m<port> also serves them as text on 127.0.0.1
+    				metricsPort = args[i].length() > 2 ? (int) Options.parse(args[i].substring(2), 9999) : 0;
+    				if(metricsPort != 0 && (metricsPort < 1024 || metricsPort > 9999)){
+    					System.out.println("Invalid metrics port number. Only 1024-9999.");
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else if(args[i].matches("-r\\d+(:\\d+)?")){
+    				// -r<rate> limits the messages per second from one address, :<rate> from one subnet
+    				String[] rates = args[i].substring(2).split(":");
+    				int addressRate = RateLimiter.parseRate(rates[0]);
+    				int subnetRate = rates.length > 1 ? RateLimiter.parseRate(rates[1]) : 0;
+    				if(addressRate < 0 || subnetRate < 0){
+    					System.out.println("Invalid rate limit: "+args[i]+". At most "+RateLimiter.MAX_RATE+" per second.");
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    				limiter = new RateLimiter(addressRate, subnetRate);
+    			}
+    			else if(args[i].equals("-v")){
+    				virtualThreads = true;
+    			}
+    			else if(args[i].matches("-c\\d+")){
+    				int max = Options.parseInt(args[i].substring(2));
+    				if(max < 1){
+    					System.out.println("Invalid handshake limit: "+args[i]);
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    				maxHandshakes = max;
+    			}
+    			else if(args[i].matches("-i\\d+(:\\d+)?")){
+    				// -i<ms> for every message, :<ms> for a whole handshake
+    				String[] values = args[i].substring(2).split(":");
+    				messageTimeout = Options.parseInt(values[0]);
+    				if(values.length > 1)
+    					handshakeTimeout = Options.parseInt(values[1]);
+    				if(messageTimeout < 1 || handshakeTimeout < 1){
+    					System.out.println("Invalid timeout: "+args[i]);
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else if(args[i].matches("-q\\d+(:\\d+)?")){
+    				// -q<length> queues accepted connections for the -c workers, :<ms> is the queue delay shedding aims at
+    				String[] values = args[i].substring(2).split(":");
+    				queueLength = Options.parseInt(values[0]);
+    				if(values.length > 1)
+    					queueTarget = Options.parseInt(values[1]);
+    				if(queueLength < 1 || queueTarget < 1){
+    					System.out.println("Invalid queue: "+args[i]);
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else{
     				System.out.println("Not a valid option: "+args[i]);
-    				System.out.println("usage: TCPServer [-d] [port]");
+    				System.out.println(USAGE);
     				System.exit(0);
     			}
-    			debug = true;
     			break;
     		default:
     			if(args[i].matches("\\d+"))
-    				port = Integer.parseInt(args[i]);
+    				// Too large to parse is as invalid as any port above 9999
+    				port = (int) Options.parse(args[i], 9999);
     			else{
     				System.out.println("Not a valid portNumber: "+args[i]);
-    				System.out.println("usage: TCPServer [-d] [port]");
+    				System.out.println(USAGE);
     				System.exit(0);
     			}
     		}
@@ -205,56 +631,299 @@ public class TCPServer {
     		System.out.println("Invalid port number. Only 1024-9999.");
 			System.exit(0);
     	}
+    	if(indexFile != null){
+    		// Started once -d, wherever it is given, has opened the log the reloads go to
+    		ReloadingCredentialStore users = new ReloadingCredentialStore(indexFile);
+    		users.setLog(log);
+    		users.start("credential-reload");
+    		metrics.setCredentials(users);
+    		credentials = users;
+    	}
+
+    	if(stateless == null){
+    		challenge = new ChallengeStore();
+    		metrics.addStore(challenge);
+    		pool = ChallengePool.start("tcp-challenges");
+    		metrics.setPool(pool);
+    	}
+    	if(metricsPort >= 0)
+    		metrics.expose(metricsPort);
+
+    	if(eventLoops > 0 && virtualThreads){
+    		System.out.println("-n and -v cannot be used together");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
+    	if(queueLength > 0 && (maxHandshakes == 0 || eventLoops > 0)){
+    		System.out.println("-q needs -c to set the number of handshake workers, and cannot be used with -n");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
+    	if(maxHandshakes > 0 && queueLength == 0)
+    		handshakeLimit = new Semaphore(maxHandshakes);
+    	if(eventLoops > 0){
+    		TCPEventLoop.serve(port, eventLoops);
+    		return;
+    	}
+    	ExecutorService executor = null;
+    	if(virtualThreads){
+    		executor = newVirtualThreadExecutor();
+    		if(executor == null)
+    			System.out.println("Virtual threads are not supported by this JVM, using platform threads.");
+    	}
 
         // Initiate server
         //TCPServer server = new TCPServer();
         ServerSocket serverSocket = new ServerSocket(port);
+        timers = TimerWheel.start("tcp-deadlines");
+        if (queueLength > 0) {
+            queue = new ArrayBlockingQueue<Pending>(queueLength);
+            shedder = new LoadShedder(queueTarget, LoadShedder.DEFAULT_INTERVAL);
+            metrics.setQueue(queue);
+            for (int i = 0; i < maxHandshakes; i++) {
+                if (executor != null)
+                    executor.execute(new HandshakeWorker());
+                else
+                    new Thread(new HandshakeWorker(), "handshake-worker-" + i).start();
+            }
+        }
 
         // Keeps the server running
         while (true) {
-            Socket connectionSocket = serverSocket.accept();
-            if (debug)
-                System.out.println("Handling client at " +
-                 connectionSocket.getInetAddress().getHostAddress() + " on port " +
-                 connectionSocket.getPort());
-            new Thread(new ConnectedSocket(connectionSocket)).start();
+            // Stop accepting while the handshake limit is reached, the kernel backlog queues the rest
+            if (handshakeLimit != null)
+                handshakeLimit.acquire();
+            Socket connectionSocket = null;
+            // Set once the connection is passed on; its ConnectedSocket releases the permit when it ends
+            boolean handedOff = false;
+            try {
+                connectionSocket = serverSocket.accept();
+                if (!admit(connectionSocket.getInetAddress(), connectionSocket.getPort())) {
+                    // Refused before a thread is started for it
+                    connectionSocket.close();
+                    continue;
+                }
+                if (log != null)
+                    log.log(DebugLog.CONNECTED, 0, connectionSocket.getInetAddress(), connectionSocket.getPort(), null, 0);
+                if (queue != null) {
+                    // Turned away at once when every worker is busy and the queue is full
+                    if (!queue.offer(new Pending(connectionSocket, System.nanoTime())))
+                        busy(connectionSocket, ServerMetrics.QUEUE_FULL);
+                    handedOff = true;
+                    continue;
+                }
+                if (executor != null)
+                    executor.execute(new ConnectedSocket(connectionSocket));
+                else
+                    new Thread(new ConnectedSocket(connectionSocket)).start();
+                handedOff = true;
+            } finally {
+                // Refused, or accept() or starting the thread failed
+                if (!handedOff) {
+                    if (handshakeLimit != null)
+                        handshakeLimit.release();
+                    if (connectionSocket != null)
+                        connectionSocket.close();
+                }
+            }
         }
     }
 
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * Looked up reflectively so the server still builds and runs on JVMs without virtual threads.
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+    	try {
+    		return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	} catch (Exception e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * A connection accepted with -q, waiting for a handshake worker.
+     */
+    static private class Pending {
+    	final Socket socket;
+    	final long accepted;
+
+    	private Pending(Socket socket, long accepted) {
+    		this.socket = socket;
+    		this.accepted = accepted;
+    	}
+    }
+
+    /**
+     * One of the -c workers of -q. Handles the queued connections one after the
+     * other, and sheds those the LoadShedder finds have waited too long.
+     */
+    static private class HandshakeWorker implements Runnable {
+
+    	@Override
+    	public void run() {
+    		while (true) {
+    			Pending p;
+    			try {
+    				p = queue.take();
+    			} catch (InterruptedException e) {
+    				return;
+    			}
+    			long now = System.nanoTime();
+    			if (shedder.shed(now - p.accepted, now, queue.isEmpty()))
+    				busy(p.socket, ServerMetrics.QUEUE_DELAY);
+    			else
+    				new ConnectedSocket(p.socket).run();
+    		}
+    	}
+    }
+
+    /**
+     * Closes a connection whose deadline passed, which makes the read or write
+     * its thread is blocked in fail.
+     */
+    static private class Evict implements Runnable {
+    	private final Socket socket;
+
+    	private Evict(Socket socket) {
+    		this.socket = socket;
+    	}
+
+    	@Override
+    	public void run() {
+    		try {
+    			socket.close();
+    		} catch (IOException e) {
+    			// closed already
+    		}
+    	}
+    }
+
     static private class ConnectedSocket implements Runnable{
     	Socket connectionSocket;
+    	// Closes the connection when the client is too slow
+    	private TimerWheel.Timeout deadline;
+    	// What the connection was doing, to tell why it was closed
+    	private boolean idle;
+    	private boolean handshakeBound;
 
     	private ConnectedSocket(Socket connectionSocket){
     		this.connectionSocket = connectionSocket;
     	}
 
+    	private void evicted(int cause) {
+    		metrics.evicted(cause);
+    		if (log != null)
+    			log.log(DebugLog.EVICTED, cause, connectionSocket.getInetAddress(), connectionSocket.getPort(), null, 0);
+    	}
+
 		@Override
 		public void run() {
+			metrics.connectionOpened();
 			try{
+                // Text lines and binary frames can follow each other, so the streams have to live as long as the connection
+                DataInputStream receiveBuffer = new DataInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
+                // Responses are held until every request already received is answered, so pipelined requests share a write
+                DataOutputStream sendBuffer = new DataOutputStream(new BufferedOutputStream(connectionSocket.getOutputStream()));
+                byte[] frame = new byte[WireCodec.MAX_FRAME_LENGTH];
+                ByteBuffer in = ByteBuffer.wrap(frame);
+                ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+                long handshakeStart = System.nanoTime();
+                long answered = handshakeStart;
+                deadline = timers.schedule(new Evict(connectionSocket), answered + messageTimeout * 1000000);
                 while (connectionSocket.isConnected()) {
-                    String clientHost = connectionSocket.getInetAddress().getHostAddress();
+                    // Whichever comes first, the next message or the end of the handshake
+                    long handshakeDeadline = handshakeStart + handshakeTimeout * 1000000;
+                    deadline.extend(Math.min(answered + messageTimeout * 1000000, handshakeDeadline));
+                    handshakeBound = handshakeDeadline - answered <= messageTimeout * 1000000;
                     // Receive, process, and respond
-                    BufferedReader receiveBuffer = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
-                    DataOutputStream sendBuffer = new DataOutputStream(connectionSocket.getOutputStream());
+                    if (receiveBuffer.available() == 0)
+                        sendBuffer.flush();
+                    idle = true;
+                    int first = receiveBuffer.read();
+                    idle = false;
+                    if (first < 0)
+                        break;
+                    if ((byte) first == WireCodec.MAGIC) {
+                        frame[0] = (byte) first;
+                        receiveBuffer.readFully(frame, 1, WireCodec.HEADER_LENGTH - 1);
+                        in.clear();
+                        in.limit(WireCodec.frameLength(in));
+                        receiveBuffer.readFully(frame, WireCodec.HEADER_LENGTH, in.limit() - WireCodec.HEADER_LENGTH);
+                        long start = System.nanoTime();
+                        out.clear();
+                        parseFrame(in, connectionSocket.getInetAddress(), connectionSocket.getPort(), out);
+                        long end = System.nanoTime();
+                        metrics.request(end - start);
+                        answered = end;
+                        // A tagged AUT ends a handshake too, so pipelining clients are not evicted as too long
+                        if (WireCodec.innerType(out, 0) == WireCodec.AUT) {
+                            metrics.handshake(end - handshakeStart);
+                            handshakeStart = end;
+                        }
+                        sendBuffer.write(out.array(), 0, out.position());
+                        continue;
+                    }
 
-                    String receiveData = receiveBuffer.readLine();
-                    if(receiveData.getBytes().length > 128)
+                    String receiveData = readLine(receiveBuffer, first);
+                    if(receiveData == null){
+                        sendBuffer.flush();
                         connectionSocket.close();
+                        break;
+                    }
 
-                    if (debug) {
-                        String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                        System.out.println("["+timeStamp+"] "+"Received Message: "+receiveData + " from " + clientHost+":"+connectionSocket.getPort());
+                    long start = System.nanoTime();
+                    String response = parseMessage(receiveData, connectionSocket.getInetAddress(), connectionSocket.getPort());
+                    long end = System.nanoTime();
+                    metrics.request(end - start);
+                    answered = end;
+                    if (response.startsWith("AUT")) {
+                        metrics.handshake(end - handshakeStart);
+                        handshakeStart = end;
                     }
-                    sendBuffer.writeBytes(parseMessage(receiveData, clientHost, connectionSocket.getPort()));
+                    sendBuffer.writeBytes(response);
                 }
             }
             catch (Exception e) {
+                if (deadline != null && deadline.expired())
+                    evicted(handshakeBound ? ServerMetrics.HANDSHAKE_TOO_LONG : idle ? ServerMetrics.IDLE : ServerMetrics.TOO_SLOW);
                 try {
 					connectionSocket.close();
 				} catch (IOException e1) {
 					return;
 				}
             }
+			finally {
+				if (deadline != null)
+					deadline.cancel();
+				metrics.connectionClosed();
+				if (handshakeLimit != null)
+					handshakeLimit.release();
+			}
+		}
+
+		/**
+		 * Reads the rest of a text message, up to the end of line.
+		 * @param receiveBuffer the connection's input
+		 * @param first the first byte of the message, already read
+		 * @return the message without the end of line, or null if it is longer than 128 bytes
+		 * @throws IOException if the connection ends in the middle of the line
+		 */
+		private String readLine(DataInputStream receiveBuffer, int first) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c = first;
+			while (c != '\n') {
+				if (c < 0)
+					throw new EOFException();
+				if (sb.length() >= 128)
+					return null;
+				sb.append((char) c);
+				c = receiveBuffer.read();
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '\r')
+				sb.setLength(sb.length() - 1);
+			return sb.toString();
 		}
 
     }
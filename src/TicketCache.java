@@ -0,0 +1,83 @@
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Resumption tickets a client keeps between runs, one per server and user,
+ * so the next handshake can send RES instead of REQ.
+ *
+ * The file is a properties file mapping "host:port/username" to the ticket.
+ * Nothing breaks if it is lost or stale: a rejected ticket is dropped and the
+ * client falls back to the full handshake. One cache can be shared by the
+ * handshakes of many threads, as AuthClient does.
+ */
+public class TicketCache {
+
+    private final String path;
+    private final Properties tickets = new Properties();
+
+    /**
+     * Loads the cache, starting empty if the file does not exist yet.
+     * @param path the cache file
+     * @throws IOException if the file exists but cannot be read
+     */
+    public TicketCache(String path) throws IOException {
+        this.path = path;
+        try {
+            InputStream in = new FileInputStream(path);
+            try {
+                tickets.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // First run, nothing cached yet
+        }
+    }
+
+    /**
+     * @param server the server as host:port
+     * @param username the user
+     * @return the cached ticket, or null if there is none
+     */
+    public String get(String server, String username) {
+        String ticket = tickets.getProperty(server + "/" + username);
+        return ticket != null && ticket.length() == ResumptionTickets.TICKET_LENGTH ? ticket : null;
+    }
+
+    /**
+     * Stores a new ticket and writes the file.
+     * @param server the server as host:port
+     * @param username the user
+     * @param ticket the ticket received with AUT1
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void put(String server, String username, String ticket) throws IOException {
+        tickets.setProperty(server + "/" + username, ticket);
+        save();
+    }
+
+    /**
+     * Drops a ticket the server rejected and writes the file.
+     * @param server the server as host:port
+     * @param username the user
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void remove(String server, String username) throws IOException {
+        if (tickets.remove(server + "/" + username) != null)
+            save();
+    }
+
+    private void save() throws IOException {
+        OutputStream out = new FileOutputStream(path);
+        try {
+            tickets.store(out, "Resumption tickets");
+        } finally {
+            out.close();
+        }
+    }
+}
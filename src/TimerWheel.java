@@ -0,0 +1,161 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deadlines for any number of connections, kept by a single thread in a
+ * hashed timer wheel (Varghese and Lauck): a ring of slots, one per tick, each
+ * holding the timeouts due in that tick. The thread wakes up once a tick and
+ * only looks at the timeouts of the current slot, so a timeout costs the same
+ * however many there are, and no connection needs a timer thread of its own.
+ *
+ * A connection moves its deadline forward after every message. That is only
+ * a volatile write: a timeout stays in the slot it was filed in, and when the
+ * wheel reaches it before its deadline it is filed again further on. Deadlines
+ * further away than one turn of the wheel are handled the same way. Deadlines
+ * can therefore only be moved later, never earlier.
+ *
+ * The task of an expired timeout runs on the wheel thread and must be quick;
+ * closing a socket is.
+ */
+public class TimerWheel implements Runnable {
+
+    public static final long DEFAULT_TICK = 100;
+    public static final int DEFAULT_SLOTS = 512;
+
+    private final long tick;
+    private final long start = System.nanoTime();
+    // Linked lists of Timeout, only touched by the wheel thread
+    private final Timeout[] slots;
+    private final int mask;
+    // Scheduled by other threads, filed into the slots by the wheel thread at the next tick
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    // Ticks done since start
+    private long ticks;
+
+    /**
+     * Creates a wheel, its thread is started by {@link #start}.
+     * @param tick how often the wheel turns and so how late a timeout can expire, in milliseconds
+     * @param slots number of slots, rounded up to a power of two
+     */
+    TimerWheel(long tick, int slots) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("Tick must be positive");
+        this.tick = tick * 1000000;
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(slots - 1, 1)) << 1];
+        mask = this.slots.length - 1;
+    }
+
+    /**
+     * Starts a wheel of DEFAULT_SLOTS slots turning every DEFAULT_TICK milliseconds.
+     * @param name name of the wheel thread
+     * @return the wheel
+     */
+    public static TimerWheel start(String name) {
+        TimerWheel wheel = new TimerWheel(DEFAULT_TICK, DEFAULT_SLOTS);
+        Thread t = new Thread(wheel, name);
+        t.setDaemon(true);
+        t.start();
+        return wheel;
+    }
+
+    /**
+     * Schedules a task.
+     * @param task what to run when the deadline passes, on the wheel thread
+     * @param deadline System.nanoTime() after which to run it
+     * @return the timeout, to move its deadline or cancel it
+     */
+    public Timeout schedule(Runnable task, long deadline) {
+        Timeout t = new Timeout(task, deadline);
+        added.add(t);
+        return t;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long next = start + (ticks + 1) * tick;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+            ticks++;
+            Timeout t;
+            while ((t = added.poll()) != null)
+                file(t);
+            int slot = (int) ticks & mask;
+            t = slots[slot];
+            slots[slot] = null;
+            long now = System.nanoTime();
+            while (t != null) {
+                Timeout following = t.next;
+                t.next = null;
+                if (t.cancelled) {
+                    // dropped
+                } else if (now - t.deadline >= 0) {
+                    t.expired = true;
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        // One failing task must not stop the others
+                    }
+                } else {
+                    file(t);
+                }
+                t = following;
+            }
+        }
+    }
+
+    /**
+     * Puts a timeout in the slot of the tick its deadline falls in, at the
+     * latest the last slot before the current one.
+     */
+    private void file(Timeout t) {
+        long due = (t.deadline - start + tick - 1) / tick;
+        if (due <= ticks)
+            due = ticks + 1;
+        else if (due - ticks >= slots.length)
+            due = ticks + slots.length - 1;
+        int slot = (int) due & mask;
+        t.next = slots[slot];
+        slots[slot] = t;
+    }
+
+    /**
+     * A scheduled task and its deadline.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Moves the deadline. A deadline earlier than the current one is ignored.
+         * @param deadline the new System.nanoTime() deadline
+         */
+        public void extend(long deadline) {
+            if (deadline - this.deadline > 0)
+                this.deadline = deadline;
+        }
+
+        /**
+         * Makes sure the task will not run, unless it has already.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return whether the deadline passed and the task ran
+         */
+        public boolean expired() {
+            return expired;
+        }
+    }
+}
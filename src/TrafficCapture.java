@@ -0,0 +1,286 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the messages a server receives and sends (-p), so that real traffic
+ * can be sent again with {@link TrafficReplay}.
+ *
+ * The file starts with the magic "TCAP" and a version byte, followed by one
+ * record per message, appended for as long as the server runs:
+ *
+ *   flags    1 byte: SENT, IPV6, UDP and TRUNCATED
+ *   time     8 bytes, nanoseconds since 1970, from System.nanoTime()
+ *   address  4 bytes, 16 with IPV6
+ *   port     2 bytes
+ *   length   2 bytes
+ *   message  the bytes of the text line (end of line included), frame or datagram
+ *
+ * A server started again with the same file appends to it; the times go on
+ * from the wall clock, so records of several runs stay in order. Messages
+ * longer than MAX_MESSAGE_LENGTH are cut short and flagged.
+ *
+ * Like {@link DebugLog} it is an {@link EventRing}: request threads only copy
+ * the message into a slot, and a background thread writes the slots out.
+ * When it falls a whole ring behind, records are dropped and counted rather
+ * than slowing requests down.
+ */
+public class TrafficCapture extends EventRing<TrafficCapture.Slot> {
+
+    // Record flags
+    public static final int SENT = 1;
+    public static final int IPV6 = 2;
+    public static final int UDP = 4;
+    public static final int TRUNCATED = 8;
+
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+    public static final int MAX_MESSAGE_LENGTH = WireCodec.MAX_DATAGRAM_LENGTH;
+
+    private static final byte[] MAGIC = {'T', 'C', 'A', 'P'};
+    private static final int VERSION = 1;
+
+    private final boolean udp;
+    // Added to System.nanoTime() to get nanoseconds since 1970
+    private final long epoch = System.currentTimeMillis() * 1000000 - System.nanoTime();
+    private final DataOutputStream out;
+
+    /**
+     * Creates a capture, the writer thread is started by {@link #open}.
+     * @param out where the records go, after the header
+     * @param udp whether the messages are datagrams of a UDPServer
+     * @param capacity number of messages buffered, rounded up to a power of two
+     */
+    TrafficCapture(DataOutputStream out, boolean udp, int capacity) {
+        super(capacity);
+        this.udp = udp;
+        this.out = out;
+    }
+
+    /**
+     * Starts capturing DEFAULT_CAPACITY messages at a time into a file.
+     * @param file the file to append to, created with its header if it does not exist
+     * @param udp whether the messages are datagrams of a UDPServer
+     * @return the capture
+     * @throws IOException if the file cannot be opened or is not a capture
+     */
+    public static TrafficCapture open(String file, boolean udp) throws IOException {
+        boolean exists = new File(file).length() > 0;
+        if (exists)
+            readHeader(new DataInputStream(new FileInputStream(file)), file).close();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (!exists) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.flush();
+        }
+        TrafficCapture capture = new TrafficCapture(out, udp, DEFAULT_CAPACITY);
+        capture.start("traffic-capture");
+        return capture;
+    }
+
+    /**
+     * Records a message received from a client.
+     * @param address the client address
+     * @param port the client port
+     * @param message buffer holding the message between its position and limit, left as it is
+     */
+    public void received(InetAddress address, int port, ByteBuffer message) {
+        record(0, address, port, message);
+    }
+
+    /**
+     * Records a message sent to a client.
+     * @param address the client address
+     * @param port the client port
+     * @param message buffer holding the message between its position and limit, left as it is
+     */
+    public void sent(InetAddress address, int port, ByteBuffer message) {
+        record(SENT, address, port, message);
+    }
+
+    /**
+     * Records a text line received from a client.
+     * @param address the client address
+     * @param port the client port
+     * @param line the line, with its end of line
+     */
+    public void received(InetAddress address, int port, String line) {
+        record(0, address, port, line);
+    }
+
+    /**
+     * Records a text line sent to a client.
+     * @param address the client address
+     * @param port the client port
+     * @param line the line, with its end of line
+     */
+    public void sent(InetAddress address, int port, String line) {
+        record(SENT, address, port, line);
+    }
+
+    /**
+     * @return number of messages recorded, not counting those dropped
+     */
+    public long records() {
+        return written();
+    }
+
+    private void record(int direction, InetAddress address, int port, ByteBuffer message) {
+        Slot s = claim(direction, address, port, message.remaining());
+        if (s == null)
+            return;
+        int start = message.position();
+        for (int i = 0; i < s.length; i++)
+            s.message[i] = message.get(start + i);
+        publish(s);
+    }
+
+    private void record(int direction, InetAddress address, int port, String line) {
+        Slot s = claim(direction, address, port, line.length());
+        if (s == null)
+            return;
+        for (int i = 0; i < s.length; i++)
+            s.message[i] = (byte) line.charAt(i);
+        publish(s);
+    }
+
+    /**
+     * Takes the next free slot for the calling thread and fills in all but the message.
+     * @return the slot, or null if the writer is a whole ring behind
+     */
+    private Slot claim(int direction, InetAddress address, int port, int length) {
+        Slot s = claim();
+        if (s == null)
+            return null;
+        s.time = epoch + System.nanoTime();
+        s.flags = direction | (udp ? UDP : 0) | (address instanceof Inet6Address ? IPV6 : 0)
+                | (length > MAX_MESSAGE_LENGTH ? TRUNCATED : 0);
+        s.address = address;
+        s.port = port;
+        s.length = Math.min(length, MAX_MESSAGE_LENGTH);
+        return s;
+    }
+
+    @Override
+    protected Slot newSlot() {
+        return new Slot();
+    }
+
+    @Override
+    protected void write(Slot s) {
+        try {
+            out.writeByte(s.flags);
+            out.writeLong(s.time);
+            out.write(s.address.getAddress());
+            out.writeShort(s.port);
+            out.writeShort(s.length);
+            out.write(s.message, 0, s.length);
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+        s.address = null;
+    }
+
+    @Override
+    protected void idle() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+    }
+
+    /**
+     * Reads every record of a capture file.
+     * @param file the capture
+     * @return the records in the order they were written
+     * @throws IOException if the file cannot be read or is not a capture
+     */
+    public static List<Record> read(String file) throws IOException {
+        DataInputStream in = readHeader(new DataInputStream(new BufferedInputStream(new FileInputStream(file))), file);
+        List<Record> records = new ArrayList<Record>();
+        try {
+            while (true) {
+                int flags = in.read();
+                if (flags < 0)
+                    break;
+                long time = in.readLong();
+                byte[] address = new byte[(flags & IPV6) != 0 ? 16 : 4];
+                in.readFully(address);
+                int port = in.readUnsignedShort();
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                records.add(new Record(flags, time, InetAddress.getByAddress(address), port, message));
+            }
+        } catch (EOFException e) {
+            // The server was stopped in the middle of a record
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static DataInputStream readHeader(DataInputStream in, String file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+            if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2] || magic[3] != MAGIC[3])
+                throw new IOException(file + " is not a traffic capture");
+            if (in.read() != VERSION)
+                throw new IOException(file + " is a capture of another version");
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * One message read back from a capture.
+     */
+    public static final class Record {
+        public final int flags;
+        public final long time;
+        public final InetAddress address;
+        public final int port;
+        public final byte[] message;
+
+        Record(int flags, long time, InetAddress address, int port, byte[] message) {
+            this.flags = flags;
+            this.time = time;
+            this.address = address;
+            this.port = port;
+            this.message = message;
+        }
+
+        /**
+         * @return whether the server sent the message rather than received it
+         */
+        public boolean sent() {
+            return (flags & SENT) != 0;
+        }
+    }
+
+    /**
+     * One message waiting to be written.
+     */
+    static final class Slot extends EventRing.Slot {
+        long time;
+        int flags;
+        InetAddress address;
+        int port;
+        final byte[] message = new byte[MAX_MESSAGE_LENGTH];
+        int length;
+    }
+}
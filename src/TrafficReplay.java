@@ -0,0 +1,798 @@
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the requests of a {@link TrafficCapture} to a TCPServer or UDPServer
+ * again, with the pacing they were captured with or N times faster, and
+ * reports how the answers compare with the captured ones and how long they took.
+ *
+ * Every client of the capture, told apart by address and port, becomes one
+ * TCP connection or one UDP socket of the replay, so the server sees the same
+ * handshakes side by side. A connection is closed once its last request is
+ * answered, as the captured client did. The answers expected for a request are the
+ * messages the server sent that client after it, up to its next request.
+ *
+ * Challenges and tickets are random, so answers are compared by what they
+ * mean rather than byte for byte: the message types, AUT results and
+ * correlation ids. A captured URH answers a challenge of the captured run and
+ * gets AUT0 from any other server; with -u its digest is made again from the
+ * password in the user file and the challenge of the replay, and the URH is
+ * held back until that challenge has arrived, together with every later
+ * request of the same client so they stay in order. When its REQ is answered
+ * without a challenge, the URH goes out as captured. Resumption tickets are only
+ * accepted by a server with the key of the captured one (-t<keyfile>).
+ *
+ * The main thread sends every request on schedule and is the only one that
+ * writes; a selector thread finishes connecting, and reads and matches all the
+ * answers. The latency of a request runs from when it was due to be sent to
+ * its last answer, so a connection the server is slow to accept counts, and
+ * is reported next to the latency the capture recorded.
+ */
+public class TrafficReplay {
+
+    private static final String USAGE = "usage: TrafficReplay [-x<speed>] [-u<userfile>] [-w<wait ms>] <capturefile> host:port";
+    private static final int DEFAULT_PORT = 1024;
+    private static final long DEFAULT_WAIT = 2000;
+    private static final long TICK = 1000000;
+    private static final int MAX_REPORTED = 10;
+    // Correlation id of messages that are not TAGGED or in a BATCH
+    private static final int UNTAGGED = -1;
+    private static final String[] TYPES = {"?", "REQ", "CHA", "URH", "AUT", "RES", "BATCH", "TAGGED"};
+
+    private final InetSocketAddress server;
+    private final boolean udp;
+    // Passwords by username with -u, null to send the captured digests
+    private final Map<String, String> passwords;
+    private final Selector selector;
+    // Channels opened by the sender, registered by the reader
+    private final ConcurrentLinkedQueue<Peer> registrations = new ConcurrentLinkedQueue<Peer>();
+    // URHs whose challenge arrived, sent by the sender
+    private final ConcurrentLinkedQueue<Exchange> released = new ConcurrentLinkedQueue<Exchange>();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean done;
+    private volatile Thread sender;
+
+    // Only used by the reader thread, read once it is joined
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long matched;
+    private long mismatched;
+    private long unanswered;
+    private long unexpected;
+    private final List<String> differences = new ArrayList<String>();
+
+    /**
+     * @param server the server to replay to
+     * @param udp whether the capture is of a UDPServer
+     * @param passwords passwords by username to sign URHs with, or null
+     * @throws IOException if the selector cannot be opened
+     */
+    public TrafficReplay(InetSocketAddress server, boolean udp, Map<String, String> passwords) throws IOException {
+        this.server = server;
+        this.udp = udp;
+        this.passwords = passwords;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Replays the requests and prints the report.
+     * @param capture the records of the capture, in the order they were written
+     * @param speed 1 for the captured pacing, 10 for ten times faster, 0 for as fast as possible
+     * @param wait how long to wait for answers once everything is sent, in milliseconds
+     * @param name the capture, for the report
+     * @throws InterruptedException if interrupted while waiting for the reader
+     */
+    public void replay(List<TrafficCapture.Record> capture, double speed, long wait, String name) throws InterruptedException {
+        Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+        List<Exchange> schedule = new ArrayList<Exchange>();
+        LatencyHistogram captured = new LatencyHistogram();
+        for (TrafficCapture.Record r : capture) {
+            String key = r.address.getHostAddress() + ":" + r.port;
+            Peer p = peers.get(key);
+            if (p == null) {
+                p = new Peer(key);
+                peers.put(key, p);
+            }
+            if (!r.sent()) {
+                p.last = new Exchange(p, r.message, r.time);
+                p.unsent++;
+                schedule.add(p.last);
+            } else if (p.last != null) {
+                // Anything sent before the client's first request, such as AUT2 to a shed connection, is left out
+                p.last.expected.add(signature(ByteBuffer.wrap(r.message)));
+                p.last.captured = r.time - p.last.time;
+            }
+        }
+        for (Exchange e : schedule)
+            if (!e.expected.isEmpty())
+                captured.record(e.captured);
+        // Times are taken as slots are claimed, so neighbours may be a little out of order
+        Collections.sort(schedule, new Comparator<Exchange>() {
+            @Override
+            public int compare(Exchange a, Exchange b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+
+        sender = Thread.currentThread();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "replay-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long start = System.nanoTime();
+        long first = schedule.isEmpty() ? 0 : schedule.get(0).time;
+        long late = 0;
+        for (Exchange e : schedule) {
+            if (speed > 0) {
+                long due = start + (long) ((e.time - first) / speed);
+                long delay;
+                while ((delay = due - System.nanoTime()) > 0) {
+                    sendReleased();
+                    LockSupport.parkNanos(delay);
+                }
+                late = Math.max(late, -delay);
+            }
+            sendReleased();
+            submit(e);
+        }
+        long elapsed = System.nanoTime() - start;
+        long deadline = System.nanoTime() + wait * 1000000;
+        // outstanding() first: the reader moves a request from held to released while it holds the peer's lock
+        while ((outstanding(peers.values()) || !released.isEmpty()) && System.nanoTime() - deadline < 0) {
+            sendReleased();
+            LockSupport.parkNanos(TICK);
+        }
+        done = true;
+        selector.wakeup();
+        reader.join();
+
+        long missing = unanswered + released.size();
+        for (Peer p : peers.values()) {
+            synchronized (p) {
+                missing += p.pending.size() + p.held.size();
+            }
+            p.close();
+        }
+        System.out.println(String.format(Locale.ROOT, "Replayed %d requests of %d clients from %s to %s in %.1f s, ",
+                schedule.size(), peers.size(), name, server.getHostString() + ":" + server.getPort(), elapsed / 1e9)
+                + (speed > 0 ? String.format(Locale.ROOT, "%sx the captured pace, at most %.3f ms behind",
+                        speed == (long) speed ? Long.toString((long) speed) : Double.toString(speed), late / 1e6)
+                        : "as fast as possible"));
+        System.out.println(matched + " answered as captured, " + mismatched + " differently, " + missing
+                + " not answered, " + unexpected + " unexpected answers");
+        System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s", "latency ms", "count", "p50", "p99", "p99.9", "max"));
+        row("captured", captured);
+        row("replayed", latencies);
+        for (String d : differences)
+            System.out.println(d);
+        if (failed.sum() > 0)
+            System.out.println("Requests that could not be sent: " + failed.sum());
+    }
+
+    private static void row(String name, LatencyHistogram h) {
+        if (h.count() == 0)
+            return;
+        System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.3f %10.3f %10.3f %10.3f", name, h.count(),
+                h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6));
+    }
+
+    private static boolean outstanding(Iterable<Peer> peers) {
+        for (Peer p : peers) {
+            synchronized (p) {
+                if (!p.pending.isEmpty() || !p.held.isEmpty())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request on schedule, or holds it back behind those of its client
+     * still waiting for a challenge.
+     */
+    private void submit(Exchange e) {
+        Peer p = e.peer;
+        synchronized (p) {
+            if (!p.held.isEmpty() || !prepare(p, e)) {
+                p.held.add(e);
+                return;
+            }
+        }
+        transmit(e);
+    }
+
+    /**
+     * Decides what to send for a request, in the order of its client's
+     * requests. Called with the peer locked.
+     * @return false with -u if a challenge its URHs answer is still to come
+     */
+    private boolean prepare(Peer p, Exchange e) {
+        if (passwords == null) {
+            e.payload = e.request;
+            return true;
+        }
+        List<int[]> parts = parts(ByteBuffer.wrap(e.request));
+        for (int[] part : parts)
+            if (part[2] == WireCodec.URH && !p.challenges.containsKey(part[0]) && asking(p, part[0]))
+                return false;
+        try {
+            e.payload = sign(p, e.request);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        // A new REQ makes the server forget the old challenge
+        boolean asks = false;
+        for (int[] part : parts) {
+            if (part[2] == WireCodec.REQ) {
+                p.challenges.remove(part[0]);
+                asks = true;
+            }
+        }
+        if (asks && !e.expected.isEmpty())
+            p.asking.add(e);
+        return true;
+    }
+
+    /**
+     * @return whether a REQ for the correlation id is sent or about to be, and not answered yet
+     */
+    private static boolean asking(Peer p, int id) {
+        for (Exchange e : p.asking)
+            for (int[] part : parts(ByteBuffer.wrap(e.request)))
+                if (part[2] == WireCodec.REQ && part[0] == id)
+                    return true;
+        return false;
+    }
+
+    /**
+     * Hands the held requests of a client that can go now to the sender, in
+     * order. Called with the peer locked.
+     */
+    private void release(Peer p) {
+        if (p.held.isEmpty())
+            return;
+        while (!p.held.isEmpty() && prepare(p, p.held.get(0)))
+            released.add(p.held.remove(0));
+        Thread t = sender;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    private void sendReleased() {
+        Exchange e;
+        while ((e = released.poll()) != null)
+            transmit(e);
+    }
+
+    /**
+     * Writes a request, opening the client's channel first if needed, or
+     * leaves it to be written once the connection is made. Only called by the sender.
+     */
+    private void transmit(Exchange e) {
+        Peer p = e.peer;
+        ByteChannel channel;
+        try {
+            channel = p.open();
+            synchronized (p) {
+                if (e.sent == 0) {
+                    e.sent = System.nanoTime();
+                    p.unsent--;
+                    if (!e.expected.isEmpty())
+                        p.pending.add(e);
+                }
+                if (p.connecting) {
+                    p.connected.add(e);
+                    return;
+                }
+            }
+            ByteBuffer out = ByteBuffer.wrap(e.payload);
+            while (out.hasRemaining())
+                if (channel.write(out) == 0)
+                    Thread.yield();
+        } catch (IOException ex) {
+            failed.increment();
+            synchronized (p) {
+                if (e.sent == 0)
+                    p.unsent--;
+                p.pending.remove(e);
+                p.asking.remove(e);
+                release(p);
+            }
+            // Opened again for the client's next request
+            p.close();
+        }
+    }
+
+    /**
+     * Copies a request and makes the digest of each URH in it again from the
+     * user's password and the challenge the replay got for it.
+     */
+    private byte[] sign(Peer p, byte[] request) throws UnsupportedEncodingException {
+        byte[] signed = request.clone();
+        ByteBuffer buf = ByteBuffer.wrap(signed);
+        for (int[] part : parts(buf)) {
+            String challenge = p.challenges.get(part[0]);
+            if (part[2] != WireCodec.URH || challenge == null)
+                continue;
+            int offset = part[1];
+            if (!WireCodec.isBinary(buf)) {
+                // URH<username length><username><hex digest>
+                int length = Character.getNumericValue(signed[offset + 3]);
+                if (length < 1 || offset + 4 + length + 32 > signed.length)
+                    continue;
+                String username = new String(signed, offset + 4, length, StandardCharsets.US_ASCII);
+                String password = passwords.get(username);
+                if (password == null)
+                    continue;
+                byte[] hex = LoadGenerator.hex(digest(username + password + challenge)).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(hex, 0, signed, offset + 4 + length, hex.length);
+            } else {
+                ByteBuffer frame = slice(buf, offset, signed.length);
+                String username = new String(signed, WireCodec.usernameOffset(frame), WireCodec.usernameLength(frame), StandardCharsets.US_ASCII);
+                String password = passwords.get(username);
+                if (password == null)
+                    continue;
+                byte[] digest = digest(username + password + challenge);
+                System.arraycopy(digest, 0, signed, WireCodec.digestOffset(frame), digest.length);
+            }
+        }
+        return signed;
+    }
+
+    private static byte[] digest(String s) throws UnsupportedEncodingException {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the answers of every channel until the replay is done.
+     */
+    private void read() {
+        ByteBuffer datagram = ByteBuffer.allocate(WireCodec.MAX_DATAGRAM_LENGTH);
+        while (!done) {
+            try {
+                selector.select(1);
+            } catch (IOException e) {
+                return;
+            }
+            Peer p;
+            while ((p = registrations.poll()) != null) {
+                SelectableChannel channel = (SelectableChannel) p.channel;
+                try {
+                    if (channel != null)
+                        channel.register(selector, p.connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, p);
+                } catch (ClosedChannelException e) {
+                    // Closed by the sender after a failed write
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                p = (Peer) key.attachment();
+                ByteChannel channel = (ByteChannel) key.channel();
+                try {
+                    if (!key.isValid()) {
+                        // Closed by the sender after a failed write
+                        continue;
+                    } else if (key.isConnectable()) {
+                        connected(p, key);
+                    } else if (udp) {
+                        datagram.clear();
+                        if (channel.read(datagram) <= 0)
+                            continue;
+                        datagram.flip();
+                        answer(p, datagram);
+                    } else if (channel.read(p.in) < 0) {
+                        lost(p, key);
+                    } else {
+                        split(p);
+                    }
+                } catch (PortUnreachableException e) {
+                    // No server behind the port, what was sent stays unanswered
+                } catch (CancelledKeyException e) {
+                    // Closed by the sender after a failed write
+                } catch (IOException e) {
+                    lost(p, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the text lines and binary frames received on a connection apart.
+     */
+    private void split(Peer p) {
+        ByteBuffer in = p.in;
+        in.flip();
+        while (in.hasRemaining()) {
+            int end;
+            if (WireCodec.isBinary(in)) {
+                int length = WireCodec.frameLength(in);
+                if (length < 0 || in.remaining() < length)
+                    break;
+                end = in.position() + length;
+            } else {
+                end = in.position();
+                while (end < in.limit() && in.get(end) != '\n')
+                    end++;
+                if (end == in.limit())
+                    break;
+                end++;
+            }
+            int limit = in.limit();
+            in.limit(end);
+            answer(p, in);
+            in.limit(limit);
+            in.position(end);
+        }
+        if (in.position() == 0 && in.limit() == in.capacity()) {
+            // A full buffer that holds no complete message
+            unexpected++;
+            in.clear();
+        } else {
+            in.compact();
+        }
+    }
+
+    /**
+     * Finishes connecting and hands the requests that waited for it back to the sender.
+     */
+    private void connected(Peer p, SelectionKey key) throws IOException {
+        if (!((SocketChannel) key.channel()).finishConnect())
+            return;
+        key.interestOps(SelectionKey.OP_READ);
+        synchronized (p) {
+            p.connecting = false;
+            released.addAll(p.connected);
+            p.connected.clear();
+        }
+        Thread t = sender;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    private void lost(Peer p, SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // closed already
+        }
+        p.in.clear();
+        synchronized (p) {
+            if (p.channel == key.channel()) {
+                p.channel = null;
+                p.connecting = false;
+                p.connected.clear();
+            }
+            unanswered += p.pending.size();
+            p.asking.removeAll(p.pending);
+            p.pending.clear();
+            release(p);
+        }
+    }
+
+    /**
+     * Matches one answer to the oldest request of its client that expects
+     * this answer next, or else counts it against the oldest request.
+     * @param p the client
+     * @param message buffer holding the answer between its position and limit
+     */
+    private void answer(Peer p, ByteBuffer message) {
+        long now = System.nanoTime();
+        String signature = signature(message);
+        synchronized (p) {
+            if (passwords != null)
+                challenges(p, message);
+            Exchange match = null;
+            for (Exchange e : p.pending) {
+                if (e.expected.get(e.answered).equals(signature)) {
+                    match = e;
+                    break;
+                }
+            }
+            if (match == null && !p.pending.isEmpty()) {
+                match = p.pending.get(0);
+                if (!match.different && differences.size() < MAX_REPORTED)
+                    differences.add("Different: " + p.name + " expected " + match.expected.get(match.answered) + ", got " + signature);
+                match.different = true;
+            }
+            if (match == null) {
+                unexpected++;
+            } else if (++match.answered == match.expected.size()) {
+                p.pending.remove(match);
+                latencies.record(now - match.sent);
+                if (match.different)
+                    mismatched++;
+                else
+                    matched++;
+                p.asking.remove(match);
+                if (!udp && p.unsent == 0 && p.pending.isEmpty())
+                    p.close();
+            }
+            if (passwords != null)
+                release(p);
+        }
+    }
+
+    /**
+     * Remembers the challenges of an answer.
+     */
+    private static void challenges(Peer p, ByteBuffer message) {
+        for (int[] part : parts(message)) {
+            if (part[2] != WireCodec.CHA)
+                continue;
+            int offset = WireCodec.isBinary(message) ? part[1] + WireCodec.HEADER_LENGTH : part[1] + 3;
+            if (offset + WireCodec.CHALLENGE_LENGTH > message.limit())
+                continue;
+            byte[] challenge = new byte[WireCodec.CHALLENGE_LENGTH];
+            for (int i = 0; i < challenge.length; i++)
+                challenge[i] = message.get(offset + i);
+            p.challenges.put(part[0], new String(challenge, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * @param message buffer holding one message between its position and limit
+     * @return what the message means, for example "AUT1", "7:CHA" or "[3:CHA,4:AUT0]",
+     *         the same for any two answers the server could have given alike
+     */
+    static String signature(ByteBuffer message) {
+        StringBuilder sb = new StringBuilder();
+        boolean binary = WireCodec.isBinary(message);
+        if (!binary)
+            sb.append("text ");
+        else if (WireCodec.type(message) == WireCodec.BATCH)
+            sb.append('[');
+        List<int[]> parts = parts(message);
+        for (int i = 0; i < parts.size(); i++) {
+            int[] part = parts.get(i);
+            if (i > 0)
+                sb.append(',');
+            if (part[0] != UNTAGGED)
+                sb.append(part[0]).append(':');
+            sb.append(part[2] == WireCodec.INVALID ? "INVALID" : TYPES[part[2]]);
+            if (part[2] == WireCodec.AUT) {
+                int result = binary ? WireCodec.result(slice(message, part[1], message.limit())) : message.get(part[1] + 3) - '0';
+                sb.append(result);
+            }
+        }
+        if (binary && WireCodec.type(message) == WireCodec.BATCH)
+            sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Lists the frames a message carries: itself, the frame of a TAGGED frame or the entries of a BATCH.
+     * @param message buffer holding one message between its position and limit
+     * @return for every frame its correlation id or UNTAGGED, its absolute index and its type
+     */
+    static List<int[]> parts(ByteBuffer message) {
+        List<int[]> parts = new ArrayList<int[]>();
+        int start = message.position();
+        if (!WireCodec.isBinary(message)) {
+            parts.add(new int[] {UNTAGGED, start, textType(message)});
+            return parts;
+        }
+        int type = WireCodec.type(message);
+        if (type == WireCodec.TAGGED) {
+            int frame = WireCodec.taggedFrame(message);
+            parts.add(new int[] {WireCodec.tag(message), frame, WireCodec.type(slice(message, frame, message.limit()))});
+        } else if (type == WireCodec.BATCH) {
+            int entry = WireCodec.firstEntry(message);
+            for (int i = WireCodec.entryCount(message); i > 0; i--) {
+                int next = entry + WireCodec.entryLength(message, entry);
+                int frame = entry + WireCodec.CORRELATION_ID_LENGTH;
+                parts.add(new int[] {WireCodec.entryId(message, entry), frame, WireCodec.type(slice(message, frame, next))});
+                entry = next;
+            }
+        } else {
+            parts.add(new int[] {UNTAGGED, start, type});
+        }
+        return parts;
+    }
+
+    private static int textType(ByteBuffer message) {
+        if (message.remaining() < 3)
+            return WireCodec.INVALID;
+        String type = new String(new byte[] {message.get(message.position()), message.get(message.position() + 1),
+                message.get(message.position() + 2)}, StandardCharsets.US_ASCII);
+        for (int i = WireCodec.REQ; i <= WireCodec.RES; i++)
+            if (TYPES[i].equals(type))
+                return i == WireCodec.AUT && message.remaining() < 4 ? WireCodec.INVALID : i;
+        return WireCodec.INVALID;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int start, int end) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(end);
+        view.position(start);
+        return view;
+    }
+
+    /**
+     * One client of the capture and its channel in the replay.
+     */
+    private final class Peer {
+        final String name;
+        // Last request while reading the capture
+        Exchange last;
+        // Requests not sent yet, guarded by the peer
+        int unsent;
+        // While a TCP connection is being made, the requests waiting for it, guarded by the peer
+        boolean connecting;
+        final List<Exchange> connected = new ArrayList<Exchange>();
+        // Requests sent and not fully answered, oldest first
+        final List<Exchange> pending = new ArrayList<Exchange>();
+        // With -u, requests waiting for the challenges of their URHs
+        final List<Exchange> held = new ArrayList<Exchange>();
+        // With -u, the latest challenge by correlation id
+        final Map<Integer, String> challenges = new HashMap<Integer, String>();
+        // With -u, requests with a REQ that are not answered yet
+        final List<Exchange> asking = new ArrayList<Exchange>();
+        volatile ByteChannel channel;
+        // Only used by the reader
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+
+        Peer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the channel, opened and handed to the reader if there is none. Only called by the sender.
+         */
+        ByteChannel open() throws IOException {
+            ByteChannel c = channel;
+            if (c != null && c.isOpen())
+                return c;
+            if (udp) {
+                DatagramChannel d = DatagramChannel.open();
+                d.connect(server);
+                d.configureBlocking(false);
+                c = d;
+            } else {
+                SocketChannel s = SocketChannel.open();
+                s.socket().setTcpNoDelay(true);
+                s.configureBlocking(false);
+                boolean done = s.connect(server);
+                synchronized (this) {
+                    connecting = !done;
+                }
+                c = s;
+            }
+            channel = c;
+            registrations.add(this);
+            selector.wakeup();
+            return c;
+        }
+
+        void close() {
+            ByteChannel c = channel;
+            try {
+                if (c != null)
+                    c.close();
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+    }
+
+    /**
+     * One captured request and the answers it got.
+     */
+    private static final class Exchange {
+        final Peer peer;
+        final byte[] request;
+        // When it was captured, nanoseconds since 1970
+        final long time;
+        // Signatures of the captured answers
+        final List<String> expected = new ArrayList<String>();
+        // Captured latency, up to the last answer
+        long captured;
+        // What is sent, the request signed again with -u; set by prepare
+        byte[] payload;
+        // Replay state, guarded by the peer
+        long sent;
+        int answered;
+        boolean different;
+
+        Exchange(Peer peer, byte[] request, long time) {
+            this.peer = peer;
+            this.request = request;
+            this.time = time;
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+    	if(args.length > 5 || args.length < 2){
+    		System.out.println("Wrong number of arguments");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
+
+    	int off = 0;
+    	double speed = 1;
+    	long wait = DEFAULT_WAIT;
+    	Map<String, String> passwords = null;
+    	while (off < args.length && args[off].charAt(0) == '-'){
+    		if(args[off].matches("-x\\d+(\\.\\d+)?"))
+    			speed = Double.parseDouble(args[off].substring(2));
+    		else if(args[off].matches("-w\\d+") && Options.parseInt(args[off].substring(2)) >= 0)
+    			wait = Options.parseInt(args[off].substring(2));
+    		else if(args[off].startsWith("-u") && args[off].length() > 2){
+    			passwords = new HashMap<String, String>();
+    			for (String[] user : LoadGenerator.readUsers(args[off].substring(2)))
+    				passwords.put(user[0], user[1]);
+    		}
+    		else{
+				System.out.println("Not a valid option: "+args[off]);
+				System.out.println(USAGE);
+				System.exit(0);
+			}
+			off++;
+    	}
+    	if(args.length - off != 2){
+    		System.out.println("Wrong number of arguments");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
+        String[] tokens = args[off+1].split("[:]+");
+        InetAddress host = InetAddress.getByName(tokens[0]);
+        int port = DEFAULT_PORT;
+        if(tokens.length > 1 && tokens[1].matches("\\d+"))
+        	port = (int) Options.parse(tokens[1], 9999);
+        if(port < 1024 || port > 9999){
+    		System.out.println("Invalid port number. Only 1024-9999.");
+			System.exit(0);
+    	}
+
+        List<TrafficCapture.Record> capture;
+        try {
+            capture = TrafficCapture.read(args[off]);
+        } catch (IOException e) {
+            System.out.println("Cannot read the capture: " + e.getMessage());
+            return;
+        }
+        if (capture.isEmpty()) {
+            System.out.println("Nothing captured in " + args[off]);
+            return;
+        }
+        boolean udp = (capture.get(0).flags & TrafficCapture.UDP) != 0;
+        new TrafficReplay(new InetSocketAddress(host, port), udp, passwords).replay(capture, speed, wait, args[off]);
+    }
+}
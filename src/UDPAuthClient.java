@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link AuthClient} for a UDPServer. Every handshake goes through one socket,
+ * told apart by the correlation id of its BATCH entries.
+ *
+ * A writer thread takes the messages of a queue and packs them into as few
+ * BATCH datagrams as they fit in, sending whenever the queue is empty: alone
+ * a message goes out at once, under load many share a datagram. A reader
+ * thread hands the entries of the answers to AuthClient. Unanswered messages
+ * are resent after the timeout of the server's RetransmitTimer, which the
+ * round trips of the client keep up to date, until the handshake times out.
+ *
+ * With text framing each message is a text datagram of its own, for the
+ * single handshake in flight.
+ */
+public class UDPAuthClient extends AuthClient {
+
+    private final DatagramSocket socket;
+    private final RetransmitTimer timer;
+    private final ConcurrentLinkedQueue<Handshake> queue = new ConcurrentLinkedQueue<Handshake>();
+    private final Thread writer;
+
+    /**
+     * Opens the socket and starts its threads.
+     * @param address the server
+     * @throws SocketException if the socket cannot be opened
+     */
+    public UDPAuthClient(InetSocketAddress address) throws SocketException {
+        this(address, false);
+    }
+
+    /**
+     * Opens the socket and starts its threads.
+     * @param address the server
+     * @param text whether to send text datagrams instead of BATCH entries, one handshake at a time
+     * @throws SocketException if the socket cannot be opened
+     */
+    public UDPAuthClient(InetSocketAddress address, boolean text) throws SocketException {
+        super(address, text);
+        socket = new DatagramSocket();
+        socket.connect(address);
+        timer = RetransmitTimer.forServer(server);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "auth-client-udp-writer");
+        writer.setDaemon(true);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "auth-client-udp-reader");
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    @Override
+    protected void send(Handshake h) {
+        if (!h.enqueue())
+            return;
+        queue.add(h);
+        LockSupport.unpark(writer);
+    }
+
+    @Override
+    protected int resendTimeout(int attempt) {
+        return timer.timeout(attempt);
+    }
+
+    @Override
+    protected void roundTrip(long nanos) {
+        timer.sample(nanos);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        socket.close();
+        LockSupport.unpark(writer);
+    }
+
+    private void write() {
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_DATAGRAM_LENGTH);
+        int start = 0;
+        int entries = 0;
+        while (!closed) {
+            Handshake h = queue.poll();
+            if (h == null) {
+                if (entries > 0)
+                    flush(out, start, entries);
+                entries = 0;
+                LockSupport.park(this);
+                continue;
+            }
+            if (text) {
+                out.clear();
+                if (h.encode(out, socket))
+                    sendDatagram(out);
+                continue;
+            }
+            if (entries > 0 && (out.remaining() < WireCodec.CORRELATION_ID_LENGTH + WireCodec.MAX_FRAME_LENGTH
+                    || entries == WireCodec.MAX_BATCH_ENTRIES)) {
+                flush(out, start, entries);
+                entries = 0;
+            }
+            if (entries == 0) {
+                out.clear();
+                start = WireCodec.beginBatch(out);
+            }
+            int entry = out.position();
+            WireCodec.putEntryId(out, h.id);
+            if (h.encode(out, socket))
+                entries++;
+            else
+                out.position(entry);
+        }
+    }
+
+    private void flush(ByteBuffer out, int start, int entries) {
+        WireCodec.endBatch(out, start, entries);
+        sendDatagram(out);
+    }
+
+    private void sendDatagram(ByteBuffer out) {
+        try {
+            socket.send(new DatagramPacket(out.array(), out.position()));
+        } catch (IOException e) {
+            // Lost like any datagram, resent on the timer; a server that is not there is noticed by the reader
+        }
+    }
+
+    private void read() {
+        byte[] receiveData = new byte[WireCodec.MAX_DATAGRAM_LENGTH];
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        ByteBuffer in = ByteBuffer.wrap(receiveData);
+        ByteBuffer answer = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        while (!closed) {
+            try {
+                receivePacket.setLength(receiveData.length);
+                socket.receive(receivePacket);
+            } catch (PortUnreachableException e) {
+                for (Handshake h : inFlight(socket))
+                    fail(h, e);
+                continue;
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            if (text) {
+                // Anything but a CHA or AUT is skipped, like a datagram that is not a batch
+                answer.clear();
+                if (decodeText(receiveData, receivePacket.getLength(), answer)) {
+                    answer.flip();
+                    received(0, answer);
+                }
+                continue;
+            }
+            in.clear();
+            in.limit(receivePacket.getLength());
+            // Skips anything but batches, such as the plain AUT0 for a batch the server could not read
+            if (WireCodec.type(in) != WireCodec.BATCH)
+                continue;
+            int end = in.limit();
+            int entry = WireCodec.firstEntry(in);
+            for (int i = WireCodec.entryCount(in); i > 0; i--) {
+                int id = WireCodec.entryId(in, entry);
+                int next = entry + WireCodec.entryLength(in, entry);
+                in.limit(next);
+                in.position(entry + WireCodec.CORRELATION_ID_LENGTH);
+                received(id, in);
+                in.clear();
+                in.limit(end);
+                entry = next;
+            }
+        }
+    }
+}
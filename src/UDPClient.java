@@ -1,19 +1,32 @@
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.*;
 
 public class UDPClient {
 
-    private static final int PACKETSIZE = 128;
 	private static final int RANDOM_STRING_LENGTH = 64;
-    private static String username;
-    private static String password;
     private static boolean debug = false;
+    private static boolean binary = false;
+    // Set with -r, keeps the tickets that let the next run skip the challenge
+    private static TicketCache tickets = null;
+    // Set with -e, keeps the round trip time estimates between runs
+    private static String rttFile = null;
     private static final int DEFAULT_PORT = 1024;
+    private static final String USAGE = "usage: UDPClient [-d] [-b] [-r<ticketfile>] [-e<rttfile>] [host:port] [username] [password]\n"
+    		+ "       UDPClient -l<userfile> [-b] [-c<concurrency>] [-q<handshakes per second>] [-s<seconds>] [host:port]\n"
+    		+ "       UDPClient -g<userfile> [host:port]";
+    // Load mode, see LoadGenerator
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int DEFAULT_SECONDS = 10;
+    private static final int LOAD_RETRIES = 3;
+    // Batch mode, see authenticateBatch
+    private static final int BATCH_DEPTH = 1024;
 
     /****************************************************************************
      *   ---------------------------------------------------------------------  *
@@ -23,6 +36,7 @@ public class UDPClient {
      *  |   CHA      | Random String    | Send URH                            | *
      *  |   URH      | Username & Hash  | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *  |   AUT      | Authentication   | Determine Result                    | *
+     *  |   RES      | Resume           | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *   ---------------------------------------------------------------------  *
      *                                                                          *
      *  Message Format:                                                         *
@@ -42,114 +56,118 @@ public class UDPClient {
      *  - AUTHENTICATION -                                                      *
      *  Index 0-2: Message Type (AUT)                                           *
      *  Index 3:   Result (0=Fail, 1=Succeed)                                   *
+     *  Index 4-67: Resumption ticket, if the server hands them out             *
+     *                                                                          *
+     *  - RESUME -                                                              *
+     *  Same as USERNAME & HASH, with the hash taken over the ticket instead    *
+     *  of a random string, followed by the 64 character ticket                 *
+     *                                                                          *
+     *  The handshake of a user runs through the client library (AuthClient,    *
+     *  UDPAuthClient) as text datagrams, or with -b as binary frames. With     *
+     *  -g the handshakes of every user in a file run side by side, as BATCH    *
+     *  datagrams (see WireCodec and authenticateBatch).                        *
      *                                                                          *
      ***************************************************************************/
 
     /**
-	 * Parses the received message and generates the response accordingly.
-	 * @param receivePacket	message received from the server
-	 * @return	the response packet
-	 * @throws NoSuchAlgorithmException
-	 * @throws UnsupportedEncodingException
-	 */
-    private DatagramPacket parseMessage(DatagramPacket receivePacket) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        InetAddress host = receivePacket.getAddress();
-        int port = receivePacket.getPort();
-        String message = new String(receivePacket.getData());
-
-        if(message.length() < 4){
-        	if(debug)
-        		System.out.print("Received message too short. ");
-        	System.exit(0);
-        }
-
-        String type = message.substring(0,3);
-        String data = message.substring(3);
-        StringBuilder sb = new StringBuilder();
-
-        // Determine type of message and handle accordingly
-        if (type.equals("CHA")) {
-        	if(debug){
-        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                System.out.println("["+timeStamp+"] "+"Received Message: CHA"+message+" from " + host.getHostAddress()+":"+port);
-        	}
-            String hash = hash(username+password+data.substring(0,RANDOM_STRING_LENGTH));
-            sb.append("URH");
-            sb.append(Integer.toHexString(username.length()));
-            sb.append(username);
-            sb.append(hash);
-        } else if (type.equals("AUT")) {
-        	if(debug){
-        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                System.out.println("["+timeStamp+"] "+"Received Message: AUT"+message+" from " + host.getHostAddress()+":"+port);
-        	}
-            int result = Character.getNumericValue(data.charAt(0));
-            if (result==1)
-                System.out.println("Welcome to our service.");
-            else
-                System.out.println("User authorization failed.");
-            System.exit(0);
-        } else {
-            System.out.println("Cannot understand message.");
-            System.exit(0);
-        }
-
-        String sendMessage = sb.toString();
-        byte[] sendData = new byte[PACKETSIZE];
-        sendData = sendMessage.getBytes();
-        return new DatagramPacket(sendData, sendData.length, host, port);
-    }
-
-    /**
-     * Generates a MD5 hash from a given string
+     * Generates a raw MD5 hash from a given string
      * @param s the String to generate MD5 from
      * @return generated MD5
      * @throws NoSuchAlgorithmException
      * @throws UnsupportedEncodingException
      */
-    private String hash(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    private byte[] digest(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
     	MessageDigest md = MessageDigest.getInstance("MD5");
     	md.reset();
-		byte[] digest = md.digest(s.getBytes("UTF-8"));
-		StringBuffer sb = new StringBuffer();
-		for (byte b : digest) {
-			sb.append(String.format("%02x", b & 0xff));
-		}
-		return sb.toString();
+		return md.digest(s.getBytes("UTF-8"));
     }
 
     public static void main(String args[]) throws Exception {
-    	if(args.length > 4 || args.length < 3){
+    	if(args.length > 12 || args.length < 1){
     		System.out.println("Wrong number of arguments");
-    		System.out.println("usage: UDPClient [-d] [host:port] [username] [password]");
+    		System.out.println(USAGE);
     		System.exit(0);
     	}
 
     	int off = 0;
-    	if (args[0].charAt(0) == '-'){
-    		if(args[0].charAt(1)!='d'){
-				System.out.println("Not a valid option: "+args[0]);
-				System.out.println("usage: UDPClient [-d] [host:port] [username] [password]");
+    	String userFile = null;
+    	String batchFile = null;
+    	int concurrency = DEFAULT_CONCURRENCY;
+    	double rate = 0;
+    	int seconds = DEFAULT_SECONDS;
+    	while (off < args.length && args[off].charAt(0) == '-'){
+    		if(args[off].equals("-d"))
+    			debug = true;
+    		else if(args[off].equals("-b"))
+    			binary = true;
+    		else if(args[off].startsWith("-r") && args[off].length() > 2)
+    			tickets = new TicketCache(args[off].substring(2));
+    		else if(args[off].startsWith("-e") && args[off].length() > 2)
+    			rttFile = args[off].substring(2);
+    		else if(args[off].startsWith("-l") && args[off].length() > 2)
+    			userFile = args[off].substring(2);
+    		else if(args[off].startsWith("-g") && args[off].length() > 2)
+    			batchFile = args[off].substring(2);
+    		else if(args[off].matches("-c[1-9]\\d*") && Options.parseInt(args[off].substring(2)) > 0)
+    			concurrency = Options.parseInt(args[off].substring(2));
+    		else if(args[off].matches("-q\\d+(\\.\\d+)?"))
+    			rate = Double.parseDouble(args[off].substring(2));
+    		else if(args[off].matches("-s[1-9]\\d*") && Options.parseInt(args[off].substring(2)) > 0)
+    			seconds = Options.parseInt(args[off].substring(2));
+    		else{
+				System.out.println("Not a valid option: "+args[off]);
+				System.out.println(USAGE);
 				System.exit(0);
 			}
-			debug = true;
 			off++;
     	}
+    	if(args.length - off != (userFile == null && batchFile == null ? 3 : 1)){
+    		System.out.println("Wrong number of arguments");
+    		System.out.println(USAGE);
+    		System.exit(0);
+    	}
         String delimiter = "[:]+";
         String[] tokens = args[0+off].split(delimiter);
         String hostStr = tokens[0];
         InetAddress host = InetAddress.getByName(hostStr);
         int port = DEFAULT_PORT;
         if(tokens.length > 1 && tokens[1].matches("\\d+"))
-        	port = Integer.parseInt(tokens[1]);
+        	port = (int) Options.parse(tokens[1], 9999);
         else if(debug)
         	System.out.println("Using default port number 1024");
         if(port < 1024 || port > 9999){
     		System.out.println("Invalid port number. Only 1024-9999.");
 			System.exit(0);
     	}
+        if (rttFile != null)
+            RetransmitTimer.load(rttFile);
+
+        if (userFile != null) {
+            runLoad(new InetSocketAddress(host, port), LoadGenerator.readUsers(userFile), concurrency, rate, seconds);
+            return;
+        }
+        if (batchFile != null) {
+            String[][] users = LoadGenerator.readUsers(batchFile);
+            long start = System.nanoTime();
+            boolean[] results = null;
+            try {
+                results = authenticateBatch(new InetSocketAddress(host, port), users);
+            } catch (PortUnreachableException e) {
+                System.out.println("Server unreachable.");
+                System.exit(0);
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            int authenticated = 0;
+            for (int i = 0; i < users.length; i++) {
+                System.out.println(users[i][0] + ": " + (results[i] ? "Welcome to our service." : "User authorization failed."));
+                if (results[i])
+                    authenticated++;
+            }
+            System.out.println(authenticated + " of " + users.length + " users authenticated in " + elapsed + " ms");
+            return;
+        }
 
-        username = args[1+off];
+        String username = args[1+off];
         if(username.length()>15 || username.length() < 1){
         	System.out.println("Invalid user name length. Only 1-15");
         	System.exit(0);
@@ -158,7 +176,7 @@ public class UDPClient {
         	System.out.println("Invalid username. Aalphanumeric and underscores only.");
         	System.exit(0);
         }
-        password = args[2+off];
+        String password = args[2+off];
         if(password.length()>15 || password.length() < 1){
         	System.out.println("Invalid password length. Only 1-15");
         	System.exit(0);
@@ -168,49 +186,183 @@ public class UDPClient {
         	System.exit(0);
         }
 
-        // Initiate client
-        UDPClient client = new UDPClient();
-        DatagramSocket clientSocket = new DatagramSocket();
-        //5 seconds timeout
-        clientSocket.setSoTimeout(5000);
-        byte[] receiveData = new byte[PACKETSIZE];
-        //send initial REQ
-        byte[] request = "REQ".getBytes();
-        DatagramPacket sendPacket = new DatagramPacket(request, request.length, host, port);
-        clientSocket.send(sendPacket);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if(debug){
+            String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
+            System.out.println("["+timeStamp+"] "+"Authenticating "+username+" at "+host.getHostAddress()+":"+port);
+        }
+        long start = System.nanoTime();
+        // A single handshake through the client library
+        AuthClient client = new UDPAuthClient(address, !binary);
+        client.setTickets(tickets);
+        String outcome = outcome(client.authenticate(username, password));
+        client.close();
+        if(rttFile != null)
+            RetransmitTimer.save(rttFile);
         if(debug){
-        	String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-            System.out.println("["+timeStamp+"] "+"Sending Message: REQ"+" to " + host.getHostAddress()+":"+port);
+            String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
+            System.out.println("["+timeStamp+"] "+"Answered in "+(System.nanoTime() - start) / 1000000+" ms");
+        }
+        System.out.println(outcome);
+    }
+
+    /**
+     * Waits for a handshake of the client library and tells how it ended.
+     * @param result the future returned by AuthClient.authenticate
+     * @return the line to print
+     * @throws InterruptedException
+     */
+    private static String outcome(Future<Boolean> result) throws InterruptedException {
+        try {
+            return result.get() ? "Welcome to our service." : "User authorization failed.";
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AuthClient.ServerBusyException)
+                return "Server busy, try again later.";
+            if (e.getCause() instanceof SocketTimeoutException)
+                return "Connection timeout.";
+            if (e.getCause() instanceof PortUnreachableException)
+                return "Server unreachable.";
+            return "Connection failed: " + e.getCause().getMessage();
         }
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        int count = 0;
-        while(true){
-	        try{
-	        	Arrays.fill(receiveData, (byte)0);
-	        	clientSocket.receive(receivePacket);
-	        }
-	        //If packet lost or connect time out, re-send last packet
-	        catch (SocketTimeoutException e){
-	        	//retry up to 5 times
-	        	if(count > 5){
-	        		System.out.println("Connection timeout.");
-		        	System.exit(0);
-	        	}
-	        	clientSocket.send(sendPacket);
-	        	count++;
-	        	if(debug){
-	        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-	        		System.out.println("["+timeStamp+"]" +" Did not receive response. Trying again.");
-	                System.out.println("["+timeStamp+"] "+"Sending Message: REQ"+" to " + host.getHostAddress()+":"+port);
-	        	}
-	        	continue;
-	        }
-	        sendPacket = client.parseMessage(receivePacket);
-	        clientSocket.send(sendPacket);
-	        if(debug){
-	        	String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                System.out.println("["+timeStamp+"] "+"Sending Message: URH"+new String(sendPacket.getData())+" to " + host.getHostAddress()+":"+port);
-	        }
+    }
+
+    /**
+     * Authenticates many users over one socket, their handshakes sent as
+     * binary BATCH entries by {@link UDPAuthClient}. Entries queued together
+     * share a datagram, so a few hundred users take a handful of datagrams
+     * instead of two round trips each. Up to BATCH_DEPTH handshakes are in
+     * flight at once.
+     * @param address the server
+     * @param users username and password pairs
+     * @return whether each user was authenticated; users the server never answered for count as failed
+     * @throws IOException if the socket fails, the server is busy or not there
+     */
+    public static boolean[] authenticateBatch(InetSocketAddress address, String[][] users) throws IOException {
+        AuthClient client = new UDPAuthClient(address);
+        try {
+            return client.authenticateAll(users, BATCH_DEPTH);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Runs handshakes for many users at once instead of one, see {@link LoadGenerator}.
+     * @param address the server
+     * @param users username and password pairs
+     * @param concurrency number of handshakes in flight
+     * @param rate handshakes per second, 0 for as many as the concurrency allows
+     * @param seconds how long to run
+     * @throws InterruptedException
+     */
+    private static void runLoad(final InetSocketAddress address, String[][] users, int concurrency, double rate, int seconds) throws InterruptedException {
+        System.out.println("Running " + (binary ? "binary" : "text") + " handshakes against " + address + " for " + seconds + " s");
+        new LoadGenerator(users, concurrency, rate, seconds) {
+            @Override
+            protected Session newSession() throws IOException {
+                return new LoadSession(address);
+            }
+        }.run();
+    }
+
+    /**
+     * The client side of a handshake for the load mode. Each worker keeps one
+     * socket, and so one client port, for all its handshakes. It waits for each
+     * answer as long as the RetransmitTimer of the server says, resending up to
+     * LOAD_RETRIES times.
+     */
+    static private class LoadSession implements LoadGenerator.Session {
+        private final DatagramSocket socket;
+        private final UDPClient client = new UDPClient();
+        private final byte[] receiveData = new byte[WireCodec.MAX_FRAME_LENGTH];
+        private final DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        private final ByteBuffer in = ByteBuffer.wrap(receiveData);
+        private final ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        private final RetransmitTimer timer;
+        // Whether a message of the current handshake was resent, its later answers may be late duplicates
+        private boolean resent;
+
+        private LoadSession(InetSocketAddress address) throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(address);
+            timer = RetransmitTimer.forServer(address.getHostString() + ":" + address.getPort());
+        }
+
+        @Override
+        public boolean handshake(String username, String password, LoadGenerator.Phases phases) throws IOException {
+            resent = false;
+            try {
+                if (binary)
+                    return binaryHandshake(username, password, phases);
+                exchange("REQ".getBytes("US-ASCII"), 3, "CHA", WireCodec.CHA);
+                phases.lap(LoadGenerator.CHALLENGE);
+                if (receivePacket.getLength() < 3 + RANDOM_STRING_LENGTH)
+                    throw new LoadGenerator.UnexpectedMessage("CHA too short");
+                String random = new String(receiveData, 3, RANDOM_STRING_LENGTH, "US-ASCII");
+                byte[] urh = ("URH" + Integer.toHexString(username.length()) + username
+                        + LoadGenerator.hex(client.digest(username+password+random))).getBytes("US-ASCII");
+                exchange(urh, urh.length, "AUT", WireCodec.AUT);
+                phases.lap(LoadGenerator.AUTHENTICATION);
+                return receiveData[3] == '1';
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private boolean binaryHandshake(String username, String password, LoadGenerator.Phases phases) throws IOException, NoSuchAlgorithmException {
+            out.clear();
+            WireCodec.encodeRequest(out);
+            exchange(out.array(), out.position(), "CHA", WireCodec.CHA);
+            phases.lap(LoadGenerator.CHALLENGE);
+            String random = new String(receiveData, WireCodec.challengeOffset(in), WireCodec.CHALLENGE_LENGTH, "US-ASCII");
+            byte[] user = username.getBytes("US-ASCII");
+            out.clear();
+            WireCodec.encodeUsernameHash(out, user, 0, user.length, client.digest(username+password+random), 0);
+            exchange(out.array(), out.position(), "AUT", WireCodec.AUT);
+            phases.lap(LoadGenerator.AUTHENTICATION);
+            return WireCodec.result(in) == 1;
+        }
+
+        /**
+         * Sends a message and waits for an answer of the given type. Answers of
+         * another type are late replies to an earlier, resent message and skipped.
+         * @throws SocketTimeoutException if no answer came after LOAD_RETRIES resends
+         */
+        private void exchange(byte[] message, int length, String textType, int frameType) throws IOException {
+            DatagramPacket sendPacket = new DatagramPacket(message, length);
+            for (int attempt = 0; ; attempt++) {
+                socket.send(sendPacket);
+                long sent = System.nanoTime();
+                socket.setSoTimeout(timer.timeout(attempt));
+                try {
+                    while (true) {
+                        receivePacket.setLength(receiveData.length);
+                        socket.receive(receivePacket);
+                        if (binary) {
+                            in.clear();
+                            in.limit(receivePacket.getLength());
+                            if (WireCodec.type(in) != frameType)
+                                continue;
+                        } else if (receivePacket.getLength() < 4
+                                || !new String(receiveData, 0, 3, "US-ASCII").equals(textType)) {
+                            continue;
+                        }
+                        // Only answers in a handshake where nothing was resent tell the round trip time
+                        if (!resent)
+                            timer.sample(System.nanoTime() - sent);
+                        return;
+                    }
+                } catch (SocketTimeoutException e) {
+                    if (attempt == LOAD_RETRIES)
+                        throw e;
+                    resent = true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
         }
     }
 }
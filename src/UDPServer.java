@@ -1,14 +1,12 @@
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.*;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-public class UDPServer {
+public class UDPServer implements Runnable {
 
 	private static final HashMap<String, String> PASSWORD = new HashMap<String, String>();
 	static{
@@ -18,13 +16,48 @@ public class UDPServer {
 		PASSWORD.put("user4", "pass4");
 		PASSWORD.put("user5", "pass5");
 	}
-	private static HashMap<String, String> challenge = new HashMap<String, String>();
-    private static final int MAX_PACKETSIZE = 128;
+	// The built in users above, unless an index file is given with -u
+	private static CredentialStore credentials = new MapCredentialStore(PASSWORD);
+	// Each worker owns the challenges of the clients the kernel steers to its socket
+	private final ChallengeStore challenge = stateless == null && cluster == null ? new ChallengeStore() : null;
+	private final DatagramChannel channel;
+	// Datagrams up to the path MTU are read, so a whole batch arrives at once. Both buffers
+	// are direct, the channel reads and writes them without a copy through a temporary one
+	private final ByteBuffer in = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM_LENGTH);
+	private final ByteBuffer out = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM_LENGTH);
+	// One answer of a batch, copied into out once it is known to fit
+	private final ByteBuffer batchAnswer = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+	// The answers that never change, encoded once and rewound before every send
+	private final ByteBuffer textFail = constant(FAIL_MESSAGE);
+	private final ByteBuffer textSuccess = constant(SUCCESS_MESSAGE);
+	private final ByteBuffer frameFail = constantFrame(false);
+	private final ByteBuffer frameSuccess = constantFrame(true);
 	private static final int RANDOM_STRING_LENGTH = 64;
 	private static final int MD5_LENGTH = 32;
     private static final int DEFAULT_PORT = 1024;
-	private static final byte[] FAIL_MESSAGE = "AUT0".getBytes();
-	private static boolean debug = false;
+	private static final byte[] REQ_TYPE = "REQ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] URH_TYPE = "URH".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] RES_TYPE = "RES".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHA_TYPE = "CHA".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FAIL_MESSAGE = "AUT0".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SUCCESS_MESSAGE = "AUT1".getBytes(StandardCharsets.US_ASCII);
+    private static final String USAGE = "usage: UDPServer [-d[logfile]] [-w[workers]] [-s[keyfile]] [-t[keyfile]] [-u<indexfile>] [-m[metrics port]] [-r<rate>[:<subnet rate>]] [-c<node>:<clusterfile>] [-p<capturefile>] [port]";
+	// Set with -d, null when debugging is off
+	private static DebugLog log = null;
+	// Set with -p, records every datagram received and sent
+	private static TrafficCapture capture = null;
+	// Set when challenges are derived from a shared key instead of being stored
+	private static StatelessChallenge stateless = null;
+	// Set when successful handshakes hand out resumption tickets
+	private static ResumptionTickets tickets = null;
+	// Set with -r, checked before a datagram is parsed
+	private static RateLimiter limiter = null;
+	// Set with -c, challenges are then kept by the cluster member owning their key
+	private static ChallengeCluster cluster = null;
+	// Started in main when challenges are random, shared by the workers
+	private static ChallengePool pool = null;
+	// Always collected, exposed with -m
+	private static final ServerMetrics metrics = new ServerMetrics("UDPServer");
 
     /****************************************************************************
      *  ----------------------------------------------------------------------  *
@@ -34,6 +67,7 @@ public class UDPServer {
      *  |   CHA      | Random String    | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
      *  |   URH      | Username & Hash  | Compare result, send Authentication | *
      *  |   AUT      | Authentication   | xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx | *
+     *  |   RES      | Resume           | Check ticket, send Authentication   | *
      *   ---------------------------------------------------------------------  *
      *                                                                          *
      *  Message Format:                                                         *
@@ -53,174 +87,555 @@ public class UDPServer {
      *  - AUTHENTICATION -                                                      *
      *  Index 0-2: Message Type (AUT)                                           *
      *  Index 3:   Result (0=Fail, 1=Succeed)                                   *
+     *  Index 4-67: Resumption ticket, only on success with -t                  *
+     *                                                                          *
+     *  Binary frames (see WireCodec) can also be sent as a BATCH of many       *
+     *  REQ/URH/RES entries in one datagram, each with a correlation id. Every  *
+     *  entry is a handshake of its own with its own challenge, and the         *
+     *  answers come back in as few datagrams as MAX_DATAGRAM_LENGTH allows.    *
+     *                                                                          *
+     *  - RESUME -                                                              *
+     *  Same as USERNAME & HASH, with the hash taken over the ticket instead    *
+     *  of a random string, followed by the 64 character ticket                 *
      *                                                                          *
      ***************************************************************************/
 
+    /**
+     * Creates a worker answering the datagrams received on the given channel.
+     * @param channel the blocking channel this worker receives from and sends on
+     */
+    private UDPServer(DatagramChannel channel) {
+    	this.channel = channel;
+    	if(challenge != null)
+    		metrics.addStore(challenge);
+    }
+
+    /**
+     * Answers one datagram, after charging it to the rate limits with -r. A
+     * BATCH is answered here, in as many datagrams as it takes; any other
+     * answer is returned for the caller to send.
+     * @param in buffer holding the received datagram between its position and limit
+     * @param client the sender of the datagram
+     * @return the answer between its position and limit, or null if it was sent already
+     * @throws IOException if the answers to a BATCH cannot be sent
+     * @throws NoSuchAlgorithmException
+     */
+    private ByteBuffer answer(ByteBuffer in, InetSocketAddress client) throws IOException, NoSuchAlgorithmException {
+        InetAddress host = client.getAddress();
+        int port = client.getPort();
+        boolean binary = in.hasRemaining() && in.get(in.position()) == WireCodec.MAGIC;
+        if(limiter != null && !admit(in, binary, host)){
+        	rejected(ServerMetrics.RATE_LIMITED, host, port, 0);
+        	return rewind(binary ? frameFail : textFail);
+        }
+        if(!binary)
+        	return parseMessage(in, host, port);
+        if(in.remaining() > 2 && in.get(in.position() + 2) == WireCodec.BATCH){
+        	answerBatch(in, client);
+        	return null;
+        }
+        out.clear();
+        return parseFrame(in, host, port, ChallengeStore.key(host, port), out);
+    }
+
 	/**
-	 * Parses the received message and generates the response accordingly.
-	 * @param receivePacket	message received from the client
-	 * @return	the response packet
+	 * Parses a text message and generates the response accordingly, reading
+	 * only the bytes received and writing a challenge or ticket straight into
+	 * the outgoing buffer.
+	 * @param in buffer holding the message between its position and limit
+	 * @param host address of the client
+	 * @param port port of the client
+	 * @return	the response between its position and limit
 	 * @throws NoSuchAlgorithmException
-	 * @throws UnsupportedEncodingException
 	 */
-    private DatagramPacket parseMessage(DatagramPacket receivePacket) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        InetAddress host = receivePacket.getAddress();
-        int port = receivePacket.getPort();
-        String message = new String(receivePacket.getData());
+    private ByteBuffer parseMessage(ByteBuffer in, InetAddress host, int port) throws NoSuchAlgorithmException {
+        int start = in.position();
+        int length = in.remaining();
 
-        if(message.length() < 4){
-        	if(debug)
-        		System.out.print("Received message too short. ");
-        	return failPacket(host, port);
+        if(length < 3){
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.MALFORMED, host, port, 0);
+        	return rewind(textFail);
         }
 
-        String type = message.substring(0,3);
-        String data = message.substring(3);
-        StringBuilder sb = new StringBuilder();
-
         // Determine type of message and handle accordingly
-        if (type.equals("REQ")) {
-        	if(debug){
-        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                System.out.println("["+timeStamp+"] "+"Received Message: REQ"+" from " + host.getHostAddress()+":"+port);
-        	}
-            sb.append("CHA");
-            String random = generateRandomString();
-            sb.append(random);
-            challenge.put(host.getHostAddress()+port, random);
+        if (isType(in, REQ_TYPE)) {
+        	metrics.message(ServerMetrics.REQ);
+            byte[] random = HashVerifier.get().challenge();
+            issueChallenge(ChallengeStore.key(host, port), random, 0);
+            out.clear();
+            out.put(CHA_TYPE);
+            out.put(random, 0, RANDOM_STRING_LENGTH);
+            out.flip();
+            if(log != null)
+            	log.log(DebugLog.CHALLENGED, 0, host, port, null, 0);
+            return out;
         }
-        else if (type.equals("URH")) {
-        	if(debug){
-        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-                System.out.println("["+timeStamp+"] "+"Received Message: URH"+message+" from " + host.getHostAddress()+":"+port);
-        	}
-            int usernameLength = Character.getNumericValue(data.charAt(0));
+        else if (isType(in, URH_TYPE) || isType(in, RES_TYPE)) {
+            boolean resume = isType(in, RES_TYPE);
+            metrics.message(resume ? ServerMetrics.RES : ServerMetrics.URH);
+            if(length == 3){
+            	rejected(ServerMetrics.MALFORMED, host, port, 0);
+            	return rewind(textFail);
+            }
+            int usernameLength = Character.getNumericValue((char) (in.get(start+3) & 0xff));
             if(usernameLength > 15 || usernameLength < 1){
-            	if(debug)
-            		System.out.print("Received username has wrong length. ");
-            	return failPacket(host, port);
+            	rejected(ServerMetrics.BAD_USERNAME_LENGTH, host, port, 0);
+            	return rewind(textFail);
             }
-            if(data.length() < 1 + usernameLength + MD5_LENGTH){
-            	if(debug)
-            		System.out.print("Received URH message too short. ");
-            	return failPacket(host, port);
+            if(length < 4 + usernameLength + MD5_LENGTH + (resume ? ResumptionTickets.TICKET_LENGTH : 0)){
+            	rejected(ServerMetrics.MALFORMED, host, port, 0);
+            	return rewind(textFail);
             }
-            String username = data.substring(1, usernameLength+1);
-            String password = PASSWORD.get(username);
-
-            if(password == null){
-            	if(debug)
-            		System.out.print("Received username does not exist. ");
-            	return failPacket(host, port);
+            byte[] username = HashVerifier.get().username();
+            for(int i=0; i<usernameLength; i++)
+            	username[i] = in.get(start+4+i);
+            //Get the hash from user
+            if(!HashVerifier.get().parseHex(in, start+4+usernameLength)){
+            	rejected(ServerMetrics.BAD_HASH_FORMAT, host, port, usernameLength);
+            	return rewind(textFail);
+            }
+            if(resume){
+            	byte[] ticket = HashVerifier.get().challenge();
+            	for(int i=0; i<ticket.length; i++)
+            		ticket[i] = in.get(start+4+usernameLength+MD5_LENGTH+i);
+            	if(!resume(usernameLength, host, port))
+            		return rewind(textFail);
             }
+            else if(!verify(usernameLength, ChallengeStore.key(host, port), host, port))
+            	return rewind(textFail);
+            if(tickets == null)
+            	return rewind(textSuccess);
+            byte[] ticket = HashVerifier.get().challenge();
+            tickets.issue(host, HashVerifier.get().username(), usernameLength, ticket, 0);
+            out.clear();
+            out.put(SUCCESS_MESSAGE);
+            out.put(ticket, 0, ResumptionTickets.TICKET_LENGTH);
+            out.flip();
+            return out;
+
+        } else {
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.WRONG_TYPE, host, port, 0);
+        	return rewind(textFail);
+        }
+    }
+
+    /**
+     * @param in buffer holding a text message of at least 3 bytes from its position
+     * @param type the 3 byte message type
+     * @return whether the message is of the given type
+     */
+    private static boolean isType(ByteBuffer in, byte[] type) {
+    	int start = in.position();
+    	return in.get(start) == type[0] && in.get(start+1) == type[1] && in.get(start+2) == type[2];
+    }
 
-            String random = challenge.get(host.getHostAddress()+port);
-            if(random == null){
-            	if(debug)
-            		System.out.print("Received IP does not have a challenge string. ");
-            	return failPacket(host, port);
+    /**
+     * Answers every entry of a binary BATCH frame, sending the answers in as few
+     * datagrams of at most MAX_DATAGRAM_LENGTH as they fit in. An entry is never
+     * split, and the answers keep the order of the entries.
+     * @param in buffer holding the received datagram between its position and limit
+     * @param client the sender of the datagram
+     * @throws IOException if a datagram cannot be sent
+     * @throws NoSuchAlgorithmException
+     */
+    private void answerBatch(ByteBuffer in, InetSocketAddress client) throws IOException, NoSuchAlgorithmException {
+        InetAddress host = client.getAddress();
+        int port = client.getPort();
+        if (WireCodec.type(in) != WireCodec.BATCH) {
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.MALFORMED, host, port, 0);
+            send(rewind(frameFail), client);
+            return;
+        }
+        metrics.message(ServerMetrics.BATCH);
+        int count = WireCodec.entryCount(in);
+        int end = in.limit();
+        int entry = WireCodec.firstEntry(in);
+        out.clear();
+        int start = WireCodec.beginBatch(out);
+        int answered = 0;
+        for (int i = 0; i < count; i++) {
+            int id = WireCodec.entryId(in, entry);
+            int next = entry + WireCodec.entryLength(in, entry);
+            in.limit(next);
+            in.position(entry + WireCodec.CORRELATION_ID_LENGTH);
+            batchAnswer.clear();
+            ByteBuffer reply;
+            if (id > WireCodec.MAX_CORRELATION_ID) {
+            	rejected(ServerMetrics.MALFORMED, host, port, 0);
+                reply = rewind(frameFail);
+            } else {
+                reply = parseFrame(in, host, port, ChallengeStore.key(host, port, id), batchAnswer);
             }
-            if(Long.parseLong(random.substring(RANDOM_STRING_LENGTH-14))-Long.parseLong(generateTimeStamp()) > 10){
-            	if(debug)
-            		System.out.print("Received IP has an expired challenge. ");
-            	return failPacket(host, port);
+            in.limit(end);
+            if (out.remaining() < WireCodec.CORRELATION_ID_LENGTH + reply.remaining() || answered == WireCodec.MAX_BATCH_ENTRIES) {
+                // This answer does not fit, send what we have and start the next datagram
+                WireCodec.endBatch(out, start, answered);
+                out.flip();
+                send(out, client);
+                out.clear();
+                start = WireCodec.beginBatch(out);
+                answered = 0;
             }
-            //Get the hash from user
-            String userhash = data.substring(usernameLength+1, usernameLength+MD5_LENGTH+1);
-			//Calculate the hash
-            String serverhash = hash(username+password+random);
-            if(!userhash.equals(serverhash)){
-            	if(debug)
-            		System.out.print("Received hash not correct. ");
-            	return failPacket(host, port);
+            WireCodec.putEntryId(out, id);
+            out.put(reply);
+            answered++;
+            entry = next;
+        }
+        WireCodec.endBatch(out, start, answered);
+        out.flip();
+        send(out, client);
+    }
+
+    /**
+     * Sends a datagram, recording it first with -p.
+     * @param datagram buffer holding the datagram between its position and limit
+     * @param client the receiver
+     * @throws IOException if it cannot be sent
+     */
+    private void send(ByteBuffer datagram, InetSocketAddress client) throws IOException {
+        if (capture != null)
+            capture.sent(client.getAddress(), client.getPort(), datagram);
+        channel.send(datagram, client);
+    }
+
+    /**
+     * Parses a binary frame and writes the binary response accordingly. A plain
+     * AUT0 or AUT1 is not written, the preencoded frame is returned instead.
+     * @param in buffer holding one complete frame between its position and limit
+     * @param host address of the client
+     * @param port port of the client
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @param out cleared buffer a CHA or an AUT1 with a ticket is written to
+     * @return the response frame between its position and limit, out or a preencoded one
+     * @throws NoSuchAlgorithmException
+     */
+    private ByteBuffer parseFrame(ByteBuffer in, InetAddress host, int port, long key, ByteBuffer out) throws NoSuchAlgorithmException {
+        switch (WireCodec.type(in)) {
+        case WireCodec.REQ:
+        	metrics.message(ServerMetrics.REQ);
+            byte[] random = HashVerifier.get().challenge();
+            issueChallenge(key, random, 0);
+            WireCodec.encodeChallenge(out, random, 0);
+            out.flip();
+            if(log != null)
+            	log.log(DebugLog.CHALLENGED, 0, host, port, null, 0);
+            return out;
+        case WireCodec.URH:
+        case WireCodec.RES:
+            metrics.message(WireCodec.hasTicket(in) ? ServerMetrics.RES : ServerMetrics.URH);
+            int usernameLength = WireCodec.usernameLength(in);
+            byte[] username = HashVerifier.get().username();
+            for (int i = 0; i < usernameLength; i++)
+                username[i] = in.get(WireCodec.usernameOffset(in) + i);
+            byte[] userhash = HashVerifier.get().userhash();
+            for (int i = 0; i < userhash.length; i++)
+                userhash[i] = in.get(WireCodec.digestOffset(in) + i);
+            boolean success;
+            if (WireCodec.hasTicket(in)) {
+                byte[] ticket = HashVerifier.get().challenge();
+                for (int i = 0; i < ticket.length; i++)
+                    ticket[i] = in.get(WireCodec.ticketOffset(in) + i);
+                success = resume(usernameLength, host, port);
+            } else {
+                success = verify(usernameLength, key, host, port);
             }
-            sb.append("AUT1");
+            if (!success)
+                return rewind(frameFail);
+            if (tickets == null)
+                return rewind(frameSuccess);
+            byte[] ticket = HashVerifier.get().challenge();
+            tickets.issue(host, username, usernameLength, ticket, 0);
+            WireCodec.encodeAuthentication(out, ticket, 0);
+            out.flip();
+            return out;
+        default:
+        	metrics.message(ServerMetrics.INVALID);
+        	rejected(ServerMetrics.MALFORMED, host, port, 0);
+            return rewind(frameFail);
+        }
+    }
 
-        } else {
-        	if(debug)
-        		System.out.print("Received wrong message type. ");
-        	return failPacket(host, port);
+    /**
+     * Checks the hash sent in a URH against the stored challenge of the client.
+     * Shared by the text and binary formats, which leave the raw MD5 sent by the
+     * client in {@link HashVerifier#userhash()} and the username in
+     * {@link HashVerifier#username()} of the calling thread.
+     * @param usernameLength length of the username sent by the client
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @param host address of the client
+     * @param port port of the client
+     * @return whether the client is authenticated
+     */
+    private boolean verify(int usernameLength, long key, InetAddress host, int port) {
+        HashVerifier verifier = HashVerifier.get();
+        int length = credentials.lookup(verifier.username(), 0, usernameLength, verifier.credentials());
+
+        if(length < 0){
+        	rejected(ServerMetrics.UNKNOWN_USER, host, port, usernameLength);
+        	return false;
         }
-        byte[] sendData = sb.toString().getBytes();
-        return new DatagramPacket(sendData, sendData.length, host, port);
+
+        if(stateless != null){
+        	// Nothing was stored, try the challenges this client may have been given
+        	for(int age=0; age<stateless.candidates(); age++){
+        		stateless.candidate(key, age, verifier.challenge(), 0);
+        		if(verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        			authenticated(host, port, usernameLength);
+        			return true;
+        		}
+        	}
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        int status = cluster != null ? cluster.get(key, verifier.challenge(), 0) : challenge.get(key, verifier.challenge(), 0);
+        if(status == ChallengeStore.MISSING){
+        	rejected(ServerMetrics.NO_CHALLENGE, host, port, usernameLength);
+        	return false;
+        }
+        if(status == ChallengeStore.EXPIRED){
+        	rejected(ServerMetrics.EXPIRED_CHALLENGE, host, port, usernameLength);
+        	return false;
+        }
+		//Calculate the hash and compare it in constant time
+        if(!verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        authenticated(host, port, usernameLength);
+        return true;
     }
 
     /**
-     * Creates a failed message for the given host and port
-     * @param host the given host
-     * @param port the given port
-     * @return a failed message
+     * Checks the hash sent in a RES, which is taken over a resumption ticket
+     * instead of a challenge. The caller leaves the ticket in
+     * {@link HashVerifier#challenge()} next to the username and hash.
+     * @param usernameLength length of the username sent by the client
+     * @param host address of the client
+     * @param port port of the client
+     * @return whether the client is authenticated
      */
-    private DatagramPacket failPacket(InetAddress host, int port) {
-    	System.out.println("Failed to authenticate " + host.getHostAddress());
-    	return new DatagramPacket(FAIL_MESSAGE, FAIL_MESSAGE.length, host, port);
-	}
+    private boolean resume(int usernameLength, InetAddress host, int port) {
+        HashVerifier verifier = HashVerifier.get();
+        if(tickets == null){
+        	rejected(ServerMetrics.BAD_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        if(!tickets.validate(host, verifier.username(), usernameLength, verifier.challenge(), 0)){
+        	rejected(ServerMetrics.BAD_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        int length = credentials.lookup(verifier.username(), 0, usernameLength, verifier.credentials());
+        if(length < 0){
+        	rejected(ServerMetrics.UNKNOWN_USER, host, port, usernameLength);
+        	return false;
+        }
+        if(!verifier.verify(verifier.credentials(), length, verifier.challenge(), verifier.userhash(), 0)){
+        	rejected(ServerMetrics.WRONG_HASH, host, port, usernameLength);
+        	return false;
+        }
+        if(!tickets.redeem(verifier.challenge(), 0)){
+        	rejected(ServerMetrics.REUSED_TICKET, host, port, usernameLength);
+        	return false;
+        }
+        authenticated(host, port, usernameLength);
+        return true;
+    }
 
-	/**
-     * Generates a random alphanumeric string of length 64.
-     * @return a random alphanumeric string of length 64.
+    /**
+     * Counts an AUT1 and logs it with -d.
+     * @param host address of the client
+     * @param port port of the client
+     * @param usernameLength length of the username in {@link HashVerifier#username()}
      */
-    private String generateRandomString() {
-        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-		String time = generateTimeStamp();
-        int length = RANDOM_STRING_LENGTH - time.length();
-        StringBuilder sb = new StringBuilder();
-        for (int i=0; i<length; i++)
-            sb.append(chars.charAt((int)(Math.random()*chars.length())));
-        sb.append(time);
-        return sb.toString();
+    private static void authenticated(InetAddress host, int port, int usernameLength) {
+        metrics.authenticated();
+        if(log != null)
+        	log.log(DebugLog.AUTHENTICATED, 0, host, port, HashVerifier.get().username(), usernameLength);
     }
 
     /**
-     * Helper method for generating time stamps
-     * @return formated time stamp
+     * Counts an AUT0 and logs it with -d.
+     * @param reason why the client is rejected, see {@link ServerMetrics#rejected}
+     * @param host address of the client
+     * @param port port of the client
+     * @param usernameLength length of the username in {@link HashVerifier#username()}, 0 if not parsed yet
      */
-    private String generateTimeStamp(){
-    	return new SimpleDateFormat("yyyyMMddHHmmss").format(new Timestamp(System.currentTimeMillis()));
+    private static void rejected(int reason, InetAddress host, int port, int usernameLength) {
+        metrics.rejected(reason);
+        if(log != null)
+        	log.log(DebugLog.REJECTED, reason, host, port, HashVerifier.get().username(), usernameLength);
     }
 
     /**
-     * Generates a MD5 hash from a given string
-     * @param s the String to generate MD5 from
-     * @return generated MD5
-     * @throws NoSuchAlgorithmException
-     * @throws UnsupportedEncodingException
+     * Charges a datagram to the rate limits of its sender. A BATCH costs a token
+     * per entry, anything else one.
+     * @param in buffer holding the datagram between its position and limit
+     * @param binary whether the datagram is a binary frame
+     * @param host address of the sender
+     * @return whether the datagram may be parsed
+     */
+    private static boolean admit(ByteBuffer in, boolean binary, InetAddress host) {
+        int start = in.position();
+        int cost = binary && in.remaining() > 3 && in.get(start+2) == WireCodec.BATCH ? Math.max(in.get(start+3) & 0xff, 1) : 1;
+        return limiter.acquire(host, cost);
+    }
+
+    /**
+     * @param message the bytes of an answer that never changes
+     * @return a direct buffer holding exactly the message
+     */
+    private static ByteBuffer constant(byte[] message) {
+    	ByteBuffer b = ByteBuffer.allocateDirect(message.length);
+    	b.put(message);
+    	b.flip();
+    	return b;
+    }
+
+    /**
+     * @param success whether the frame is an AUT1 or an AUT0
+     * @return a direct buffer holding exactly the AUT frame, without a ticket
+     */
+    private static ByteBuffer constantFrame(boolean success) {
+    	ByteBuffer b = ByteBuffer.allocateDirect(WireCodec.HEADER_LENGTH + 1);
+    	WireCodec.encodeAuthentication(b, success);
+    	b.flip();
+    	return b;
+    }
+
+    /**
+     * Makes a constant answer whole again after a previous send consumed it.
+     * @param constant one of the buffers made by {@link #constant} or {@link #constantFrame}
+     * @return the same buffer, from its first byte to its last
      */
-    private String hash(String s) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-    	MessageDigest md = MessageDigest.getInstance("MD5");
-    	md.reset();
-		byte[] digest = md.digest(s.getBytes("UTF-8"));
-		StringBuffer sb = new StringBuffer();
-		for (byte b : digest) {
-			sb.append(String.format("%02x", b & 0xff));
-		}
-		return sb.toString();
+    private static ByteBuffer rewind(ByteBuffer constant) {
+    	constant.clear();
+    	return constant;
+    }
+
+    /**
+     * Creates the challenge for a client and remembers it, unless challenges are
+     * stateless. In a cluster it is remembered by the member owning the key.
+     * @param key challenge key of the handshake, from {@link ChallengeStore#key}
+     * @param dst array receiving the 64 character challenge
+     * @param offset where to write in the array
+     */
+    private void issueChallenge(long key, byte[] dst, int offset) {
+        if(stateless != null){
+        	stateless.issue(key, dst, offset);
+        	return;
+        }
+        generateRandomString(dst, offset);
+        if(cluster != null)
+        	cluster.put(key, dst, offset);
+        else
+        	challenge.put(key, dst, offset);
+    }
+
+	/**
+     * Takes a random alphanumeric string of length 64, ending in the time, from
+     * the pool, or makes it on the spot without one.
+     * @param dst array receiving the 64 ASCII characters
+     * @param offset where to write in the array
+     */
+    private void generateRandomString(byte[] dst, int offset) {
+        if (pool != null)
+            pool.next(dst, offset);
+        else
+            ChallengePool.generate(dst, offset);
     }
 
     public static void main(String args[]) throws Exception {
-    	if(args.length > 2){
+    	if(args.length > 10){
     		System.out.println("Too many arguments");
-    		System.out.println("usage: UDPServer [-d] [port]");
+    		System.out.println(USAGE);
     		System.exit(0);
     	}
 
     	int port=DEFAULT_PORT;
+    	int workers = 1;
+    	int metricsPort = -1;
+    	String indexFile = null;
+    	String clusterNode = null;
+    	String clusterFile = null;
     	for(int i=0; i<args.length; i++){
     		switch (args[i].charAt(0)){
     		case '-':
-    			if(args[i].charAt(1)!='d'){
+    			if(args[i].startsWith("-d")){
+    				// -d logs to stdout, -d<file> appends to the file
+    				log = DebugLog.open(args[i].length() > 2 ? args[i].substring(2) : null);
+    				metrics.setLog(log);
+    			}
+    			else if(args[i].startsWith("-p") && args[i].length() > 2){
+    				// -p<file> appends every datagram received and sent to a capture for TrafficReplay
+    				capture = TrafficCapture.open(args[i].substring(2), true);
+    				metrics.setCapture(capture);
+    			}
+    			else if(args[i].startsWith("-s")){
+    				// -s makes challenges stateless, -s<keyfile> shares the key with other servers
+    				stateless = args[i].length() > 2 ? StatelessChallenge.fromFile(args[i].substring(2), ChallengeStore.DEFAULT_TTL)
+    						: StatelessChallenge.withRandomKey(ChallengeStore.DEFAULT_TTL);
+    			}
+    			else if(args[i].startsWith("-t")){
+    				// -t hands out resumption tickets, -t<keyfile> shares the key with other servers
+    				tickets = args[i].length() > 2 ? ResumptionTickets.fromFile(args[i].substring(2))
+    						: ResumptionTickets.withRandomKey();
+    			}
+    			else if(args[i].startsWith("-u") && args[i].length() > 2){
+    				// -u<indexfile> reads users from an index built by CredentialIndexBuilder, again whenever it changes
+    				indexFile = args[i].substring(2);
+    			}
+    			else if(args[i].matches("-m\\d*")){
+    				// -m registers the metrics with JMX, -m<port> also serves them as text on 127.0.0.1
+    				metricsPort = args[i].length() > 2 ? (int) Options.parse(args[i].substring(2), 9999) : 0;
+    				if(metricsPort != 0 && (metricsPort < 1024 || metricsPort > 9999)){
+    					System.out.println("Invalid metrics port number. Only 1024-9999.");
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else if(args[i].matches("-r\\d+(:\\d+)?")){
+    				// -r<rate> limits the messages per second from one address, :<rate> from one subnet
+    				String[] rates = args[i].substring(2).split(":");
+    				int addressRate = RateLimiter.parseRate(rates[0]);
+    				int subnetRate = rates.length > 1 ? RateLimiter.parseRate(rates[1]) : 0;
+    				if(addressRate < 0 || subnetRate < 0){
+    					System.out.println("Invalid rate limit: "+args[i]+". At most "+RateLimiter.MAX_RATE+" per second.");
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    				limiter = new RateLimiter(addressRate, subnetRate);
+    			}
+    			else if(args[i].matches("-c[^:]+:.+")){
+    				// -c<node>:<clusterfile> shares challenges with the other members listed in the file
+    				clusterNode = args[i].substring(2, args[i].indexOf(':'));
+    				clusterFile = args[i].substring(args[i].indexOf(':') + 1);
+    			}
+    			else if(args[i].matches("-w\\d*")){
+    				// -w starts one worker per core unless a count is given
+    				workers = args[i].length() > 2 ? Options.parseInt(args[i].substring(2))
+    						: Runtime.getRuntime().availableProcessors();
+    				if(workers < 1){
+    					System.out.println("Invalid number of workers: "+args[i]);
+    					System.out.println(USAGE);
+    					System.exit(0);
+    				}
+    			}
+    			else{
     				System.out.println("Not a valid option: "+args[i]);
-    				System.out.println("usage: UDPServer [-d] [port]");
+    				System.out.println(USAGE);
     				System.exit(0);
     			}
-    			debug = true;
     			break;
     		default:
     			if(args[i].matches("\\d+"))
-    				port = Integer.parseInt(args[i]);
+    				// Too large to parse is as invalid as any port above 9999
+    				port = (int) Options.parse(args[i], 9999);
     			else{
     				System.out.println("Not a valid portNumber: "+args[i]);
-    				System.out.println("usage: UDPServer [-d] [port]");
+    				System.out.println(USAGE);
     				System.exit(0);
     			}
     		}
@@ -229,27 +644,104 @@ public class UDPServer {
     		System.out.println("Invalid port number. Only 1024-9999.");
 			System.exit(0);
     	}
+    	if(indexFile != null){
+    		// Started once -d, wherever it is given, has opened the log the reloads go to
+    		ReloadingCredentialStore users = new ReloadingCredentialStore(indexFile);
+    		users.setLog(log);
+    		users.start("credential-reload");
+    		metrics.setCredentials(users);
+    		credentials = users;
+    	}
+    	if(clusterFile != null){
+    		if(stateless != null){
+    			System.out.println("Stateless challenges (-s) need no cluster (-c).");
+    			System.exit(0);
+    		}
+    		cluster = ChallengeCluster.fromFile(clusterFile, clusterNode, new ChallengeStore());
+    		metrics.addStore(cluster.store());
+    		metrics.setCluster(cluster);
+    		cluster.start();
+    	}
+
+        if(stateless == null){
+        	pool = ChallengePool.start("udp-challenges");
+        	metrics.setPool(pool);
+        }
+        if(metricsPort >= 0)
+        	metrics.expose(metricsPort);
 
         // Initiate server
-        UDPServer server = new UDPServer();
-        DatagramSocket serverSocket = new DatagramSocket(port);
-        byte[] receiveData = new byte[MAX_PACKETSIZE];
+        SocketOption<Boolean> reusePort = workers > 1 ? reusePortOption() : null;
+        if(workers > 1 && reusePort == null){
+        	System.out.println("SO_REUSEPORT is not supported here, using a single worker.");
+        	workers = 1;
+        }
+        if(workers == 1){
+        	new UDPServer(DatagramChannel.open().bind(new InetSocketAddress(port))).run();
+        	return;
+        }
+        Thread[] threads = new Thread[workers];
+        for(int i=0; i<workers; i++){
+        	// Every worker binds its own socket to the port, the kernel hashes each client to one of them.
+        	// Opened like the single worker's, so IPv6 clients are served too where the platform has it
+        	DatagramChannel channel = DatagramChannel.open();
+        	channel.setOption(reusePort, true);
+        	channel.bind(new InetSocketAddress(port));
+        	threads[i] = new Thread(new UDPServer(channel), "udp-worker-" + i);
+        	threads[i].start();
+        }
+        if(log != null)
+        	log.message("Serving port " + port + " with " + workers + " workers");
+        for(Thread t : threads)
+        	t.join();
+    }
+
+    /**
+     * Looks up the SO_REUSEPORT socket option, which only exists from Java 9 on
+     * and is not offered by every platform.
+     * @return the option, or null if it cannot be used
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+    	try {
+    		SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    		DatagramChannel probe = DatagramChannel.open();
+    		try {
+    			return probe.supportedOptions().contains(option) ? option : null;
+    		} finally {
+    			probe.close();
+    		}
+    	} catch (Exception e) {
+    		return null;
+    	}
+    }
 
+    @Override
+    public void run() {
         // Keeps the server running
         while(true) {
-            // Receive, process, and respond
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        	Arrays.fill(receiveData, (byte)0);
-            serverSocket.receive(receivePacket);
-            DatagramPacket sendPacket = server.parseMessage(receivePacket);
-            serverSocket.send(sendPacket);
-            if(debug){
-            	String send = new String (sendPacket.getData());
-        		String timeStamp = new SimpleDateFormat("HH.mm.ss").format(new Date());
-            	if(send.substring(0,3).equals("AUT"))
-                    System.out.println("["+timeStamp+"] "+"Sending Message: AUT"+send+" to " + sendPacket.getAddress().getHostAddress()+":"+sendPacket.getPort());
-            	else
-                    System.out.println("["+timeStamp+"] "+"Sending Message: CHA"+send+" to " + sendPacket.getAddress().getHostAddress()+":"+sendPacket.getPort());
+            try {
+                // Receive, process, and respond, all from the worker's own buffers.
+                // The channel hands back the same sender address object while the sender stays the same
+                in.clear();
+                InetSocketAddress client = (InetSocketAddress) channel.receive(in);
+                long start = System.nanoTime();
+                in.flip();
+                if(capture != null)
+                    capture.received(client.getAddress(), client.getPort(), in);
+                ByteBuffer response = answer(in, client);
+                metrics.request(System.nanoTime() - start);
+                if(response != null)
+                    send(response, client);
+            } catch (IOException e) {
+                if(log != null)
+                    log.message("Failed to handle packet: " + e.getMessage());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (RuntimeException e) {
+                // A packet that breaks the server costs that packet, not the worker
+                if(log != null)
+                    log.message("Failed to handle packet: " + e);
             }
         }
     }
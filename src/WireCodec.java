@@ -0,0 +1,370 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing of the REQ/CHA/URH/AUT/RES messages, of UDP batches of them
+ * and of tagged messages pipelined over one TCP connection.
+ *
+ ****************************************************************************
+ *  Every frame starts with a 4 byte header:                                *
+ *  Index 0:   Magic (0xA5, never the first byte of a text message)         *
+ *  Index 1:   Version (1)                                                  *
+ *  Index 2:   Message Type (1=REQ, 2=CHA, 3=URH, 4=AUT, 5=RES, 6=BATCH,    *
+ *             7=TAGGED)                                                    *
+ *  Index 3:   Payload length                                               *
+ *                                                                          *
+ *  - REQUEST -         no payload                                          *
+ *  - RANDOM STRING -   Index 4-67: Random String                           *
+ *  - USERNAME & HASH - Index 4:   Username length                          *
+ *                      Index 5-[5+Username length]: Username               *
+ *                      followed by the raw 16 byte MD5                     *
+ *  - AUTHENTICATION -  Index 4:   Result (0=Fail, 1=Succeed, 2=Busy)       *
+ *                      Index 5-68: Resumption ticket, only on success      *
+ *                      when the server issues tickets                      *
+ *  - RESUME -          Same as USERNAME & HASH, the MD5 taken over the     *
+ *                      ticket instead of a challenge, followed by the      *
+ *                      64 byte ticket                                      *
+ *  - BATCH -           UDP only. Index 3 holds the number of entries       *
+ *                      instead of a length, the entries fill the rest of   *
+ *                      the datagram. Each entry is:                        *
+ *                      Index 0-1: Correlation id (0-16382)                 *
+ *                      Index 2-:  A complete REQ/URH/RES frame, or the     *
+ *                                 CHA/AUT frame answering it               *
+ *  - TAGGED -          One entry of a batch as a frame of its own, so that *
+ *                      it can be streamed: the payload is a correlation id *
+ *                      followed by a complete frame.                       *
+ ****************************************************************************
+ *
+ * All accessors work on the frame starting at the buffer's position with
+ * absolute gets and puts, so decoding and encoding never allocate.
+ *
+ * A batch answers each entry with an entry carrying the same correlation id,
+ * in order, split over as many datagrams of at most MAX_DATAGRAM_LENGTH as
+ * needed. Entries the client hears nothing about are for it to resend.
+ *
+ * A TAGGED frame is answered by a TAGGED frame with the same correlation id.
+ * Each id is a handshake of its own, so a client can keep one TCP connection
+ * open and have handshakes for many users in flight on it at once.
+ */
+public final class WireCodec {
+
+    public static final byte MAGIC = (byte) 0xA5;
+    public static final byte VERSION = 1;
+
+    public static final int REQ = 1;
+    public static final int CHA = 2;
+    public static final int URH = 3;
+    public static final int AUT = 4;
+    public static final int RES = 5;
+    public static final int BATCH = 6;
+    public static final int TAGGED = 7;
+    public static final int INVALID = -1;
+
+    // Result of an AUT frame when the server shed the handshake under overload, see TCPServer -q
+    public static final int BUSY = 2;
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int CHALLENGE_LENGTH = 64;
+    public static final int DIGEST_LENGTH = 16;
+    public static final int TICKET_LENGTH = ResumptionTickets.TICKET_LENGTH;
+    public static final int MAX_USERNAME_LENGTH = 15;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + 255;
+    public static final int CORRELATION_ID_LENGTH = 2;
+    // Correlation ids have to fit the spare bits of a ChallengeStore key
+    public static final int MAX_CORRELATION_ID = 0x3ffe;
+    public static final int MAX_BATCH_ENTRIES = 255;
+    // Largest datagram that crosses a 1500 byte Ethernet MTU without IP fragmentation
+    public static final int MAX_DATAGRAM_LENGTH = 1500 - 20 - 8;
+
+    private WireCodec() {
+    }
+
+    /**
+     * @param buf buffer holding at least one byte of a message at its position
+     * @return whether the message is a binary frame rather than a text message
+     */
+    public static boolean isBinary(ByteBuffer buf) {
+        return buf.remaining() > 0 && buf.get(buf.position()) == MAGIC;
+    }
+
+    /**
+     * Used to cut frames out of a byte stream.
+     * @param buf buffer holding the start of a frame at its position
+     * @return the full length of the frame, or -1 if the header is not complete yet
+     */
+    public static int frameLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_LENGTH)
+            return -1;
+        return HEADER_LENGTH + (buf.get(buf.position() + 3) & 0xff);
+    }
+
+    /**
+     * Validates the frame at the buffer's position.
+     * @param buf buffer holding a complete frame between its position and limit
+     * @return the message type, or INVALID if the frame is malformed
+     */
+    public static int type(ByteBuffer buf) {
+        int p = buf.position();
+        if (buf.remaining() < HEADER_LENGTH || buf.get(p) != MAGIC || buf.get(p + 1) != VERSION)
+            return INVALID;
+        int type = buf.get(p + 2);
+        int length = buf.get(p + 3) & 0xff;
+        if (buf.remaining() < HEADER_LENGTH + length)
+            return INVALID;
+        switch (type) {
+        case REQ:
+            return type;
+        case CHA:
+            return length == CHALLENGE_LENGTH ? type : INVALID;
+        case URH:
+        case RES:
+            int usernameLength = buf.get(p + HEADER_LENGTH);
+            int ticketLength = type == RES ? TICKET_LENGTH : 0;
+            if (usernameLength < 1 || usernameLength > MAX_USERNAME_LENGTH
+                    || length != 1 + usernameLength + DIGEST_LENGTH + ticketLength)
+                return INVALID;
+            return type;
+        case AUT:
+            return length == 1 || length == 1 + TICKET_LENGTH ? type : INVALID;
+        case BATCH:
+            // The entries themselves are checked one by one as they are handled
+            int entry = p + HEADER_LENGTH;
+            for (int i = 0; i < length; i++) {
+                if (buf.limit() - entry < CORRELATION_ID_LENGTH + HEADER_LENGTH)
+                    return INVALID;
+                entry += entryLength(buf, entry);
+            }
+            return entry == buf.limit() ? type : INVALID;
+        case TAGGED:
+            // The tagged frame is checked when it is handled, here it only has to fill the payload
+            if (length < CORRELATION_ID_LENGTH + HEADER_LENGTH
+                    || entryLength(buf, p + HEADER_LENGTH) != length)
+                return INVALID;
+            return type;
+        default:
+            return INVALID;
+        }
+    }
+
+    /** @return absolute index of the challenge in a CHA frame */
+    public static int challengeOffset(ByteBuffer buf) {
+        return buf.position() + HEADER_LENGTH;
+    }
+
+    /** @return length of the username in a URH or RES frame */
+    public static int usernameLength(ByteBuffer buf) {
+        return buf.get(buf.position() + HEADER_LENGTH);
+    }
+
+    /** @return absolute index of the username in a URH or RES frame */
+    public static int usernameOffset(ByteBuffer buf) {
+        return buf.position() + HEADER_LENGTH + 1;
+    }
+
+    /** @return absolute index of the digest in a URH or RES frame */
+    public static int digestOffset(ByteBuffer buf) {
+        return usernameOffset(buf) + usernameLength(buf);
+    }
+
+    /** @return the result carried by an AUT frame */
+    public static int result(ByteBuffer buf) {
+        return buf.get(buf.position() + HEADER_LENGTH);
+    }
+
+    /** @return whether a validated frame ends with a ticket, which only AUT and RES frames can */
+    public static boolean hasTicket(ByteBuffer buf) {
+        int type = buf.get(buf.position() + 2);
+        return type == RES || (type == AUT && (buf.get(buf.position() + 3) & 0xff) == 1 + TICKET_LENGTH);
+    }
+
+    /** @return number of entries in a BATCH frame */
+    public static int entryCount(ByteBuffer buf) {
+        return buf.get(buf.position() + 3) & 0xff;
+    }
+
+    /** @return absolute index of the first entry of a BATCH frame */
+    public static int firstEntry(ByteBuffer buf) {
+        return buf.position() + HEADER_LENGTH;
+    }
+
+    /** @return correlation id of the batch entry at the given absolute index */
+    public static int entryId(ByteBuffer buf, int entry) {
+        return buf.getShort(entry) & 0xffff;
+    }
+
+    /** @return length of the batch entry at the given absolute index, correlation id included */
+    public static int entryLength(ByteBuffer buf, int entry) {
+        return CORRELATION_ID_LENGTH + HEADER_LENGTH + (buf.get(entry + CORRELATION_ID_LENGTH + 3) & 0xff);
+    }
+
+    /** @return correlation id of a TAGGED frame */
+    public static int tag(ByteBuffer buf) {
+        return entryId(buf, buf.position() + HEADER_LENGTH);
+    }
+
+    /** @return absolute index of the frame carried by a TAGGED frame */
+    public static int taggedFrame(ByteBuffer buf) {
+        return buf.position() + HEADER_LENGTH + CORRELATION_ID_LENGTH;
+    }
+
+    /**
+     * Type of a frame written by this side, looking through a TAGGED frame to
+     * the one it carries, so that a tagged AUT still ends its handshake.
+     * @param buf buffer holding a complete frame at the given index
+     * @param frame absolute index of the frame
+     * @return the type of the frame, or of the frame it carries if it is TAGGED
+     */
+    public static int innerType(ByteBuffer buf, int frame) {
+        int type = buf.get(frame + 2);
+        return type == TAGGED ? buf.get(frame + HEADER_LENGTH + CORRELATION_ID_LENGTH + 2) : type;
+    }
+
+    /** @return absolute index of the ticket, which is always the end of the frame */
+    public static int ticketOffset(ByteBuffer buf) {
+        return buf.position() + frameLength(buf) - TICKET_LENGTH;
+    }
+
+    /**
+     * Writes a REQ frame at the buffer's position and advances it.
+     * @param out the buffer to write to
+     */
+    public static void encodeRequest(ByteBuffer out) {
+        header(out, REQ, 0);
+    }
+
+    /**
+     * Writes a CHA frame at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @param challenge array holding CHALLENGE_LENGTH bytes of challenge
+     * @param offset where the challenge starts in the array
+     */
+    public static void encodeChallenge(ByteBuffer out, byte[] challenge, int offset) {
+        header(out, CHA, CHALLENGE_LENGTH);
+        out.put(challenge, offset, CHALLENGE_LENGTH);
+    }
+
+    /**
+     * Writes a URH frame at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @param username array holding the ASCII username
+     * @param offset where the username starts in the array
+     * @param length length of the username
+     * @param digest array holding the DIGEST_LENGTH byte MD5
+     * @param digestOffset where the digest starts in the array
+     */
+    public static void encodeUsernameHash(ByteBuffer out, byte[] username, int offset, int length, byte[] digest, int digestOffset) {
+        header(out, URH, 1 + length + DIGEST_LENGTH);
+        out.put((byte) length);
+        out.put(username, offset, length);
+        out.put(digest, digestOffset, DIGEST_LENGTH);
+    }
+
+    /**
+     * Writes an AUT frame at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @param success whether the authentication succeeded
+     */
+    public static void encodeAuthentication(ByteBuffer out, boolean success) {
+        header(out, AUT, 1);
+        out.put((byte) (success ? 1 : 0));
+    }
+
+    /**
+     * Writes an AUT frame telling the client the server is too busy to answer, at the buffer's position and advances it.
+     * @param out the buffer to write to
+     */
+    public static void encodeBusy(ByteBuffer out) {
+        header(out, AUT, 1);
+        out.put((byte) BUSY);
+    }
+
+    /**
+     * Writes a successful AUT frame carrying a resumption ticket at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @param ticket array holding the TICKET_LENGTH byte ticket
+     * @param offset where the ticket starts in the array
+     */
+    public static void encodeAuthentication(ByteBuffer out, byte[] ticket, int offset) {
+        header(out, AUT, 1 + TICKET_LENGTH);
+        out.put((byte) 1);
+        out.put(ticket, offset, TICKET_LENGTH);
+    }
+
+    /**
+     * Writes a RES frame at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @param username array holding the ASCII username
+     * @param offset where the username starts in the array
+     * @param length length of the username
+     * @param digest array holding the DIGEST_LENGTH byte MD5 taken over the ticket
+     * @param digestOffset where the digest starts in the array
+     * @param ticket array holding the TICKET_LENGTH byte ticket
+     * @param ticketOffset where the ticket starts in the array
+     */
+    public static void encodeResume(ByteBuffer out, byte[] username, int offset, int length, byte[] digest, int digestOffset, byte[] ticket, int ticketOffset) {
+        header(out, RES, 1 + length + DIGEST_LENGTH + TICKET_LENGTH);
+        out.put((byte) length);
+        out.put(username, offset, length);
+        out.put(digest, digestOffset, DIGEST_LENGTH);
+        out.put(ticket, ticketOffset, TICKET_LENGTH);
+    }
+
+    /**
+     * Writes the header of a BATCH frame with no entries at the buffer's position and advances it.
+     * @param out the buffer to write to
+     * @return absolute index of the batch, to pass to {@link #endBatch}
+     */
+    public static int beginBatch(ByteBuffer out) {
+        int start = out.position();
+        header(out, BATCH, 0);
+        return start;
+    }
+
+    /**
+     * Writes the correlation id of a batch entry, to be followed by the entry's frame.
+     * @param out the buffer to write to
+     * @param id the correlation id
+     */
+    public static void putEntryId(ByteBuffer out, int id) {
+        out.putShort((short) id);
+    }
+
+    /**
+     * Sets the number of entries of a batch once they are written.
+     * @param out the buffer holding the batch
+     * @param start absolute index returned by {@link #beginBatch}
+     * @param entries number of entries written
+     */
+    public static void endBatch(ByteBuffer out, int start, int entries) {
+        out.put(start + 3, (byte) entries);
+    }
+
+    /**
+     * Writes the header and correlation id of a TAGGED frame at the buffer's
+     * position and advances it, to be followed by the tagged frame.
+     * @param out the buffer to write to
+     * @param id the correlation id
+     * @return absolute index of the frame, to pass to {@link #endTagged}
+     */
+    public static int beginTagged(ByteBuffer out, int id) {
+        int start = out.position();
+        header(out, TAGGED, 0);
+        out.putShort((short) id);
+        return start;
+    }
+
+    /**
+     * Sets the payload length of a TAGGED frame once the tagged frame is written.
+     * @param out the buffer holding the frame
+     * @param start absolute index returned by {@link #beginTagged}
+     */
+    public static void endTagged(ByteBuffer out, int start) {
+        out.put(start + 3, (byte) (out.position() - start - HEADER_LENGTH));
+    }
+
+    private static void header(ByteBuffer out, int type, int length) {
+        out.put(MAGIC);
+        out.put(VERSION);
+        out.put((byte) type);
+        out.put((byte) length);
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ChallengeStoreTest {
+
+    private static byte[] challenge(int fill) {
+        byte[] b = new byte[ChallengeStore.CHALLENGE_LENGTH];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) (fill + i);
+        return b;
+    }
+
+    @Test
+    public void storedChallengeIsFound() {
+        ChallengeStore store = new ChallengeStore(64, 10000);
+        byte[] dst = new byte[ChallengeStore.CHALLENGE_LENGTH + 3];
+        store.put(1, challenge(1), 0);
+        assertEquals(ChallengeStore.FOUND, store.get(1, dst, 3));
+        for (int i = 0; i < ChallengeStore.CHALLENGE_LENGTH; i++)
+            assertEquals((byte) (1 + i), dst[3 + i]);
+        assertEquals(ChallengeStore.MISSING, store.get(2, dst, 0));
+
+        // put() replaces
+        store.put(1, challenge(7), 0);
+        byte[] replaced = new byte[ChallengeStore.CHALLENGE_LENGTH];
+        assertEquals(ChallengeStore.FOUND, store.get(1, replaced, 0));
+        assertArrayEquals(challenge(7), replaced);
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void challengeExpiresAfterTtlAndIsThenCleared() throws InterruptedException {
+        ChallengeStore store = new ChallengeStore(64, 1000);
+        byte[] dst = new byte[ChallengeStore.CHALLENGE_LENGTH];
+        store.put(1, challenge(1), 0);
+        assertEquals(ChallengeStore.FOUND, store.get(1, dst, 0));
+
+        Thread.sleep(1200);
+        assertEquals(ChallengeStore.EXPIRED, store.get(1, dst, 0));
+
+        // The wheel has three one second buckets for a one second ttl, so the entry is cleared within four seconds
+        Thread.sleep(3000);
+        assertEquals(ChallengeStore.MISSING, store.get(1, dst, 0));
+        assertEquals(0, store.size());
+        assertEquals(1, store.expirations());
+    }
+
+    @Test
+    public void fullSetsEvictTheOldestChallenge() {
+        // 16 stripes of 2 sets of 4 ways
+        ChallengeStore store = new ChallengeStore(64, 10000);
+        byte[] value = challenge(0);
+        for (long key = 1; key <= 1000; key++)
+            store.put(key, value, 0);
+        assertTrue(store.size() <= 128);
+        assertEquals(1000 - store.size(), store.evictions());
+
+        byte[] dst = new byte[ChallengeStore.CHALLENGE_LENGTH];
+        assertEquals(ChallengeStore.FOUND, store.get(1000, dst, 0));
+    }
+
+    @Test
+    public void addKeepsTheFirstEntryAndNeverEvicts() {
+        ChallengeStore store = new ChallengeStore(64, 10000);
+        byte[] dst = new byte[ChallengeStore.CHALLENGE_LENGTH];
+        assertTrue(store.add(1, challenge(1), 0));
+        assertFalse(store.add(1, challenge(2), 0));
+        assertEquals(ChallengeStore.FOUND, store.get(1, dst, 0));
+        assertArrayEquals(challenge(1), dst);
+
+        int added = 1;
+        for (long key = 2; key <= 1000; key++)
+            if (store.add(key, challenge(0), 0))
+                added++;
+        assertEquals(0, store.evictions());
+        assertEquals(added, store.size());
+        assertTrue(added <= 128);
+        assertEquals(ChallengeStore.FOUND, store.get(1, dst, 0));
+    }
+}
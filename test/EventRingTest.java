@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class EventRingTest {
+
+    private static final class NumberRing extends EventRing<NumberRing.Number> {
+        final List<Integer> out = new ArrayList<Integer>();
+
+        NumberRing(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected Number newSlot() {
+            return new Number();
+        }
+
+        @Override
+        protected void write(Number s) {
+            synchronized (out) {
+                out.add(s.value);
+            }
+        }
+
+        @Override
+        protected void idle() {
+        }
+
+        boolean record(int value) {
+            Number s = claim();
+            if (s == null)
+                return false;
+            s.value = value;
+            publish(s);
+            return true;
+        }
+
+        static final class Number extends EventRing.Slot {
+            int value;
+        }
+    }
+
+    private static void awaitWritten(NumberRing ring, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.written() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(count, ring.written());
+    }
+
+    @Test
+    public void fullRingDropsEvents() {
+        NumberRing ring = new NumberRing(4);
+        for (int i = 0; i < 4; i++)
+            assertNotNull(ring.claim());
+        assertNull(ring.claim());
+        assertNull(ring.claim());
+        assertEquals(2, ring.dropped());
+    }
+
+    @Test
+    public void writerFreesTheRingInOrder() throws InterruptedException {
+        NumberRing ring = new NumberRing(3);
+        for (int i = 0; i < 4; i++)
+            ring.record(i);
+        // Rounded up to 4 slots, so nothing was dropped yet
+        assertEquals(0, ring.dropped());
+        ring.record(4);
+        assertEquals(1, ring.dropped());
+
+        ring.start("test-ring");
+        awaitWritten(ring, 4);
+        for (int i = 5; i < 9; i++)
+            ring.record(i);
+        awaitWritten(ring, 8);
+        assertEquals(1, ring.dropped());
+        synchronized (ring.out) {
+            assertEquals(Arrays.asList(0, 1, 2, 3, 5, 6, 7, 8), ring.out);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedCredentialStoreTest {
+
+    @TempDir
+    File dir;
+
+    private MappedCredentialStore store(int users) throws IOException {
+        File list = new File(dir, "users.txt");
+        PrintWriter out = new PrintWriter(list, "US-ASCII");
+        try {
+            out.println("# test users");
+            for (int i = 1; i <= users; i++)
+                out.println("user" + i + " pass" + i);
+        } finally {
+            out.close();
+        }
+        File index = new File(dir, "users.idx");
+        assertEquals(users, CredentialIndexBuilder.build(list.getPath(), index.getPath()));
+        return new MappedCredentialStore(index.getPath());
+    }
+
+    private static String lookup(MappedCredentialStore store, String username) {
+        // Not at the start of the array, as in a received frame
+        byte[] name = ("..." + username).getBytes(StandardCharsets.US_ASCII);
+        byte[] dst = new byte[CredentialStore.MAX_CREDENTIALS_LENGTH];
+        int length = store.lookup(name, 3, username.length(), dst);
+        return length < 0 ? null : new String(dst, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void knownUsersAreFound() throws IOException {
+        MappedCredentialStore store = store(5);
+        assertEquals(5, store.size());
+        for (int i = 1; i <= 5; i++)
+            assertEquals("user" + i + "pass" + i, lookup(store, "user" + i));
+    }
+
+    @Test
+    public void unknownUsersAreMissing() throws IOException {
+        MappedCredentialStore store = store(5);
+        assertEquals(null, lookup(store, "user6"));
+        assertEquals(null, lookup(store, "user"));
+        assertEquals(null, lookup(store, "user10"));
+        assertEquals(null, lookup(store, "USER1"));
+    }
+
+    @Test
+    public void everyUserOfALargeIndexIsFound() throws IOException {
+        MappedCredentialStore store = store(1000);
+        assertEquals(1000, store.size());
+        for (int i = 1; i <= 1000; i++)
+            assertEquals("user" + i + "pass" + i, lookup(store, "user" + i));
+        assertEquals(null, lookup(store, "user1001"));
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        final File text = new File(dir, "users.txt");
+        PrintWriter out = new PrintWriter(text, "US-ASCII");
+        try {
+            out.println("user1 pass1");
+        } finally {
+            out.close();
+        }
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws IOException {
+                new MappedCredentialStore(text.getPath());
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+public class RateLimiterTest {
+
+    private static InetAddress address(int a, int b, int c, int d) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+    }
+
+    @Test
+    public void burstIsOneSecondOfTokens() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1000, 0, 64);
+        InetAddress client = address(10, 0, 0, 1);
+        assertTrue(limiter.acquire(client, 1000, 0));
+        assertFalse(limiter.acquire(client, 1, 0));
+    }
+
+    @Test
+    public void bucketRefillsWithTime() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1000, 0, 64);
+        InetAddress client = address(10, 0, 0, 1);
+        assertTrue(limiter.acquire(client, 1000, 0));
+        assertTrue(limiter.acquire(client, 100, 100));
+        assertFalse(limiter.acquire(client, 1, 100));
+
+        // Refill stops at the burst however long the client was away
+        assertTrue(limiter.acquire(client, 1000, 100000));
+        assertFalse(limiter.acquire(client, 1, 100000));
+    }
+
+    @Test
+    public void refillCarriesOverTheWrapOfTheClock() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1000, 0, 64);
+        InetAddress client = address(10, 0, 0, 1);
+        assertTrue(limiter.acquire(client, 1000, RateLimiter.TIME_MASK - 50));
+        // 101 milliseconds later, on the other side of the wrap
+        assertTrue(limiter.acquire(client, 101, 50));
+        assertFalse(limiter.acquire(client, 1, 50));
+    }
+
+    @Test
+    public void costAboveTheBurstEmptiesTheBucket() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(10, 0, 64);
+        InetAddress client = address(10, 0, 0, 1);
+        assertTrue(limiter.acquire(client, 50, 0));
+        assertFalse(limiter.acquire(client, 1, 0));
+    }
+
+    @Test
+    public void subnetBucketIsShared() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(0, 10, 64);
+        assertTrue(limiter.acquire(address(10, 0, 0, 1), 10, 0));
+        assertFalse(limiter.acquire(address(10, 0, 0, 2), 1, 0));
+        assertTrue(limiter.acquire(address(10, 0, 1, 1), 1, 0));
+    }
+
+    @Test
+    public void ratesAreBounded() {
+        assertEquals(RateLimiter.MAX_RATE, RateLimiter.parseRate(Integer.toString(RateLimiter.MAX_RATE)));
+        assertEquals(-1, RateLimiter.parseRate(Integer.toString(RateLimiter.MAX_RATE + 1)));
+        assertEquals(-1, RateLimiter.parseRate("99999999999999999999999"));
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                new RateLimiter(RateLimiter.MAX_RATE + 1, 0);
+            }
+        });
+    }
+}
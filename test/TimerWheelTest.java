@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+    private static final long MS = 1000000;
+
+    // 8 slots of 10 ms, one turn is 80 ms
+    private static TimerWheel wheel() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        Thread t = new Thread(wheel, "test-wheel");
+        t.setDaemon(true);
+        t.start();
+        return wheel;
+    }
+
+    private static Runnable recorder(final AtomicLong ranAt, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ranAt.set(System.nanoTime());
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void taskRunsAfterItsDeadline() throws InterruptedException {
+        AtomicLong ranAt = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 30 * MS;
+        TimerWheel.Timeout t = wheel().schedule(recorder(ranAt, done), deadline);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - deadline >= 0);
+        assertTrue(t.expired());
+    }
+
+    @Test
+    public void deadlineBeyondOneTurnIsKept() throws InterruptedException {
+        AtomicLong ranAt = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 250 * MS;
+        wheel().schedule(recorder(ranAt, done), deadline);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - deadline >= 0);
+    }
+
+    @Test
+    public void extendPostponesTheTask() throws InterruptedException {
+        AtomicLong ranAt = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimerWheel.Timeout t = wheel().schedule(recorder(ranAt, done), start + 20 * MS);
+        t.extend(start + 150 * MS);
+        // An earlier deadline is ignored
+        t.extend(start + 10 * MS);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - (start + 150 * MS) >= 0);
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        AtomicLong ranAt = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        TimerWheel wheel = wheel();
+        TimerWheel.Timeout t = wheel.schedule(recorder(ranAt, done), System.nanoTime() + 20 * MS);
+        t.cancel();
+        // A task scheduled later still runs, so the wheel did turn past the cancelled one
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(recorder(new AtomicLong(), later), System.nanoTime() + 60 * MS);
+        assertTrue(later.await(1, TimeUnit.SECONDS));
+        assertFalse(done.await(0, TimeUnit.MILLISECONDS));
+        assertFalse(t.expired());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        TimerWheel wheel = wheel();
+        long deadline = System.nanoTime() + 20 * MS;
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        }, deadline);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(recorder(new AtomicLong(), done), deadline + 30 * MS);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+}
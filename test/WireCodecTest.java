@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class WireCodecTest {
+
+    private static final byte[] USER = {'u', 's', 'e', 'r', '1'};
+    private static final byte[] DIGEST = new byte[WireCodec.DIGEST_LENGTH];
+    private static final byte[] CHALLENGE = new byte[WireCodec.CHALLENGE_LENGTH];
+
+    private static ByteBuffer frame(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer encoded(ByteBuffer out) {
+        out.flip();
+        return out;
+    }
+
+    @Test
+    public void shortOrForeignHeadersAreInvalid() {
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame()));
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, WireCodec.VERSION, WireCodec.REQ)));
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame('R', 'E', 'Q', 0)));
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, 2, WireCodec.REQ, 0)));
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, WireCodec.VERSION, 99, 0)));
+    }
+
+    @Test
+    public void payloadMustFitTheBuffer() {
+        // Says 5 bytes of payload, has 4
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, WireCodec.VERSION, WireCodec.REQ, 5, 0, 0, 0, 0)));
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        WireCodec.encodeChallenge(out, CHALLENGE, 0);
+        out.flip();
+        out.limit(out.limit() - 1);
+        assertEquals(WireCodec.INVALID, WireCodec.type(out));
+    }
+
+    @Test
+    public void encodedFramesHaveTheirType() {
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        WireCodec.encodeRequest(out);
+        assertEquals(WireCodec.REQ, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeChallenge(out, CHALLENGE, 0);
+        assertEquals(WireCodec.CHA, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeUsernameHash(out, USER, 0, USER.length, DIGEST, 0);
+        assertEquals(WireCodec.URH, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeResume(out, USER, 0, USER.length, DIGEST, 0, CHALLENGE, 0);
+        assertEquals(WireCodec.RES, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeAuthentication(out, true);
+        assertEquals(WireCodec.AUT, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeAuthentication(out, CHALLENGE, 0);
+        assertEquals(WireCodec.AUT, WireCodec.type(encoded(out)));
+    }
+
+    @Test
+    public void usernameLengthIsBounded() {
+        byte[] user = new byte[WireCodec.MAX_USERNAME_LENGTH + 1];
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        WireCodec.encodeUsernameHash(out, user, 0, WireCodec.MAX_USERNAME_LENGTH, DIGEST, 0);
+        assertEquals(WireCodec.URH, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeUsernameHash(out, user, 0, WireCodec.MAX_USERNAME_LENGTH + 1, DIGEST, 0);
+        assertEquals(WireCodec.INVALID, WireCodec.type(encoded(out)));
+        out.clear();
+        WireCodec.encodeUsernameHash(out, user, 0, 0, DIGEST, 0);
+        assertEquals(WireCodec.INVALID, WireCodec.type(encoded(out)));
+    }
+
+    @Test
+    public void payloadLengthMustMatchTheType() {
+        // A CHA one byte short of a challenge, an AUT with two result bytes
+        byte[] cha = new byte[WireCodec.HEADER_LENGTH + WireCodec.CHALLENGE_LENGTH - 1];
+        cha[0] = WireCodec.MAGIC;
+        cha[1] = WireCodec.VERSION;
+        cha[2] = WireCodec.CHA;
+        cha[3] = (byte) (WireCodec.CHALLENGE_LENGTH - 1);
+        assertEquals(WireCodec.INVALID, WireCodec.type(ByteBuffer.wrap(cha)));
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, WireCodec.VERSION, WireCodec.AUT, 2, 1, 1)));
+    }
+
+    @Test
+    public void batchEntriesMustFillTheDatagram() {
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_DATAGRAM_LENGTH);
+        int start = WireCodec.beginBatch(out);
+        WireCodec.putEntryId(out, 1);
+        WireCodec.encodeRequest(out);
+        WireCodec.putEntryId(out, 2);
+        WireCodec.encodeRequest(out);
+        WireCodec.endBatch(out, start, 2);
+        out.flip();
+        assertEquals(WireCodec.BATCH, WireCodec.type(out));
+        assertEquals(2, WireCodec.entryCount(out));
+
+        // One byte of trailing garbage, then one entry cut short
+        out.limit(out.limit() + 1);
+        assertEquals(WireCodec.INVALID, WireCodec.type(out));
+        out.limit(out.limit() - 2);
+        assertEquals(WireCodec.INVALID, WireCodec.type(out));
+    }
+
+    @Test
+    public void taggedFrameMustFillThePayload() {
+        ByteBuffer out = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+        int start = WireCodec.beginTagged(out, WireCodec.MAX_CORRELATION_ID);
+        WireCodec.encodeRequest(out);
+        WireCodec.endTagged(out, start);
+        out.flip();
+        assertEquals(WireCodec.TAGGED, WireCodec.type(out));
+        assertEquals(WireCodec.MAX_CORRELATION_ID, WireCodec.tag(out));
+        assertEquals(WireCodec.REQ, WireCodec.innerType(out, 0));
+
+        // The payload is only the id
+        assertEquals(WireCodec.INVALID, WireCodec.type(frame(WireCodec.MAGIC, WireCodec.VERSION, WireCodec.TAGGED, 2, 0, 1)));
+    }
+}